@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The identifiers of the assertions accepted by the CIE ID providers, each one kept until the
+ * assertion expires, so that an assertion can be used only once.
+ *
+ * The identifiers are recorded with a single {@link ConcurrentHashMap#putIfAbsent}, and are also
+ * grouped in buckets by expiry time: once the clock is past a bucket, the first thread to notice
+ * drops all of its identifiers at once, without scanning the others.
+ *
+ * On a cluster, {@link #add(SingleUseObjectProvider, String, long)} also records the identifiers
+ * in the single-use object store of Keycloak, shared by all the nodes; this cache then acts as
+ * its near-cache, rejecting the assertions replayed on the same node without a remote call.
+ *
+ * A single instance, owned by the {@link CieIdIdentityProviderFactory}, is shared by all the
+ * providers through {@link CieIdIdentityProviderServices}.
+ */
+public class CieIdAssertionReplayCache {
+
+    /**
+     * Event error of an assertion rejected because it was already used.
+     */
+    public static final String REPLAYED_ASSERTION_ERROR = "cieid_assertion_replayed";
+
+    /**
+     * Prefix of the keys of the identifiers in the single-use object store.
+     */
+    public static final String KEY_PREFIX = "cieid.assertion.";
+
+    static final long BUCKET_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final Clock clock;
+
+    private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+
+    /**
+     * The first bucket not yet dropped.
+     */
+    private final AtomicLong firstBucket;
+
+    public CieIdAssertionReplayCache() {
+        this(Clock.systemUTC());
+    }
+
+    public CieIdAssertionReplayCache(Clock clock) {
+        this.clock = clock;
+        this.firstBucket = new AtomicLong(clock.millis() / BUCKET_MILLIS);
+    }
+
+    /**
+     * Records the identifier of an assertion until the given time.
+     *
+     * @param id     the identifier of the assertion, qualified by its issuer
+     * @param expiry when the identifier can be forgotten, in milliseconds
+     * @return {@code false} if the identifier is already recorded and not yet expired
+     */
+    public boolean add(String id, long expiry) {
+        long now = clock.millis();
+        dropExpired(now);
+
+        // An identifier that would expire at once is still kept until the next bucket
+        expiry = Math.max(expiry, now + 1);
+
+        Long previous = expiries.putIfAbsent(id, expiry);
+        if (previous != null && (previous > now || !expiries.replace(id, previous, expiry)))
+            return false;
+
+        buckets.computeIfAbsent(expiry / BUCKET_MILLIS, bucket -> ConcurrentHashMap.newKeySet()).add(id);
+        return true;
+    }
+
+    /**
+     * Records the identifier of an assertion until the given time, both in this cache and in the
+     * single-use object store shared by the nodes of the cluster.
+     *
+     * @param singleUseObjects the single-use object store of the current session
+     * @param id               the identifier of the assertion, qualified by its issuer
+     * @param expiry           when the identifier can be forgotten, in milliseconds
+     * @return {@code false} if the identifier is already recorded and not yet expired, on this
+     *         node or on another one
+     */
+    public boolean add(SingleUseObjectProvider singleUseObjects, String id, long expiry) {
+        if (!add(id, expiry))
+            return false;
+
+        // The store keeps each key for a whole number of seconds, at least one
+        long lifespanSeconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(expiry - clock.millis() + 999));
+        return singleUseObjects.putIfAbsent(KEY_PREFIX + id, lifespanSeconds);
+    }
+
+    /**
+     * Whether the identifier of an assertion is recorded and not yet expired.
+     */
+    public boolean contains(String id) {
+        Long expiry = expiries.get(id);
+        return expiry != null && expiry > clock.millis();
+    }
+
+    /**
+     * The number of identifiers recorded, including the expired ones not yet dropped.
+     */
+    public int size() {
+        return expiries.size();
+    }
+
+    private void dropExpired(long now) {
+        long currentBucket = now / BUCKET_MILLIS;
+        long first = firstBucket.get();
+        if (first >= currentBucket || !firstBucket.compareAndSet(first, currentBucket))
+            return;
+
+        // Every identifier of a bucket before the current one is expired; those recorded again
+        // since then with a later expiry are kept
+        ConcurrentNavigableMap<Long, Set<String>> expired = buckets.headMap(currentBucket);
+        for (Iterator<Map.Entry<Long, Set<String>>> it = expired.entrySet().iterator(); it.hasNext(); ) {
+            Set<String> ids = it.next().getValue();
+            it.remove();
+            for (String id : ids)
+                expiries.computeIfPresent(id, (key, expiry) -> expiry > now ? expiry : null);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * What the {@link CieIdCheckRule}s check a response against: the response itself, the
+ * request it answers, the configuration of the provider and the instant of receipt.
+ */
+public final class CieIdCheckContext {
+    private static final Logger logger = Logger.getLogger(CieIdCheckContext.class);
+
+    /**
+     * Returned by {@link #getRequestedLevel} when the configuration cannot be read.
+     */
+    static final String INVALID_LEVEL = "";
+
+    private final CieIdResponseView response;
+    private final String expectedRequestId;
+    private final long requestIssueInstantTime;
+    private final String idpEntityId;
+    private final long receivedTime;
+    private final CieIdIdentityProviderConfig config;
+    private String requestedLevel;
+
+    public CieIdCheckContext(CieIdResponseView response, String expectedRequestId, String requestIssueInstant,
+                             String idpEntityId, long receivedTime, CieIdIdentityProviderConfig config) {
+        this.response = response;
+        this.expectedRequestId = expectedRequestId;
+        this.requestIssueInstantTime = CieIdTimestamps.parse(requestIssueInstant);
+        this.idpEntityId = idpEntityId;
+        this.receivedTime = receivedTime;
+        this.config = config;
+    }
+
+    public CieIdResponseView getResponse() {
+        return response;
+    }
+
+    public String getExpectedRequestId() {
+        return expectedRequestId;
+    }
+
+    /**
+     * The IssueInstant of the request in milliseconds, or {@link CieIdTimestamps#INVALID}.
+     */
+    public long getRequestIssueInstantTime() {
+        return requestIssueInstantTime;
+    }
+
+    public String getIdpEntityId() {
+        return idpEntityId;
+    }
+
+    /**
+     * The instant of receipt of the response, in milliseconds.
+     */
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    public CieIdIdentityProviderConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The first AuthnContextClassRef of the configuration, read on first use, or
+     * {@link #INVALID_LEVEL} if the configuration cannot be read.
+     */
+    String getRequestedLevel() {
+        if (requestedLevel == null) {
+            try {
+                String[] levels = JsonSerialization.readValue(config.getAuthnContextClassRefs(), String[].class);
+                requestedLevel = levels != null && levels.length > 0 && levels[0] != null ? levels[0] : INVALID_LEVEL;
+            } catch (Exception e) {
+                logger.error("Could not json-deserialize AuthContextClassRefs config entry: " + config.getAuthnContextClassRefs(), e);
+                requestedLevel = INVALID_LEVEL;
+            }
+        }
+        return requestedLevel;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+/**
+ * A CIE ID response validation rule of {@link CieIdCheckRules}.
+ *
+ * Each rule only looks at its own condition: a rule about a part of the response that is
+ * missing passes, since the missing part is reported by its own rule. Rules can thus run
+ * in any order, and the error reported for a response is the one of the failing rule that
+ * comes first in the table.
+ */
+public final class CieIdCheckRule {
+
+    /**
+     * How expensive a rule is compared to the others. Cheaper rules run first.
+     */
+    public enum Cost {
+        /** Reads a part of the {@link CieIdResponseView} */
+        CHEAP,
+        /** Compares the response with the request, the configuration or the clock */
+        MODERATE,
+        /** Parses the configuration */
+        EXPENSIVE
+    }
+
+    @FunctionalInterface
+    public interface Check {
+        /**
+         * Returns the error code of the response, or {@code null} if it passes the rule.
+         */
+        String apply(CieIdCheckContext context);
+    }
+
+    private final String id;
+    private final int order;
+    private final Cost cost;
+    private final boolean header;
+    private final Check check;
+
+    CieIdCheckRule(String id, int order, Cost cost, boolean header, Check check) {
+        this.id = id;
+        this.order = order;
+        this.cost = cost;
+        this.header = header;
+        this.check = check;
+    }
+
+    /**
+     * The identifier of the rule, e.g. {@code nr08}, also used to disable it.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The position of the rule in the table: when several rules fail, the error of the
+     * first one is reported.
+     */
+    public int getOrder() {
+        return order;
+    }
+
+    public Cost getCost() {
+        return cost;
+    }
+
+    /**
+     * Whether the rule only reads the Response element and its Issuer, so that it can be run
+     * by {@link CieIdResponsePrevalidator} before the response is parsed.
+     */
+    public boolean isHeader() {
+        return header;
+    }
+
+    public String apply(CieIdCheckContext context) {
+        return check.apply(context);
+    }
+}
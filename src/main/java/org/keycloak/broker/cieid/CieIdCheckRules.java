@@ -0,0 +1,325 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.keycloak.broker.cieid.CieIdCheckRule.Cost;
+import org.keycloak.dom.saml.v2.protocol.AuthnContextComparisonType;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * The table of the CIE ID response validation rules, in the order of the CIE ID technical
+ * rules, which is the order their errors take precedence in.
+ */
+public final class CieIdCheckRules {
+
+    // Maximum delay between the IssueInstant of the request and the ones of the response
+    static final long MAX_ISSUE_INSTANT_DELAY = TimeUnit.MINUTES.toMillis(3);
+
+    // CIE ID authentication levels
+    private static final List<String> CIEID_LEVEL = Arrays.asList(
+        "https://www.spid.gov.it/SpidL1",
+        "https://www.spid.gov.it/SpidL2",
+        "https://www.spid.gov.it/SpidL3"
+    );
+
+    private static final List<CieIdCheckRule> RULES;
+    private static final List<CieIdCheckRule> EXECUTION_ORDER;
+    private static final List<CieIdCheckRule> HEADER_EXECUTION_ORDER;
+
+    static {
+        Builder rules = new Builder();
+
+        // 08: Response > ID empty
+        rules.addHeader("nr08", Cost.CHEAP, c -> c.getResponse().getId().isEmpty());
+        // 13: Response > IssueInstant invalid format
+        rules.addHeader("nr13", Cost.CHEAP, c -> !c.getResponse().getIssueInstant().isEmpty()
+            && c.getResponse().getIssueInstantTime() == CieIdTimestamps.INVALID);
+        // 14: IssueInstant attribute missing or prior to IssueInstant of the request
+        rules.addHeader("nr14", Cost.MODERATE, c -> c.getRequestIssueInstantTime() == CieIdTimestamps.INVALID
+            || c.getResponse().getIssueInstantTime() == CieIdTimestamps.INVALID
+            || c.getResponse().getIssueInstantTime() < c.getRequestIssueInstantTime());
+        // 15: IssueInstant attribute following the instant of receipt
+        rules.addHeader("nr15", Cost.MODERATE, c -> isValid(c.getRequestIssueInstantTime(), c.getResponse().getIssueInstantTime())
+            && c.getResponse().getIssueInstantTime() > c.getRequestIssueInstantTime() + MAX_ISSUE_INSTANT_DELAY);
+
+        // 28: Missing Issuer element
+        rules.addHeader("nr28", Cost.CHEAP, c -> !c.getResponse().getIssuer().isPresent());
+        // 27: Issuer element is empty
+        rules.addHeader("nr27", Cost.CHEAP, c -> c.getResponse().getIssuer().isPresent() && !c.getResponse().getIssuer().hasText());
+        // 29: Issuer element different from EntityID IdP
+        rules.addHeader("nr29", Cost.MODERATE, c -> c.getResponse().getIssuer().hasText()
+            && !c.getResponse().getIssuer().getText().equals(c.getIdpEntityId()));
+        // 30: Issuer Format attribute must be omitted or take value urn:oasis:names:tc:SAML:2.0:nameid-format:entity
+        rules.addHeader("nr30", Cost.CHEAP, c -> c.getResponse().getIssuer().hasAttribute("Format")
+            && !c.getResponse().getIssuer().getAttribute("Format").equals(JBossSAMLURIConstants.NAMEID_FORMAT_ENTITY.get()));
+
+        // 33: Assertion ID attribute is empty
+        rules.add("nr33", Cost.CHEAP, c -> c.getResponse().getAssertionId().isEmpty());
+        // 39: IssueInstant attribute of the Assertion prior to the IssueInstant of the Request
+        rules.add("nr39", Cost.MODERATE, c -> c.getResponse().getAssertionIssueInstantTime() == CieIdTimestamps.INVALID
+            || (c.getRequestIssueInstantTime() != CieIdTimestamps.INVALID
+                && c.getResponse().getAssertionIssueInstantTime() < c.getRequestIssueInstantTime()));
+        // 40: IssueInstant attribute of the Assertion following the IssueInstant of the Request
+        rules.add("nr40", Cost.MODERATE, c -> isValid(c.getRequestIssueInstantTime(), c.getResponse().getAssertionIssueInstantTime())
+            && c.getResponse().getAssertionIssueInstantTime() > c.getRequestIssueInstantTime() + MAX_ISSUE_INSTANT_DELAY);
+
+        // 42: Assertion > Subject missing
+        rules.add("nr42", Cost.CHEAP, c -> !c.getResponse().getSubject().isPresent());
+        // 41: Assertion > Subject element is empty
+        rules.add("nr41", Cost.CHEAP, c -> c.getResponse().getSubject().isPresent() && !c.getResponse().getSubject().hasChildElements());
+        // 44: Missing Assertion NameID element
+        rules.add("nr44", Cost.CHEAP, c -> c.getResponse().getSubject().hasChildElements() && !c.getResponse().getNameId().isPresent());
+        // 43: NameID element of the Assertion is empty
+        rules.add("nr43", Cost.CHEAP, c -> c.getResponse().getNameId().isPresent() && !c.getResponse().getNameId().hasText());
+        // 45: Format attribute of the NameID element of the Assertion is empty
+        rules.add("nr45", Cost.CHEAP, c -> isEmpty(c.getResponse().getNameId().getAttribute("Format")));
+        // 47: Assertion NameID Format attribute other than urn:oasis:names:tc:SAML:2.0:nameid-format:transient
+        rules.add("nr47", Cost.CHEAP, c -> c.getResponse().getNameId().hasAttribute("Format")
+            && !c.getResponse().getNameId().getAttribute("Format").equals(JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get()));
+        // 46: Missing Assertion NameID Element Format attribute
+        rules.add("nr46", Cost.CHEAP, c -> c.getResponse().getNameId().isPresent() && !c.getResponse().getNameId().hasAttribute("Format"));
+        // 49: NameQualifier attribute of NameID of Assertion is missing
+        rules.add("nr49", Cost.CHEAP, c -> c.getResponse().getNameId().isPresent() && !c.getResponse().getNameId().hasAttribute("NameQualifier"));
+        // 48: NameQualifier attribute of NameID of the Assertion is empty
+        rules.add("nr48", Cost.CHEAP, c -> isEmpty(c.getResponse().getNameId().getAttribute("NameQualifier")));
+
+        // 17: Response > InResponseTo missing
+        rules.addHeader("nr17", Cost.CHEAP, c -> c.getResponse().getInResponseTo() == null);
+        // 16: Response > InResponseTo empty
+        rules.addHeader("nr16", Cost.CHEAP, c -> isEmpty(c.getResponse().getInResponseTo()));
+        // 18: Response > InResponseTo does not match request ID
+        rules.addHeader("nr18", Cost.MODERATE, c -> isNotEmpty(c.getResponse().getInResponseTo())
+            && !c.getResponse().getInResponseTo().equals(c.getExpectedRequestId()));
+
+        // 52: Assertion > Subject > Confirmation missing
+        rules.add("nr52", Cost.CHEAP, c -> c.getResponse().getSubject().hasChildElements() && !c.getResponse().getSubjectConfirmation().isPresent());
+        // 51: Assertion > Subject > Confirmation empty
+        rules.add("nr51", Cost.CHEAP, c -> c.getResponse().getSubjectConfirmation().isPresent()
+            && !c.getResponse().getSubjectConfirmation().hasChildElements());
+        // 54: Assertion > Subject > Confirmation > Method missing
+        rules.add("nr54", Cost.CHEAP, c -> c.getResponse().getSubjectConfirmation().isPresent()
+            && !c.getResponse().getSubjectConfirmation().hasAttribute("Method"));
+        // 53: Assertion > Subject > Confirmation > Method empty
+        rules.add("nr53", Cost.CHEAP, c -> isEmpty(c.getResponse().getSubjectConfirmation().getAttribute("Method")));
+        // 55: Assertion > Subject > Confirmation > Method is not SUBJECT_CONFIRMATION_BEARER
+        rules.add("nr55", Cost.CHEAP, c -> isNotEmpty(c.getResponse().getSubjectConfirmation().getAttribute("Method"))
+            && !c.getResponse().getSubjectConfirmation().getAttribute("Method").equals(JBossSAMLURIConstants.SUBJECT_CONFIRMATION_BEARER.get()));
+
+        // 56: Assertion > Subject > Confirmation > SubjectConfirmationData missing
+        rules.add("nr56", Cost.CHEAP, c -> c.getResponse().getSubjectConfirmation().hasChildElements()
+            && !c.getResponse().getSubjectConfirmationData().isPresent());
+        // 58: Assertion > Subject > Confirmation > SubjectConfirmationData > Recipient missing
+        rules.add("nr58", Cost.CHEAP, c -> c.getResponse().getSubjectConfirmationData().isPresent()
+            && !c.getResponse().getSubjectConfirmationData().hasAttribute("Recipient"));
+        // 57: Assertion > Subject > Confirmation > SubjectConfirmationData > Recipient is empty
+        rules.add("nr57", Cost.CHEAP, c -> isEmpty(c.getResponse().getSubjectConfirmationData().getAttribute("Recipient")));
+        // 59: Recipient does not match Destination
+        rules.add("nr59", Cost.MODERATE, c -> isNotEmpty(c.getResponse().getSubjectConfirmationData().getAttribute("Recipient"))
+            && !c.getResponse().getSubjectConfirmationData().getAttribute("Recipient").equals(c.getResponse().getDestination()));
+        // 61: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo missing
+        rules.add("nr61", Cost.CHEAP, c -> c.getResponse().getSubjectConfirmationData().isPresent()
+            && !c.getResponse().getSubjectConfirmationData().hasAttribute("InResponseTo"));
+        // 60: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo is empty
+        rules.add("nr60", Cost.CHEAP, c -> isEmpty(c.getResponse().getSubjectConfirmationData().getAttribute("InResponseTo")));
+        // 62: Assertion > Subject > Confirmation > SubjectConfirmationData > InResponseTo does not match request ID
+        rules.add("nr62", Cost.MODERATE, c -> isNotEmpty(c.getResponse().getSubjectConfirmationData().getAttribute("InResponseTo"))
+            && !c.getResponse().getSubjectConfirmationData().getAttribute("InResponseTo").equals(c.getExpectedRequestId()));
+        // 64: NotOnOrAfter attribute of SubjectConfirmationData is missing
+        rules.add("nr64", Cost.CHEAP, c -> c.getResponse().getSubjectConfirmationData().isPresent()
+            && !c.getResponse().getSubjectConfirmationData().hasAttribute("NotOnOrAfter"));
+        // 66: NotOnOrAfter attribute of SubjectConfirmationData invalid or prior to the time the response was received
+        rules.add("nr66", Cost.MODERATE, c -> c.getResponse().getSubjectConfirmationData().hasAttribute("NotOnOrAfter")
+            && (c.getResponse().getSubjectConfirmationNotOnOrAfterTime() == CieIdTimestamps.INVALID
+                || c.getResponse().getSubjectConfirmationNotOnOrAfterTime() < c.getReceivedTime()));
+
+        // 68: Missing Issuer element of the Assertion
+        rules.add("nr68", Cost.CHEAP, c -> !c.getResponse().getAssertionIssuer().isPresent());
+        // 67: Issuer element of the Assertion is empty
+        rules.add("nr67", Cost.CHEAP, c -> c.getResponse().getAssertionIssuer().isPresent() && !c.getResponse().getAssertionIssuer().hasText());
+        // 69: Issuer element of the Assertion different from EntityID IdP
+        rules.add("nr69", Cost.MODERATE, c -> c.getResponse().getAssertionIssuer().hasText()
+            && !c.getResponse().getAssertionIssuer().getText().equals(c.getIdpEntityId()));
+        // not required for CIEID
+        // 70: Format attribute of Issuer of the Assertion is empty (SPID check nr70)
+        // 71: Missing Assertion Issuer Format attribute (SPID check nr71)
+        // 72: Format attribute of Issuer of the Assertion, if present, must have value urn:oasis:names:tc:SAML:2.0:nameid-format:entity (SPID check nr72)
+        rules.add("nr72", Cost.CHEAP, c -> c.getResponse().getAssertionIssuer().hasAttribute("Format")
+            && !c.getResponse().getAssertionIssuer().getAttribute("Format").equals(JBossSAMLURIConstants.NAMEID_FORMAT_ENTITY.get()));
+
+        // 74: Missing Assertion Conditions element
+        rules.add("nr74", Cost.CHEAP, c -> !c.getResponse().getConditions().isPresent());
+        // 73: Conditions element of the Assertion is empty
+        rules.add("nr73", Cost.CHEAP, c -> c.getResponse().getConditions().isPresent() && !c.getResponse().getConditions().hasChildElements());
+        // 76: Missing Assertion Condition NotBefore attribute
+        rules.add("nr76", Cost.CHEAP, c -> c.getResponse().getConditions().isPresent() && !c.getResponse().getConditions().hasAttribute("NotBefore"));
+        // 80: Missing Assertion Condition NotOnOrAfter attribute
+        rules.add("nr80", Cost.CHEAP, c -> c.getResponse().getConditions().isPresent() && !c.getResponse().getConditions().hasAttribute("NotOnOrAfter"));
+        // 84: Missing Assertion Condition AudienceRestriction element
+        rules.add("nr84", Cost.CHEAP, c -> c.getResponse().getConditions().hasChildElements()
+            && !c.getResponse().getAudienceRestriction().isPresent());
+
+        // 89: Missing AuthStatement element of the Assertion
+        rules.add("nr89", Cost.CHEAP, c -> !c.getResponse().getAuthnStatement().isPresent());
+        // 88: AuthStatement element of the Assertion is empty
+        rules.add("nr88", Cost.CHEAP, c -> c.getResponse().getAuthnStatement().isPresent() && !c.getResponse().getAuthnStatement().hasChildElements());
+        // 91: Missing AuthStatement AuthnContext Element of Assertion
+        rules.add("nr91", Cost.CHEAP, c -> c.getResponse().getAuthnStatement().hasChildElements() && !c.getResponse().getAuthnContext().isPresent());
+        // 90: AuthnContext of AuthStatement of Assertion is empty
+        rules.add("nr90", Cost.CHEAP, c -> c.getResponse().getAuthnContext().isPresent() && !c.getResponse().getAuthnContext().hasChildElements());
+        // 93: AuthStatement AuthContextClassRef Element of the Missing Assertion
+        rules.add("nr93", Cost.CHEAP, c -> c.getResponse().getAuthnContext().hasChildElements()
+            && !c.getResponse().getAuthnContextClassRef().isPresent());
+        // 92: AuthStatement AuthContextClassRef Element of the Assertion is empty
+        rules.add("nr92", Cost.CHEAP, c -> c.getResponse().getAuthnContextClassRef().isPresent()
+            && !c.getResponse().getAuthnContextClassRef().hasText());
+        // 97: AuthContextClassRef element set to an unexpected value
+        rules.add("nr97", Cost.EXPENSIVE, c -> c.getResponse().getAuthnContextClassRef().hasText()
+            && (getLevel(c.getResponse().getAuthnContextClassRef().getText()) < 1
+                || c.getRequestedLevel() == CieIdCheckContext.INVALID_LEVEL));
+        // 94-96: AuthContextClassRef element set to wrong CIE ID level
+        rules.addCheck("nr94-96", Cost.EXPENSIVE, CieIdCheckRules::checkLevel);
+
+        RULES = Collections.unmodifiableList(rules.rules);
+
+        List<CieIdCheckRule> executionOrder = new ArrayList<>(RULES);
+        executionOrder.sort(Comparator.comparing(CieIdCheckRule::getCost).thenComparingInt(CieIdCheckRule::getOrder));
+        EXECUTION_ORDER = Collections.unmodifiableList(executionOrder);
+        HEADER_EXECUTION_ORDER = Collections.unmodifiableList(executionOrder.stream()
+            .filter(CieIdCheckRule::isHeader)
+            .collect(Collectors.toList()));
+    }
+
+    private CieIdCheckRules() {
+    }
+
+    /**
+     * The rules, in the order of the CIE ID technical rules.
+     */
+    public static List<CieIdCheckRule> getRules() {
+        return RULES;
+    }
+
+    /**
+     * The rules, cheapest first.
+     */
+    static List<CieIdCheckRule> getExecutionOrder() {
+        return EXECUTION_ORDER;
+    }
+
+    /**
+     * The {@linkplain CieIdCheckRule#isHeader() header} rules, cheapest first.
+     */
+    static List<CieIdCheckRule> getHeaderExecutionOrder() {
+        return HEADER_EXECUTION_ORDER;
+    }
+
+    /**
+     * Returns the rule with the given identifier, or {@code null} if there is none.
+     */
+    public static CieIdCheckRule getRule(String id) {
+        for (CieIdCheckRule rule : RULES) {
+            if (rule.getId().equals(id))
+                return rule;
+        }
+        return null;
+    }
+
+    private static String checkLevel(CieIdCheckContext context) {
+        CieIdResponseView.ElementView authnContextClassRef = context.getResponse().getAuthnContextClassRef();
+        if (!authnContextClassRef.hasText())
+            return null;
+
+        String responseCieIdLevel = authnContextClassRef.getText();
+        int cieIdLevelResponse = getLevel(responseCieIdLevel);
+        String requestedLevel = context.getRequestedLevel();
+        if (cieIdLevelResponse < 1 || requestedLevel == CieIdCheckContext.INVALID_LEVEL)
+            return null;
+        int cieIdLevelRequest = getLevel(requestedLevel);
+
+        AuthnContextComparisonType comparison = context.getConfig().getAuthnContextComparisonType();
+        boolean wrongLevel;
+        if (AuthnContextComparisonType.EXACT.equals(comparison)) {
+            wrongLevel = cieIdLevelResponse != cieIdLevelRequest;
+        } else if (AuthnContextComparisonType.MINIMUM.equals(comparison)) {
+            wrongLevel = cieIdLevelResponse < cieIdLevelRequest;
+        } else if (AuthnContextComparisonType.MAXIMUM.equals(comparison)) {
+            wrongLevel = cieIdLevelResponse > cieIdLevelRequest;
+        } else if (AuthnContextComparisonType.BETTER.equals(comparison)) {
+            wrongLevel = !responseCieIdLevel.equals(context.getConfig().getAuthnContextClassRefs());
+        } else {
+            wrongLevel = false;
+        }
+        return wrongLevel ? getCieIdLevelAssertion(cieIdLevelResponse) : null;
+    }
+
+    private static int getLevel(String cieIdLevel) {
+        return CIEID_LEVEL.indexOf(cieIdLevel) + 1;
+    }
+
+    private static String getCieIdLevelAssertion(int cieIdLevel) {
+        switch (cieIdLevel) {
+            case 1:
+                return "CieIdSamlCheck_nr94";
+            case 2:
+                return "CieIdSamlCheck_nr95";
+            case 3:
+                return "CieIdSamlCheck_nr96";
+            default:
+                return "CieIdSamlCheck_nr97";
+        }
+    }
+
+    private static boolean isValid(long requestTime, long responseTime) {
+        return requestTime != CieIdTimestamps.INVALID && responseTime != CieIdTimestamps.INVALID;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value != null && value.isEmpty();
+    }
+
+    private static boolean isNotEmpty(String value) {
+        return value != null && !value.isEmpty();
+    }
+
+    private static class Builder {
+        final List<CieIdCheckRule> rules = new ArrayList<>();
+
+        void add(String id, Cost cost, Predicate<CieIdCheckContext> fails) {
+            add(id, cost, false, fails);
+        }
+
+        void addHeader(String id, Cost cost, Predicate<CieIdCheckContext> fails) {
+            add(id, cost, true, fails);
+        }
+
+        void addCheck(String id, Cost cost, CieIdCheckRule.Check check) {
+            rules.add(new CieIdCheckRule(id, rules.size(), cost, false, check));
+        }
+
+        private void add(String id, Cost cost, boolean header, Predicate<CieIdCheckContext> fails) {
+            String error = "CieIdSamlCheck_" + id;
+            rules.add(new CieIdCheckRule(id, rules.size(), cost, header, c -> fails.test(c) ? error : null));
+        }
+    }
+}
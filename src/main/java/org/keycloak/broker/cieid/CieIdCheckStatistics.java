@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.keycloak.models.RealmModel;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Per-realm execution statistics of the {@link CieIdCheckRules}, along with the rules
+ * disabled in each realm.
+ *
+ * The disabled rules are stored in the {@link #DISABLED_RULES_ATTRIBUTE} realm attribute,
+ * as a comma separated list of rule identifiers, and parsed again only when it changes.
+ */
+public class CieIdCheckStatistics {
+
+    public static final String DISABLED_RULES_ATTRIBUTE = "cieid.checks.disabled";
+
+    /**
+     * The counters of a rule in a realm.
+     */
+    public static class RuleStatistics {
+        private final LongAdder evaluations = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void record(long elapsedNanos, boolean rejected) {
+            evaluations.increment();
+            nanos.add(elapsedNanos);
+            if (rejected)
+                rejections.increment();
+        }
+
+        /**
+         * How many times the rule was run.
+         */
+        public long getEvaluations() {
+            return evaluations.sum();
+        }
+
+        /**
+         * How many times the rule failed, whether its error was the one reported or not.
+         */
+        public long getRejections() {
+            return rejections.sum();
+        }
+
+        /**
+         * The total time spent running the rule, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos.sum();
+        }
+    }
+
+    private static class DisabledRules {
+        final String attribute;
+        final boolean[] disabled;
+
+        DisabledRules(String attribute) {
+            this.attribute = attribute;
+            this.disabled = new boolean[CieIdCheckRules.getRules().size()];
+            for (String id : parse(attribute)) {
+                CieIdCheckRule rule = CieIdCheckRules.getRule(id);
+                if (rule != null)
+                    disabled[rule.getOrder()] = true;
+            }
+        }
+    }
+
+    private static class RealmStatistics {
+        final RuleStatistics[] rules;
+        volatile DisabledRules disabledRules = new DisabledRules(null);
+
+        RealmStatistics() {
+            rules = new RuleStatistics[CieIdCheckRules.getRules().size()];
+            for (int i = 0; i < rules.length; i++)
+                rules[i] = new RuleStatistics();
+        }
+    }
+
+    private final ConcurrentMap<String, RealmStatistics> realms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the counters of the rule in the realm.
+     */
+    public RuleStatistics get(String realmId, CieIdCheckRule rule) {
+        return get(realmId)[rule.getOrder()];
+    }
+
+    /**
+     * Returns the counters of the rules in the realm, indexed by {@link CieIdCheckRule#getOrder()}.
+     */
+    RuleStatistics[] get(String realmId) {
+        return getRealm(realmId).rules;
+    }
+
+    /**
+     * Returns the flags, indexed by {@link CieIdCheckRule#getOrder()}, of the rules disabled in the realm.
+     */
+    boolean[] getDisabled(RealmModel realm) {
+        RealmStatistics realmStatistics = getRealm(realm.getId());
+        String attribute = realm.getAttribute(DISABLED_RULES_ATTRIBUTE);
+        DisabledRules disabledRules = realmStatistics.disabledRules;
+        if (!Objects.equals(disabledRules.attribute, attribute)) {
+            disabledRules = new DisabledRules(attribute);
+            realmStatistics.disabledRules = disabledRules;
+        }
+        return disabledRules.disabled;
+    }
+
+    public void remove(String realmId) {
+        realms.remove(String.valueOf(realmId));
+    }
+
+    public void clear() {
+        realms.clear();
+    }
+
+    private RealmStatistics getRealm(String realmId) {
+        return realms.computeIfAbsent(String.valueOf(realmId), k -> new RealmStatistics());
+    }
+
+    /**
+     * Returns the identifiers of the rules disabled in the realm.
+     */
+    public static Set<String> getDisabledRules(RealmModel realm) {
+        return parse(realm.getAttribute(DISABLED_RULES_ATTRIBUTE));
+    }
+
+    /**
+     * Enables or disables a rule in the realm.
+     */
+    public static void setEnabled(RealmModel realm, CieIdCheckRule rule, boolean enabled) {
+        Set<String> disabled = getDisabledRules(realm);
+        if (enabled)
+            disabled.remove(rule.getId());
+        else
+            disabled.add(rule.getId());
+
+        if (disabled.isEmpty()) {
+            realm.removeAttribute(DISABLED_RULES_ATTRIBUTE);
+        } else {
+            // Keep the attribute in table order, so that it only changes with the set
+            List<String> ids = CieIdCheckRules.getRules().stream()
+                .map(CieIdCheckRule::getId)
+                .filter(disabled::contains)
+                .collect(Collectors.toList());
+            realm.setAttribute(DISABLED_RULES_ATTRIBUTE, String.join(",", ids));
+        }
+    }
+
+    private static Set<String> parse(String attribute) {
+        Set<String> ids = new LinkedHashSet<>();
+        if (attribute != null) {
+            Arrays.stream(attribute.split(","))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .forEach(ids::add);
+        }
+        return ids;
+    }
+}
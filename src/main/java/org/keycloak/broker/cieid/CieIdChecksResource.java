@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.keycloak.broker.cieid;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.PUT;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Lists the CIE ID response validation rules of a realm with their execution statistics on
+ * this node, and enables or disables them.
+ */
+public class CieIdChecksResource {
+
+    public static final String RESOURCE_TYPE = "CIEID_CHECK";
+
+    /**
+     * A rule, with its counters in the realm.
+     */
+    public static class RuleRepresentation {
+        private String id;
+        private int order;
+        private String cost;
+        private Boolean enabled;
+        private long evaluations;
+        private long rejections;
+        private long totalNanos;
+
+        public RuleRepresentation() {
+        }
+
+        RuleRepresentation(CieIdCheckRule rule, boolean enabled, CieIdCheckStatistics.RuleStatistics statistics) {
+            this.id = rule.getId();
+            this.order = rule.getOrder();
+            this.cost = rule.getCost().name();
+            this.enabled = enabled;
+            this.evaluations = statistics.getEvaluations();
+            this.rejections = statistics.getRejections();
+            this.totalNanos = statistics.getNanos();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public int getOrder() {
+            return order;
+        }
+
+        public void setOrder(int order) {
+            this.order = order;
+        }
+
+        public String getCost() {
+            return cost;
+        }
+
+        public void setCost(String cost) {
+            this.cost = cost;
+        }
+
+        public Boolean getEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(Boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getEvaluations() {
+            return evaluations;
+        }
+
+        public void setEvaluations(long evaluations) {
+            this.evaluations = evaluations;
+        }
+
+        public long getRejections() {
+            return rejections;
+        }
+
+        public void setRejections(long rejections) {
+            this.rejections = rejections;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public void setTotalNanos(long totalNanos) {
+            this.totalNanos = totalNanos;
+        }
+
+        public long getAverageNanos() {
+            return evaluations > 0 ? totalNanos / evaluations : 0;
+        }
+    }
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+    private final CieIdCheckStatistics statistics;
+
+    public CieIdChecksResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+                               AdminEventBuilder adminEvent, CieIdCheckStatistics statistics) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent.resource(RESOURCE_TYPE);
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the rules in table order, i.e. the order their errors take precedence in.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<RuleRepresentation> getRules() {
+        auth.realm().requireViewRealm();
+
+        Set<String> disabled = CieIdCheckStatistics.getDisabledRules(realm);
+        return CieIdCheckRules.getRules().stream()
+            .map(rule -> toRepresentation(rule, disabled))
+            .collect(Collectors.toList());
+    }
+
+    @GET
+    @Path("{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public RuleRepresentation getRule(@PathParam("id") String id) {
+        auth.realm().requireViewRealm();
+
+        return toRepresentation(getExistingRule(id), CieIdCheckStatistics.getDisabledRules(realm));
+    }
+
+    /**
+     * Enables or disables the rule in the realm; only the {@code enabled} property is read.
+     */
+    @PUT
+    @Path("{id}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public RuleRepresentation updateRule(@PathParam("id") String id, RuleRepresentation representation) {
+        auth.realm().requireManageRealm();
+
+        CieIdCheckRule rule = getExistingRule(id);
+        if (representation == null || representation.getEnabled() == null)
+            throw new BadRequestException("Missing enabled property");
+
+        CieIdCheckStatistics.setEnabled(realm, rule, representation.getEnabled());
+
+        RuleRepresentation updated = toRepresentation(rule, CieIdCheckStatistics.getDisabledRules(realm));
+        adminEvent.operation(OperationType.UPDATE)
+            .resourcePath(session.getContext().getUri())
+            .representation(updated)
+            .success();
+        return updated;
+    }
+
+    private CieIdCheckRule getExistingRule(String id) {
+        CieIdCheckRule rule = CieIdCheckRules.getRule(id);
+        if (rule == null)
+            throw new NotFoundException("CIE ID check not found");
+        return rule;
+    }
+
+    private RuleRepresentation toRepresentation(CieIdCheckRule rule, Set<String> disabled) {
+        return new RuleRepresentation(rule, !disabled.contains(rule.getId()), statistics.get(realm.getId(), rule));
+    }
+}
@@ -23,10 +23,13 @@ import org.keycloak.broker.provider.AuthenticationRequest;
 import org.keycloak.broker.saml.SAMLIdentityProvider;
 import org.keycloak.broker.saml.SAMLIdentityProviderConfig;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.endpoints.AuthorizationEndpoint;
 import org.keycloak.saml.validators.DestinationValidator;
+import org.keycloak.sessions.AuthenticationSessionModel;
 
 /**
  * CIE ID Identity Provider that extends the standard SAML Identity Provider
@@ -51,15 +54,38 @@ public class CieIdIdentityProvider extends SAMLIdentityProvider {
      */
     public static final String CIEID_FLOW_MARKER = "CIEID_FLOW";
 
-    private final DestinationValidator destinationValidator;
+    /**
+     * Client note key for storing the AttributeConsumingServiceIndex chosen for the request.
+     * Read by CieIdSamlAuthenticationPreprocessor to set it on the AuthnRequest.
+     */
+    public static final String CIEID_ATTRIBUTE_CONSUMING_SERVICE_INDEX = "CIEID_ATTRIBUTE_CONSUMING_SERVICE_INDEX";
+
+    /**
+     * Authorization request parameter used to choose the AttributeConsumingService for a single login,
+     * among the ones the client allows with {@link #ATTRIBUTE_CONSUMING_SERVICE_REQUESTABLE_INDEXES_CLIENT_ATTRIBUTE}.
+     */
+    public static final String ATTRIBUTE_CONSUMING_SERVICE_INDEX_PARAM = "cieid_acs_index";
+
+    /**
+     * Client attribute used to choose the AttributeConsumingService for all the logins of a client.
+     */
+    public static final String ATTRIBUTE_CONSUMING_SERVICE_INDEX_CLIENT_ATTRIBUTE = "cieid.attribute.consuming.service.index";
+
+    /**
+     * Client attribute listing, comma separated, the indexes that the authorization requests of
+     * the client may choose instead of the configured one. The parameter is ignored without it.
+     */
+    public static final String ATTRIBUTE_CONSUMING_SERVICE_REQUESTABLE_INDEXES_CLIENT_ATTRIBUTE = "cieid.attribute.consuming.service.requestable.indexes";
 
     private final CieIdIdentityProviderConfig cieIdConfig;
 
+    private final CieIdIdentityProviderServices services;
+
     public CieIdIdentityProvider(KeycloakSession session, CieIdIdentityProviderConfig config,
-                                DestinationValidator destinationValidator) {
-        super(session, (SAMLIdentityProviderConfig) config, destinationValidator);
+                                CieIdIdentityProviderServices services) {
+        super(session, (SAMLIdentityProviderConfig) config, services.getDestinationValidator());
         this.cieIdConfig = config;
-        this.destinationValidator = destinationValidator;
+        this.services = services;
     }
 
     @Override
@@ -69,10 +95,66 @@ public class CieIdIdentityProvider extends SAMLIdentityProvider {
 
     @Override
     public Response performLogin(AuthenticationRequest request) {
-        request.getAuthenticationSession().setClientNote(CIEID_FLOW_MARKER, "true");
+        AuthenticationSessionModel authSession = request.getAuthenticationSession();
+        authSession.setClientNote(CIEID_FLOW_MARKER, "true");
+
+        Integer attributeConsumingServiceIndex = getAttributeConsumingServiceIndex(authSession);
+        if (attributeConsumingServiceIndex != null)
+            authSession.setClientNote(CIEID_ATTRIBUTE_CONSUMING_SERVICE_INDEX, attributeConsumingServiceIndex.toString());
+        else
+            authSession.removeClientNote(CIEID_ATTRIBUTE_CONSUMING_SERVICE_INDEX);
+
         return super.performLogin(request);
     }
 
+    /**
+     * Returns the AttributeConsumingServiceIndex configured on the client, or the one requested by
+     * the authorization request when the client allows it, or {@code null} to use the default one.
+     * Indexes that are not published in the SP metadata are ignored.
+     */
+    Integer getAttributeConsumingServiceIndex(AuthenticationSessionModel authSession) {
+        ClientModel client = authSession.getClient();
+        String requested = client != null ? client.getAttribute(ATTRIBUTE_CONSUMING_SERVICE_INDEX_CLIENT_ATTRIBUTE) : null;
+
+        // The attributes released to a client are decided by its administrator, not by its requests
+        String parameter = authSession.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX
+            + ATTRIBUTE_CONSUMING_SERVICE_INDEX_PARAM);
+        if (parameter != null && !parameter.isBlank()) {
+            if (isRequestable(client, parameter.trim()))
+                requested = parameter;
+            else
+                logger.warnf("Ignoring the AttributeConsumingServiceIndex %s requested by client %s, which does not allow it",
+                    parameter, client != null ? client.getClientId() : null);
+        }
+
+        if (requested == null || requested.isBlank())
+            return null;
+
+        try {
+            int index = Integer.parseInt(requested.trim());
+            if (getConfig().isAttributeConsumingServiceIndex(index))
+                return index;
+        } catch (IllegalArgumentException e) {
+            // Malformed index or configuration, fall through
+        }
+
+        logger.warnf("Ignoring unknown AttributeConsumingServiceIndex %s requested for CIE ID provider %s",
+            requested, getConfig().getAlias());
+        return null;
+    }
+
+    private static boolean isRequestable(ClientModel client, String index) {
+        String requestable = client != null ? client.getAttribute(ATTRIBUTE_CONSUMING_SERVICE_REQUESTABLE_INDEXES_CLIENT_ATTRIBUTE) : null;
+        if (requestable == null)
+            return false;
+
+        for (String allowed : requestable.split(",")) {
+            if (allowed.trim().equals(index))
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public Response keycloakInitiatedBrowserLogout(KeycloakSession session, UserSessionModel userSession,
                                                     UriInfo uriInfo, RealmModel realm) {
@@ -89,6 +171,6 @@ public class CieIdIdentityProvider extends SAMLIdentityProvider {
 
     @Override
     public Object callback(RealmModel realm, AuthenticationCallback callback, EventBuilder event) {
-        return new CieIdSAMLEndpoint(session, this, getConfig(), callback, destinationValidator);
+        return new CieIdSAMLEndpoint(session, this, getConfig(), callback, services);
     }
 }
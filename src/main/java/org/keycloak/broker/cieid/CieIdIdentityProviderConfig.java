@@ -16,11 +16,15 @@
  */
 package org.keycloak.broker.cieid;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.keycloak.broker.cieid.metadata.CieIdSpMetadataResourceProviderFactory;
 import org.keycloak.broker.saml.SAMLIdentityProviderConfig;
 import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 
@@ -53,6 +57,7 @@ public class CieIdIdentityProviderConfig extends SAMLIdentityProviderConfig {
     public static final String TECHNICAL_CONTACT_EMAIL = "technicalContactEmail";
     public static final String CIEID_RESPONSE_DEBUG_ENABLED = "debugEnabled";
     public static final String METADATA_URL = "metadataUrl";
+    public static final String ADDITIONAL_ATTRIBUTE_CONSUMING_SERVICES = "additionalAttributeConsumingServices";
 
     public CieIdIdentityProviderConfig(){
     }
@@ -277,6 +282,68 @@ public class CieIdIdentityProviderConfig extends SAMLIdentityProviderConfig {
         getConfig().put(CIEID_RESPONSE_DEBUG_ENABLED, String.valueOf(isDebugEnabled));
     }
 
+    public String getAdditionalAttributeConsumingServices() {
+        return getConfig().get(ADDITIONAL_ATTRIBUTE_CONSUMING_SERVICES);
+    }
+
+    public void setAdditionalAttributeConsumingServices(String additionalAttributeConsumingServices) {
+        getConfig().put(ADDITIONAL_ATTRIBUTE_CONSUMING_SERVICES, additionalAttributeConsumingServices);
+    }
+
+    /**
+     * The index of the AttributeConsumingService requested by default, and marked as such
+     * in the SP metadata.
+     */
+    public int getDefaultAttributeConsumingServiceIndex() {
+        return getAttributeConsumingServiceIndex() != null ? getAttributeConsumingServiceIndex() : 1;
+    }
+
+    /**
+     * Parses the additional AttributeConsumingServices, entered as a comma separated list of
+     * "<index>|<name>" strings, i.e. "2|Fiscal number,3|Name and surname". The name is optional.
+     *
+     * @return the service names (or {@code null}) by index, in the configured order
+     * @throws IllegalArgumentException if the list is malformed or reuses an index
+     */
+    public Map<Integer, String> getAdditionalAttributeConsumingServiceNames() {
+        String strServices = getAdditionalAttributeConsumingServices();
+        if (strServices == null || strServices.isBlank())
+            return Collections.emptyMap();
+
+        Map<Integer, String> services = new LinkedHashMap<>();
+        for (String strService: strServices.split(",")) {
+            String[] parts = strService.trim().split("\\|", 2);
+            int index;
+            try {
+                index = Integer.parseInt(parts[0].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid AttributeConsumingService index: " + parts[0]);
+            }
+
+            if (index < 0 || index == getDefaultAttributeConsumingServiceIndex() || services.containsKey(index))
+                throw new IllegalArgumentException("Duplicate or invalid AttributeConsumingService index: " + index);
+
+            services.put(index, parts.length > 1 && !parts[1].isBlank() ? parts[1].trim() : null);
+        }
+        return services;
+    }
+
+    /**
+     * Tells whether the given index identifies the default or one of the additional
+     * AttributeConsumingServices.
+     */
+    public boolean isAttributeConsumingServiceIndex(int index) {
+        return index == getDefaultAttributeConsumingServiceIndex()
+            || getAdditionalAttributeConsumingServiceNames().containsKey(index);
+    }
+
+    @Override
+    public void validate(RealmModel realm) {
+        super.validate(realm);
+        getAdditionalAttributeConsumingServiceNames();
+        CieIdIdpKeyRing.validate(getSigningCertificate());
+    }
+
     public static List<ProviderConfigProperty> getConfigProperties() {
         return ProviderConfigurationBuilder.create()
  
@@ -463,6 +530,13 @@ public class CieIdIdentityProviderConfig extends SAMLIdentityProviderConfig {
         .helpText("identity-provider.cieid.contactEmail.technical.tooltip")
         .add()
 
+        .property()
+        .name(ADDITIONAL_ATTRIBUTE_CONSUMING_SERVICES)
+        .type(ProviderConfigProperty.STRING_TYPE)
+        .label("identity-provider.cieid.additional-attribute-consuming-services")
+        .helpText("identity-provider.cieid.additional-attribute-consuming-services.tooltip")
+        .add()
+
         .property()
         .name(CIEID_RESPONSE_DEBUG_ENABLED)
         .type(ProviderConfigProperty.BOOLEAN_TYPE)
@@ -35,6 +35,8 @@ import org.keycloak.dom.saml.v2.metadata.KeyDescriptorType;
 import org.keycloak.dom.saml.v2.metadata.KeyTypes;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ConfiguredProvider;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
@@ -55,7 +57,13 @@ public class CieIdIdentityProviderFactory extends AbstractIdentityProviderFactor
     private static final String MACEDIR_ENTITY_CATEGORY = "http://macedir.org/entity-category";
     private static final String REFEDS_HIDE_FROM_DISCOVERY = "http://refeds.org/category/hide-from-discovery";
 
-    private DestinationValidator destinationValidator;
+    private final CieIdCheckStatistics checkStatistics = new CieIdCheckStatistics();
+
+    private final CieIdAssertionReplayCache replayCache = new CieIdAssertionReplayCache();
+
+    private final CieIdIdpKeyRings keyRings = new CieIdIdpKeyRings();
+
+    private CieIdIdentityProviderServices services;
 
     @Override
     public String getName() {
@@ -65,7 +73,7 @@ public class CieIdIdentityProviderFactory extends AbstractIdentityProviderFactor
     @Override
     public CieIdIdentityProvider create(KeycloakSession session, IdentityProviderModel model) {
         model.getConfig().put(CieIdIdentityProviderConfig.METADATA_URL, CieIdSpMetadataResourceProvider.getMetadataURL(session).toString());
-        return new CieIdIdentityProvider(session, new CieIdIdentityProviderConfig(model), destinationValidator);
+        return new CieIdIdentityProvider(session, new CieIdIdentityProviderConfig(model), services);
     }
 
     @Override
@@ -202,7 +210,28 @@ public class CieIdIdentityProviderFactory extends AbstractIdentityProviderFactor
     public void init(Scope config) {
         super.init(config);
 
-        this.destinationValidator = DestinationValidator.forProtocolMap(config.getArray("knownProtocols"));
+        this.services = new CieIdIdentityProviderServices(
+            DestinationValidator.forProtocolMap(config.getArray("knownProtocols")), checkStatistics,
+            CieIdResponseLimits.fromScope(config), replayCache, keyRings);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        super.postInit(factory);
+
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent)
+                checkStatistics.remove(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+            else if (event instanceof RealmModel.IdentityProviderRemovedEvent)
+                keyRings.remove(((RealmModel.IdentityProviderRemovedEvent) event).getRemovedIdentityProvider().getInternalId());
+        });
+    }
+
+    /**
+     * The execution statistics of the response validation rules, shared by all the CIE ID providers.
+     */
+    public CieIdCheckStatistics getCheckStatistics() {
+        return checkStatistics;
     }
 
     public List<ProviderConfigProperty> getConfigProperties() {
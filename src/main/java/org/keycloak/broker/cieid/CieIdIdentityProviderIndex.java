@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.IdentityProviderModel;
+import org.keycloak.models.IdentityProviderQuery;
+import org.keycloak.models.IdentityProviderStorageProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Per-realm index of the aliases of the CIE ID providers, so that finding them does not
+ * require going through all the identity providers of the realm.
+ *
+ * The identity providers of a realm are scanned once, when the realm is first looked up;
+ * afterwards the index is kept up to date from the identity provider creation, update and
+ * removal events. Each realm entry is tagged with a version chosen by the caller (e.g. a
+ * cluster-wide generation, see {@link #setVersion}), so that the changes made on other
+ * cluster nodes, which do not publish their events here, cause a new scan.
+ */
+public class CieIdIdentityProviderIndex {
+    protected static final Logger logger = Logger.getLogger(CieIdIdentityProviderIndex.class);
+
+    private static class RealmAliases {
+        volatile String version;
+        // Aliases by internal id, so that renames replace the previous alias
+        final Map<String, String> aliases;
+        volatile List<String> sortedAliases;
+
+        RealmAliases(String version, Map<String, String> aliases) {
+            this.version = version;
+            this.aliases = aliases;
+            this.sortedAliases = sort(aliases);
+        }
+
+        synchronized void put(String id, String alias) {
+            if (!alias.equals(aliases.put(id, alias)))
+                sortedAliases = sort(aliases);
+        }
+
+        synchronized void remove(String id) {
+            if (aliases.remove(id) != null)
+                sortedAliases = sort(aliases);
+        }
+
+        private static List<String> sort(Map<String, String> aliases) {
+            return aliases.values().stream().sorted().collect(Collectors.toUnmodifiableList());
+        }
+    }
+
+    private final ConcurrentMap<String, RealmAliases> realms = new ConcurrentHashMap<>();
+    // Incremented by every change, so that a scan racing with a change is not indexed
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * Returns the CIE ID providers (enabled or not) of the realm of the session, sorted by alias.
+     * The identity providers of the realm are only scanned when the realm is not indexed yet
+     * or was indexed with a different version.
+     */
+    public List<IdentityProviderModel> getProviders(KeycloakSession session, String realmId, String version) {
+        IdentityProviderStorageProvider identityProviderStorage = session.identityProviders();
+
+        RealmAliases realmAliases = realms.get(String.valueOf(realmId));
+        if (realmAliases != null && realmAliases.version.equals(version)) {
+            return realmAliases.sortedAliases.stream()
+                .map(identityProviderStorage::getByAlias)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        }
+
+        long stamp = changes.get();
+        List<IdentityProviderModel> providers = identityProviderStorage.getAllStream(IdentityProviderQuery.userAuthentication())
+            .filter(CieIdIdentityProviderIndex::isCieIdProvider)
+            .sorted(Comparator.comparing(IdentityProviderModel::getAlias))
+            .collect(Collectors.toList());
+
+        Map<String, String> aliases = new ConcurrentHashMap<>();
+        providers.forEach(t -> aliases.put(getKey(t), t.getAlias()));
+        RealmAliases scanned = new RealmAliases(version, aliases);
+        realms.put(String.valueOf(realmId), scanned);
+        if (changes.get() != stamp)
+            realms.remove(String.valueOf(realmId), scanned);
+        else
+            logger.debugf("Indexed %d CIE ID providers for realm %s", aliases.size(), realmId);
+
+        return providers;
+    }
+
+    /**
+     * Records a created or updated identity provider of the realm.
+     */
+    public void put(String realmId, IdentityProviderModel model) {
+        if (!isCieIdProvider(model))
+            return;
+
+        changes.incrementAndGet();
+        RealmAliases realmAliases = realms.get(String.valueOf(realmId));
+        if (realmAliases != null)
+            realmAliases.put(getKey(model), model.getAlias());
+    }
+
+    /**
+     * Records a removed identity provider of the realm.
+     */
+    public void remove(String realmId, IdentityProviderModel model) {
+        if (!isCieIdProvider(model))
+            return;
+
+        changes.incrementAndGet();
+        RealmAliases realmAliases = realms.get(String.valueOf(realmId));
+        if (realmAliases != null)
+            realmAliases.remove(getKey(model));
+    }
+
+    /**
+     * Tags the realm entry with a new version, once the changes that caused it have been
+     * recorded through {@link #put} and {@link #remove}.
+     */
+    public void setVersion(String realmId, String version) {
+        RealmAliases realmAliases = realms.get(String.valueOf(realmId));
+        if (realmAliases != null)
+            realmAliases.version = version;
+    }
+
+    /**
+     * Forgets the realm, which is scanned again on the next lookup. Used for the changes that
+     * are not reported provider by provider, e.g. partial imports.
+     */
+    public void invalidate(String realmId) {
+        changes.incrementAndGet();
+        realms.remove(String.valueOf(realmId));
+    }
+
+    public void clear() {
+        changes.incrementAndGet();
+        realms.clear();
+    }
+
+    private static String getKey(IdentityProviderModel model) {
+        return model.getInternalId() != null ? model.getInternalId() : model.getAlias();
+    }
+
+    public static boolean isCieIdProvider(IdentityProviderModel model) {
+        return model != null && CieIdIdentityProviderFactory.PROVIDER_ID.equals(model.getProviderId());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.keycloak.saml.validators.DestinationValidator;
+
+import java.util.Objects;
+
+/**
+ * The collaborators owned by the {@link CieIdIdentityProviderFactory} and shared by all the
+ * CIE ID providers and endpoints it creates.
+ */
+public final class CieIdIdentityProviderServices {
+
+    private final DestinationValidator destinationValidator;
+    private final CieIdCheckStatistics checkStatistics;
+    private final CieIdResponseLimits responseLimits;
+    private final CieIdAssertionReplayCache replayCache;
+    private final CieIdIdpKeyRings keyRings;
+
+    public CieIdIdentityProviderServices(DestinationValidator destinationValidator,
+                                         CieIdCheckStatistics checkStatistics,
+                                         CieIdResponseLimits responseLimits,
+                                         CieIdAssertionReplayCache replayCache,
+                                         CieIdIdpKeyRings keyRings) {
+        this.destinationValidator = destinationValidator;
+        this.checkStatistics = Objects.requireNonNull(checkStatistics, "checkStatistics");
+        this.responseLimits = Objects.requireNonNull(responseLimits, "responseLimits");
+        this.replayCache = Objects.requireNonNull(replayCache, "replayCache");
+        this.keyRings = Objects.requireNonNull(keyRings, "keyRings");
+    }
+
+    public DestinationValidator getDestinationValidator() {
+        return destinationValidator;
+    }
+
+    public CieIdCheckStatistics getCheckStatistics() {
+        return checkStatistics;
+    }
+
+    public CieIdResponseLimits getResponseLimits() {
+        return responseLimits;
+    }
+
+    /**
+     * The replay cache must be shared by all the providers: an assertion accepted by one provider
+     * is then rejected by the others, and the cluster-wide check is backed by a single near-cache.
+     */
+    public CieIdAssertionReplayCache getReplayCache() {
+        return replayCache;
+    }
+
+    /**
+     * The key rings must be shared by all the providers, so that the certificates of each one
+     * are parsed only when its configuration changes.
+     */
+    public CieIdIdpKeyRings getKeyRings() {
+        return keyRings;
+    }
+}
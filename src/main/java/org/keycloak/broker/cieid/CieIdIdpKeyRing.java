@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.KeyUtils;
+import org.keycloak.rotation.KeyLocator;
+import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
+
+import javax.xml.crypto.XMLStructure;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyName;
+import javax.xml.crypto.dsig.keyinfo.KeyValue;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import java.security.Key;
+import java.security.KeyException;
+import java.security.KeyManagementException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The signing certificates of a CIE ID identity provider, parsed once from its configuration,
+ * with their keys indexed by KeyName (key identifier and certificate subject) and by certificate
+ * digest.
+ *
+ * Like the key locator of the standard SAML endpoint, it only returns the keys of the
+ * certificates valid at the time of the lookup.
+ */
+public final class CieIdIdpKeyRing implements KeyLocator {
+    private static final Logger logger = Logger.getLogger(CieIdIdpKeyRing.class);
+
+    /**
+     * A signing certificate with its validity period.
+     */
+    private static final class Entry {
+        private final X509Certificate certificate;
+        private final PublicKey publicKey;
+        private final long notBefore;
+        private final long notAfter;
+
+        Entry(X509Certificate certificate) {
+            this.certificate = certificate;
+            this.publicKey = certificate.getPublicKey();
+            this.notBefore = certificate.getNotBefore().getTime();
+            this.notAfter = certificate.getNotAfter().getTime();
+        }
+
+        boolean isValidAt(long time) {
+            return time >= notBefore && time <= notAfter;
+        }
+    }
+
+    private final String signingCertificates;
+    private final Clock clock;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byKeyName;
+    private final Map<String, Entry> byCertificateDigest;
+
+    private CieIdIdpKeyRing(String signingCertificates, Clock clock, List<Entry> entries) {
+        this.signingCertificates = signingCertificates;
+        this.clock = clock;
+        this.entries = entries;
+
+        Map<String, Entry> byKeyName = new HashMap<>();
+        Map<String, Entry> byCertificateDigest = new HashMap<>();
+        for (Entry entry : entries) {
+            byKeyName.putIfAbsent(KeyUtils.createKeyId(entry.publicKey), entry);
+            byKeyName.putIfAbsent(entry.certificate.getSubjectX500Principal().getName(), entry);
+            byKeyName.putIfAbsent(entry.certificate.getSubjectX500Principal().toString(), entry);
+            byCertificateDigest.putIfAbsent(digest(entry.certificate), entry);
+        }
+        this.byKeyName = Collections.unmodifiableMap(byKeyName);
+        this.byCertificateDigest = Collections.unmodifiableMap(byCertificateDigest);
+    }
+
+    /**
+     * Parses the signing certificates of an identity provider.
+     *
+     * The certificates that cannot be parsed are logged and left out, so that the key ring is
+     * still cached and the responses fail the signature validation, rather than every login
+     * failing on the parsing again. {@link #validate(String)} reports them when the provider
+     * is saved.
+     *
+     * @param signingCertificates the value of the signingCertificate option, a comma separated
+     *                            list of base64 encoded certificates
+     */
+    public static CieIdIdpKeyRing parse(String signingCertificates, Clock clock) {
+        List<Entry> entries = new ArrayList<>();
+        List<String> encodedCertificates = split(signingCertificates);
+        for (int i = 0; i < encodedCertificates.size(); i++) {
+            X509Certificate certificate;
+            try {
+                certificate = XMLSignatureUtil.getX509CertificateFromKeyInfoString(encodedCertificates.get(i));
+            } catch (ProcessingException | RuntimeException e) {
+                logger.errorf("Ignoring invalid signing certificate #%d: %s", i + 1, e.getMessage());
+                continue;
+            }
+            entries.add(new Entry(certificate));
+            if (certificate.getNotAfter().getTime() < clock.millis())
+                logger.warnf("Ignoring expired certificate: %s", certificate.getSubjectX500Principal());
+        }
+        return new CieIdIdpKeyRing(signingCertificates, clock, Collections.unmodifiableList(entries));
+    }
+
+    /**
+     * Checks that all the signing certificates of an identity provider can be parsed.
+     *
+     * @throws IllegalArgumentException naming the first certificate that cannot be parsed
+     */
+    public static void validate(String signingCertificates) {
+        List<String> encodedCertificates = split(signingCertificates);
+        for (int i = 0; i < encodedCertificates.size(); i++) {
+            try {
+                XMLSignatureUtil.getX509CertificateFromKeyInfoString(encodedCertificates.get(i));
+            } catch (ProcessingException | RuntimeException e) {
+                throw new IllegalArgumentException("Invalid signing certificate #" + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static List<String> split(String signingCertificates) {
+        List<String> encodedCertificates = new ArrayList<>();
+        if (signingCertificates != null) {
+            for (String signingCertificate : signingCertificates.split(",")) {
+                String encoded = signingCertificate.replaceAll("\\s", "");
+                if (!encoded.isEmpty())
+                    encodedCertificates.add(encoded);
+            }
+        }
+        return encodedCertificates;
+    }
+
+    /**
+     * Whether this key ring was parsed from the given signing certificates.
+     */
+    public boolean isParsedFrom(String signingCertificates) {
+        return Objects.equals(this.signingCertificates, signingCertificates);
+    }
+
+    /**
+     * The number of certificates of the key ring, valid or not.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Key getKey(String kid) {
+        return kid == null ? null : validKey(byKeyName.get(kid));
+    }
+
+    /**
+     * The key of a certificate of the key ring, or {@code null}.
+     */
+    public Key getKey(X509Certificate certificate) {
+        return validKey(byCertificateDigest.get(digest(certificate)));
+    }
+
+    @Override
+    public Key getKey(Key key) {
+        if (key == null)
+            return null;
+        long now = clock.millis();
+        for (Entry entry : entries) {
+            if (entry.isValidAt(now) && entry.publicKey.getAlgorithm().equals(key.getAlgorithm())
+                    && MessageDigest.isEqual(entry.publicKey.getEncoded(), key.getEncoded()))
+                return entry.publicKey;
+        }
+        return null;
+    }
+
+    @Override
+    public Key getKey(KeyInfo keyInfo) throws KeyManagementException {
+        if (keyInfo == null)
+            return null;
+        try {
+            for (Object content : keyInfo.getContent()) {
+                XMLStructure structure = (XMLStructure) content;
+                Key key = null;
+                if (structure instanceof X509Data) {
+                    for (Object data : ((X509Data) structure).getContent()) {
+                        if (data instanceof X509Certificate && (key = getKey((X509Certificate) data)) != null)
+                            break;
+                    }
+                } else if (structure instanceof KeyName) {
+                    key = getKey(((KeyName) structure).getName());
+                } else if (structure instanceof KeyValue) {
+                    key = getKey(((KeyValue) structure).getPublicKey());
+                }
+                if (key != null)
+                    return key;
+            }
+        } catch (KeyException e) {
+            throw new KeyManagementException(e);
+        }
+        return null;
+    }
+
+    @Override
+    public void refreshKeyCache() {
+        // The key ring is rebuilt when the configuration changes
+    }
+
+    @Override
+    public Iterator<Key> iterator() {
+        long now = clock.millis();
+        List<Key> keys = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (entry.isValidAt(now))
+                keys.add(entry.publicKey);
+        }
+        return keys.iterator();
+    }
+
+    @Override
+    public String toString() {
+        return "CieIdIdpKeyRing[" + entries.size() + " certificates]";
+    }
+
+    private Key validKey(Entry entry) {
+        return entry != null && entry.isValidAt(clock.millis()) ? entry.publicKey : null;
+    }
+
+    private static String digest(X509Certificate certificate) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
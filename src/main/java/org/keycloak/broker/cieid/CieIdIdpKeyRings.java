@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.keycloak.broker.saml.SAMLIdentityProviderConfig;
+
+import java.time.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link CieIdIdpKeyRing} of each CIE ID identity provider, by internal identifier.
+ *
+ * A key ring is parsed again only when the signingCertificate option of its provider changes,
+ * so that a change made on another node of the cluster is also noticed.
+ */
+public class CieIdIdpKeyRings {
+
+    private final Clock clock;
+
+    private final ConcurrentMap<String, CieIdIdpKeyRing> keyRings = new ConcurrentHashMap<>();
+
+    public CieIdIdpKeyRings() {
+        this(Clock.systemUTC());
+    }
+
+    public CieIdIdpKeyRings(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * The key ring of the signing certificates of an identity provider.
+     */
+    public CieIdIdpKeyRing get(SAMLIdentityProviderConfig config) {
+        String signingCertificates = config.getConfig().get(SAMLIdentityProviderConfig.SIGNING_CERTIFICATE_KEY);
+        if (config.getInternalId() == null)
+            return CieIdIdpKeyRing.parse(signingCertificates, clock);
+
+        CieIdIdpKeyRing keyRing = keyRings.get(config.getInternalId());
+        if (keyRing == null || !keyRing.isParsedFrom(signingCertificates)) {
+            keyRing = CieIdIdpKeyRing.parse(signingCertificates, clock);
+            keyRings.put(config.getInternalId(), keyRing);
+        }
+        return keyRing;
+    }
+
+    /**
+     * Forgets the key ring of a removed identity provider.
+     */
+    public void remove(String internalId) {
+        if (internalId != null)
+            keyRings.remove(internalId);
+    }
+}
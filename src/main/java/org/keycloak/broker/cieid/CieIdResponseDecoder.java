@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes the SAMLResponse parameter of the POST and Redirect bindings as a stream, within
+ * the {@link CieIdResponseLimits}: the output buffer never grows beyond the maximum decoded
+ * size, and inflating stops as soon as the output outgrows the input by more than the
+ * maximum ratio.
+ */
+public final class CieIdResponseDecoder {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private CieIdResponseDecoder() {
+    }
+
+    /**
+     * Decodes a response of the POST binding, which is base64 encoded.
+     *
+     * @throws CieIdResponseLimits.ExceededException if the decoded response is too large
+     * @throws IOException if the response is not valid base64
+     */
+    public static byte[] decodePostBinding(String samlResponse, CieIdResponseLimits limits) throws IOException {
+        // Four base64 characters give at most three bytes
+        long estimatedSize = (long) samlResponse.length() / 4 * 3;
+        InputStream is = Base64.getMimeDecoder().wrap(new AsciiInputStream(samlResponse));
+        return read(is, (int) Math.min(estimatedSize, limits.getMaxDecodedSize()), limits, null);
+    }
+
+    /**
+     * Decodes a response of the Redirect binding, which is deflated and base64 encoded.
+     *
+     * @throws CieIdResponseLimits.ExceededException if the inflated response is too large or too
+     *                                               compressed
+     * @throws IOException if the response is not valid base64 or deflate data
+     */
+    public static byte[] decodeRedirectBinding(String samlResponse, CieIdResponseLimits limits) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            InputStream is = new InflaterInputStream(Base64.getMimeDecoder().wrap(new AsciiInputStream(samlResponse)),
+                inflater, BUFFER_SIZE);
+            return read(is, Math.min(BUFFER_SIZE, limits.getMaxDecodedSize()), limits, inflater);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] read(InputStream is, int initialSize, CieIdResponseLimits limits, Inflater inflater)
+            throws IOException {
+        int maxSize = limits.getMaxDecodedSize();
+        byte[] buffer = new byte[Math.max(initialSize, 1)];
+        int size = 0;
+        while (true) {
+            if (size == buffer.length) {
+                if (size >= maxSize) {
+                    if (is.read() != -1)
+                        throw new CieIdResponseLimits.ExceededException(CieIdResponseLimits.MAX_DECODED_SIZE);
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(maxSize, 2L * size));
+            }
+
+            int read = is.read(buffer, size, buffer.length - size);
+            if (read < 0)
+                break;
+            size += read;
+
+            // A small output can be far larger than the few bytes of input read so far
+            if (inflater != null && inflater.getBytesWritten() > BUFFER_SIZE
+                    && inflater.getBytesWritten() > (long) limits.getMaxInflateRatio() * inflater.getBytesRead())
+                throw new CieIdResponseLimits.ExceededException(CieIdResponseLimits.MAX_INFLATE_RATIO);
+        }
+        return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Reads the characters of a string as bytes, without copying it. Characters outside of
+     * ASCII are not base64 characters and are read as such.
+     */
+    private static final class AsciiInputStream extends InputStream {
+        private final String value;
+        private int position;
+
+        AsciiInputStream(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public int read() {
+            return position < value.length() ? toByte(value.charAt(position++)) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (position >= value.length())
+                return -1;
+            int count = Math.min(len, value.length() - position);
+            for (int i = 0; i < count; i++)
+                b[off + i] = (byte) toByte(value.charAt(position++));
+            return count;
+        }
+
+        private static int toByte(char c) {
+            return c < 0x80 ? c : 0x80;
+        }
+    }
+}
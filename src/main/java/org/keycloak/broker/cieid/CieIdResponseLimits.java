@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.keycloak.Config.Scope;
+
+import java.io.IOException;
+
+/**
+ * Server-level limits applied to the SAML responses received by the CIE ID providers while
+ * they are decoded and prevalidated, read from the
+ * {@code spi-identity-provider--cieid-saml--response-*} configuration keys.
+ */
+public class CieIdResponseLimits {
+
+    /**
+     * Event error of a response rejected because it exceeds one of the limits.
+     */
+    public static final String LIMIT_EXCEEDED_ERROR = "cieid_response_limit_exceeded";
+
+    public static final String MAX_DECODED_SIZE = "responseMaxDecodedSize";
+    public static final String MAX_INFLATE_RATIO = "responseMaxInflateRatio";
+    public static final String MAX_ELEMENT_DEPTH = "responseMaxElementDepth";
+    public static final String MAX_ATTRIBUTES = "responseMaxAttributes";
+
+    public static final int DEFAULT_MAX_DECODED_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_INFLATE_RATIO = 100;
+    public static final int DEFAULT_MAX_ELEMENT_DEPTH = 32;
+    public static final int DEFAULT_MAX_ATTRIBUTES = 32;
+
+    /**
+     * Thrown when a response exceeds one of the limits.
+     */
+    public static class ExceededException extends IOException {
+        private final String limit;
+
+        public ExceededException(String limit) {
+            super("SAML response exceeds the " + limit + " limit");
+            this.limit = limit;
+        }
+
+        /**
+         * The name of the configuration key of the limit, e.g. {@link #MAX_DECODED_SIZE}.
+         */
+        public String getLimit() {
+            return limit;
+        }
+    }
+
+    private int maxDecodedSize = DEFAULT_MAX_DECODED_SIZE;
+    private int maxInflateRatio = DEFAULT_MAX_INFLATE_RATIO;
+    private int maxElementDepth = DEFAULT_MAX_ELEMENT_DEPTH;
+    private int maxAttributes = DEFAULT_MAX_ATTRIBUTES;
+
+    public static CieIdResponseLimits fromScope(Scope config) {
+        CieIdResponseLimits limits = new CieIdResponseLimits();
+        limits.maxDecodedSize = config.getInt(MAX_DECODED_SIZE, DEFAULT_MAX_DECODED_SIZE);
+        limits.maxInflateRatio = config.getInt(MAX_INFLATE_RATIO, DEFAULT_MAX_INFLATE_RATIO);
+        limits.maxElementDepth = config.getInt(MAX_ELEMENT_DEPTH, DEFAULT_MAX_ELEMENT_DEPTH);
+        limits.maxAttributes = config.getInt(MAX_ATTRIBUTES, DEFAULT_MAX_ATTRIBUTES);
+        return limits;
+    }
+
+    /**
+     * Maximum size of a decoded (and inflated) response, in bytes.
+     */
+    public int getMaxDecodedSize() {
+        return maxDecodedSize;
+    }
+
+    public void setMaxDecodedSize(int maxDecodedSize) {
+        this.maxDecodedSize = maxDecodedSize;
+    }
+
+    /**
+     * Maximum ratio between the inflated and the deflated size of a response received with the
+     * Redirect binding.
+     */
+    public int getMaxInflateRatio() {
+        return maxInflateRatio;
+    }
+
+    public void setMaxInflateRatio(int maxInflateRatio) {
+        this.maxInflateRatio = maxInflateRatio;
+    }
+
+    /**
+     * Maximum nesting depth of the elements of a response, the Response element being at depth 1.
+     */
+    public int getMaxElementDepth() {
+        return maxElementDepth;
+    }
+
+    public void setMaxElementDepth(int maxElementDepth) {
+        this.maxElementDepth = maxElementDepth;
+    }
+
+    /**
+     * Maximum number of attributes of an element of a response, namespace declarations excluded.
+     */
+    public int getMaxAttributes() {
+        return maxAttributes;
+    }
+
+    public void setMaxAttributes(int maxAttributes) {
+        this.maxAttributes = maxAttributes;
+    }
+}
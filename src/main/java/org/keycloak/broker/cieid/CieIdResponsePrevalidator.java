@@ -0,0 +1,351 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.jboss.logging.Logger;
+import org.keycloak.saml.common.constants.JBossSAMLConstants;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Reads the Response element of a decoded SAML response with StAX, before the response is
+ * parsed into a DOM and its signatures verified or its assertions decrypted, so that the
+ * {@link CieIdCheckRules} that only look at the Response element and its Issuer can reject
+ * it early.
+ *
+ * The children of the Response must come in schema order: Issuer, Signature, Extensions,
+ * Status, then the assertions. The assertions themselves are skipped without being read,
+ * but the whole document is streamed to enforce the element depth and attribute count
+ * {@link CieIdResponseLimits}.
+ */
+public final class CieIdResponsePrevalidator {
+    private static final Logger logger = Logger.getLogger(CieIdResponsePrevalidator.class);
+
+    public enum Outcome {
+        /** The document is not a SAML Response, e.g. it is a LogoutResponse */
+        NOT_A_RESPONSE,
+        /** The document is not well formed, or the children of the Response are out of order */
+        MALFORMED,
+        /** The document exceeds the element depth or attribute count limits */
+        LIMIT_EXCEEDED,
+        /** The Response has no Status or is not successful, and is left to the standard processing */
+        UNSUCCESSFUL,
+        /** The Response is successful and its header can be checked */
+        SUCCESSFUL
+    }
+
+    /**
+     * What was read from the document.
+     */
+    public static final class Result {
+        private final Outcome outcome;
+        private final CieIdResponseView header;
+        private final String exceededLimit;
+
+        private Result(Outcome outcome, CieIdResponseView header, String exceededLimit) {
+            this.outcome = outcome;
+            this.header = header;
+            this.exceededLimit = exceededLimit;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * The limit exceeded by a {@link Outcome#LIMIT_EXCEEDED} response, e.g.
+         * {@link CieIdResponseLimits#MAX_ELEMENT_DEPTH}.
+         */
+        public String getExceededLimit() {
+            return exceededLimit;
+        }
+
+        /**
+         * The view of the Response element and its Issuer, without any assertion, or
+         * {@code null} unless the response is {@link Outcome#SUCCESSFUL}.
+         */
+        public CieIdResponseView getHeader() {
+            return header;
+        }
+    }
+
+    private static final Result NOT_A_RESPONSE = new Result(Outcome.NOT_A_RESPONSE, null, null);
+    private static final Result MALFORMED = new Result(Outcome.MALFORMED, null, null);
+    private static final Result UNSUCCESSFUL = new Result(Outcome.UNSUCCESSFUL, null, null);
+
+    private static final String ASSERTION_NSURI = JBossSAMLURIConstants.ASSERTION_NSURI.get();
+    private static final String PROTOCOL_NSURI = JBossSAMLURIConstants.PROTOCOL_NSURI.get();
+    private static final String XMLDSIG_NSURI = JBossSAMLURIConstants.XMLDSIG_NSURI.get();
+    private static final String STATUS_SUCCESS = JBossSAMLURIConstants.STATUS_SUCCESS.get();
+
+    // Position of the children of the Response in the schema
+    private static final int ISSUER = 1;
+    private static final int SIGNATURE = 2;
+    private static final int EXTENSIONS = 3;
+    private static final int STATUS = 4;
+    private static final int ASSERTION = 5;
+
+    // Configured like the StAX parsers of Keycloak: no DTD and no external entities
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newDefaultFactory();
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory;
+    });
+
+    private CieIdResponsePrevalidator() {
+    }
+
+    /**
+     * Reads the Response element of the decoded document, within the default limits.
+     */
+    public static Result read(byte[] document) {
+        return read(document, new CieIdResponseLimits());
+    }
+
+    /**
+     * Reads the Response element of the decoded document.
+     */
+    public static Result read(byte[] document, CieIdResponseLimits limits) {
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.get().createXMLStreamReader(new ByteArrayInputStream(document));
+            return new Scanner(reader, limits).read();
+        } catch (XMLStreamException e) {
+            logger.debugf("Malformed SAML response: %s", e.getMessage());
+            return MALFORMED;
+        } catch (CieIdResponseLimits.ExceededException e) {
+            logger.debug(e.getMessage());
+            return new Result(Outcome.LIMIT_EXCEEDED, null, e.getLimit());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing to release, the input is in memory
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams a document, keeping track of the depth of the current element.
+     */
+    private static final class Scanner {
+        private final XMLStreamReader reader;
+        private final CieIdResponseLimits limits;
+        private int depth;
+
+        Scanner(XMLStreamReader reader, CieIdResponseLimits limits) {
+            this.reader = reader;
+            this.limits = limits;
+        }
+
+        /**
+         * Moves to the next event, checking the limits on the start of each element.
+         */
+        private int next() throws XMLStreamException, CieIdResponseLimits.ExceededException {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (++depth > limits.getMaxElementDepth())
+                    throw new CieIdResponseLimits.ExceededException(CieIdResponseLimits.MAX_ELEMENT_DEPTH);
+                if (reader.getAttributeCount() > limits.getMaxAttributes())
+                    throw new CieIdResponseLimits.ExceededException(CieIdResponseLimits.MAX_ATTRIBUTES);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+            return event;
+        }
+
+        Result read() throws XMLStreamException, CieIdResponseLimits.ExceededException {
+            int event = next();
+            while (event != XMLStreamConstants.START_ELEMENT) {
+                // Keycloak rejects documents with a DOCTYPE
+                if (event == XMLStreamConstants.DTD)
+                    return MALFORMED;
+                event = next();
+            }
+
+            if (!isElement(reader, PROTOCOL_NSURI, JBossSAMLConstants.RESPONSE__PROTOCOL.get())) {
+                // Other messages are left to the standard processing, within the same limits
+                skipElement();
+                return NOT_A_RESPONSE;
+            }
+
+            String id = emptyIfNull(getAttribute(reader, "ID"));
+            String issueInstant = emptyIfNull(getAttribute(reader, "IssueInstant"));
+            String inResponseTo = getAttribute(reader, "InResponseTo");
+            String destination = emptyIfNull(getAttribute(reader, "Destination"));
+
+            CieIdResponseView.ElementView issuer = CieIdResponseView.MISSING;
+            boolean successful = false;
+            int position = 0;
+            while ((event = next()) != XMLStreamConstants.END_ELEMENT) {
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+
+                int childPosition = getPosition();
+                // Only the assertions can be repeated
+                if (childPosition < position || (childPosition == position && childPosition != ASSERTION)) {
+                    logger.debugf("Unexpected element %s in SAML response", reader.getName());
+                    return MALFORMED;
+                }
+                position = childPosition;
+
+                if (childPosition == ISSUER) {
+                    issuer = readIssuer();
+                } else if (childPosition == STATUS) {
+                    successful = readStatus();
+                } else {
+                    skipElement();
+                }
+            }
+
+            if (!successful)
+                return UNSUCCESSFUL;
+            return new Result(Outcome.SUCCESSFUL,
+                CieIdResponseView.ofHeader(id, issueInstant, inResponseTo, destination, issuer), null);
+        }
+
+        private int getPosition() {
+            String namespace = reader.getNamespaceURI();
+            String name = reader.getLocalName();
+            if (ASSERTION_NSURI.equals(namespace)) {
+                if (JBossSAMLConstants.ISSUER.get().equals(name))
+                    return ISSUER;
+                if (JBossSAMLConstants.ASSERTION.get().equals(name) || JBossSAMLConstants.ENCRYPTED_ASSERTION.get().equals(name))
+                    return ASSERTION;
+            } else if (PROTOCOL_NSURI.equals(namespace)) {
+                if (JBossSAMLConstants.EXTENSIONS__PROTOCOL.get().equals(name))
+                    return EXTENSIONS;
+                if (JBossSAMLConstants.STATUS.get().equals(name))
+                    return STATUS;
+            } else if (XMLDSIG_NSURI.equals(namespace) && JBossSAMLConstants.SIGNATURE.get().equals(name)) {
+                return SIGNATURE;
+            }
+            return -1;
+        }
+
+        /**
+         * Reads the Issuer like {@link CieIdResponseView} does from the DOM: its text is the value
+         * of its first child node.
+         */
+        private CieIdResponseView.ElementView readIssuer() throws XMLStreamException, CieIdResponseLimits.ExceededException {
+            String format = getAttribute(reader, "Format");
+            String text = null;
+            boolean childElements = false;
+
+            int event = next();
+            switch (event) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    // The parser may split a text node in several events
+                    int textEvent = event == XMLStreamConstants.CDATA ? XMLStreamConstants.CDATA : XMLStreamConstants.CHARACTERS;
+                    text = reader.getText();
+                    StringBuilder builder = null;
+                    while ((event = next()) == textEvent
+                            || (textEvent == XMLStreamConstants.CHARACTERS && event == XMLStreamConstants.SPACE)) {
+                        if (builder == null)
+                            builder = new StringBuilder(text);
+                        builder.append(reader.getText());
+                    }
+                    if (builder != null)
+                        text = builder.toString();
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    text = reader.getText();
+                    event = next();
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    text = reader.getPIData();
+                    event = next();
+                    break;
+                default:
+                    break;
+            }
+
+            while (event != XMLStreamConstants.END_ELEMENT) {
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    childElements = true;
+                    skipElement();
+                }
+                event = next();
+            }
+
+            return CieIdResponseView.issuerOf(text, childElements, format);
+        }
+
+        /**
+         * Tells whether the first StatusCode of the Status has the Success value.
+         */
+        private boolean readStatus() throws XMLStreamException, CieIdResponseLimits.ExceededException {
+            boolean successful = false;
+            boolean first = true;
+            int event;
+            while ((event = next()) != XMLStreamConstants.END_ELEMENT) {
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                if (first && isElement(reader, PROTOCOL_NSURI, JBossSAMLConstants.STATUS_CODE.get()))
+                    successful = STATUS_SUCCESS.equals(getAttribute(reader, "Value"));
+                first = false;
+                skipElement();
+            }
+            return successful;
+        }
+
+        /**
+         * Skips the current element, leaving the reader on its end.
+         */
+        private void skipElement() throws XMLStreamException, CieIdResponseLimits.ExceededException {
+            int depth = 1;
+            while (depth > 0) {
+                int event = next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                    depth++;
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                    depth--;
+            }
+        }
+    }
+
+    private static boolean isElement(XMLStreamReader reader, String namespace, String name) {
+        return namespace.equals(reader.getNamespaceURI()) && name.equals(reader.getLocalName());
+    }
+
+    /**
+     * Returns the value of the unqualified attribute, like {@link org.w3c.dom.Element#getAttributeNode}.
+     */
+    private static String getAttribute(XMLStreamReader reader, String name) {
+        for (int i = 0, count = reader.getAttributeCount(); i < count; i++) {
+            String prefix = reader.getAttributePrefix(i);
+            if ((prefix == null || prefix.isEmpty()) && name.equals(reader.getAttributeLocalName(i)))
+                return reader.getAttributeValue(i);
+        }
+        return null;
+    }
+
+    private static String emptyIfNull(String value) {
+        return value != null ? value : "";
+    }
+}
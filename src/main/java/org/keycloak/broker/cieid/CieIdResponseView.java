@@ -0,0 +1,403 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.keycloak.saml.common.util.StringUtil;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Immutable view of the parts of a SAML response checked by {@link CieIdChecks}, extracted
+ * from the DOM in a single traversal so that the checks do not have to look up the same
+ * elements and attributes again.
+ *
+ * Like the DOM lookups it replaces, each element is the first direct child with the given
+ * local name, whatever its namespace. Missing elements are represented by {@link #MISSING}.
+ */
+public final class CieIdResponseView {
+
+    /**
+     * An element of the response, with its text and the attributes checked by CIE ID.
+     */
+    public static final class ElementView {
+        private final boolean present;
+        private final boolean childElements;
+        private final String text;
+        private final boolean hasText;
+        private final String[] attributeNames;
+        private final String[] attributeValues;
+
+        private ElementView(boolean present, boolean childElements, String text, boolean hasText,
+                            String[] attributeNames, String[] attributeValues) {
+            this.present = present;
+            this.childElements = childElements;
+            this.text = text;
+            this.hasText = hasText;
+            this.attributeNames = attributeNames;
+            this.attributeValues = attributeValues;
+        }
+
+        public boolean isPresent() {
+            return present;
+        }
+
+        /**
+         * Whether the element has child elements, i.e. it is not empty.
+         */
+        public boolean hasChildElements() {
+            return childElements;
+        }
+
+        /**
+         * The value of the first child node of the element, or {@code null} if it has none.
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Whether the element has only a non blank text.
+         */
+        public boolean hasText() {
+            return hasText;
+        }
+
+        public boolean hasAttribute(String name) {
+            return getAttribute(name) != null;
+        }
+
+        /**
+         * Returns the value of one of the attributes extracted from the element, or {@code null}
+         * if the element does not have it.
+         */
+        public String getAttribute(String name) {
+            for (int i = 0; i < attributeNames.length; i++) {
+                if (attributeNames[i].equals(name))
+                    return attributeValues[i];
+            }
+            return null;
+        }
+    }
+
+    public static final ElementView MISSING = new ElementView(false, false, null, false, new String[0], new String[0]);
+
+    private static final String[] RESPONSE_CHILDREN = {"Issuer", "Assertion"};
+    private static final String[] ASSERTION_CHILDREN = {"Issuer", "Subject", "Conditions", "AuthnStatement"};
+    private static final String[] SUBJECT_CHILDREN = {"NameID", "SubjectConfirmation"};
+    private static final String[] SUBJECT_CONFIRMATION_CHILDREN = {"SubjectConfirmationData"};
+    private static final String[] CONDITIONS_CHILDREN = {"AudienceRestriction"};
+    private static final String[] AUTHN_STATEMENT_CHILDREN = {"AuthnContext"};
+    private static final String[] AUTHN_CONTEXT_CHILDREN = {"AuthnContextClassRef"};
+
+    private static final String[] ISSUER_ATTRIBUTES = {"Format"};
+    private static final String[] NAME_ID_ATTRIBUTES = {"Format", "NameQualifier"};
+    private static final String[] SUBJECT_CONFIRMATION_ATTRIBUTES = {"Method"};
+    private static final String[] SUBJECT_CONFIRMATION_DATA_ATTRIBUTES = {"Recipient", "InResponseTo", "NotOnOrAfter"};
+    private static final String[] CONDITIONS_ATTRIBUTES = {"NotBefore", "NotOnOrAfter"};
+    private static final String[] NONE = {};
+
+    private final String id;
+    private final String issueInstant;
+    private final long issueInstantTime;
+    private final String inResponseTo;
+    private final String destination;
+    private final ElementView issuer;
+
+    private final Element assertionElement;
+    private final String assertionId;
+    private final long assertionIssueInstantTime;
+    private final ElementView assertionIssuer;
+    private final ElementView subject;
+    private final ElementView nameId;
+    private final ElementView subjectConfirmation;
+    private final ElementView subjectConfirmationData;
+    private final long subjectConfirmationNotOnOrAfterTime;
+    private final ElementView conditions;
+    private final ElementView audienceRestriction;
+    private final ElementView authnStatement;
+    private final ElementView authnContext;
+    private final ElementView authnContextClassRef;
+
+    private CieIdResponseView(Element responseElement, Element decryptedAssertionElement) {
+        id = responseElement.getAttribute("ID");
+        issueInstant = responseElement.getAttribute("IssueInstant");
+        issueInstantTime = CieIdTimestamps.parse(issueInstant);
+        inResponseTo = getAttribute(responseElement, "InResponseTo");
+        destination = responseElement.getAttribute("Destination");
+
+        Element[] responseChildren = new Element[RESPONSE_CHILDREN.length];
+        findChildren(responseElement, RESPONSE_CHILDREN, responseChildren);
+        issuer = readText(responseChildren[0], ISSUER_ATTRIBUTES);
+
+        assertionElement = decryptedAssertionElement != null ? decryptedAssertionElement : responseChildren[1];
+        Element[] assertionChildren = new Element[ASSERTION_CHILDREN.length];
+        if (assertionElement != null) {
+            assertionId = assertionElement.getAttribute("ID");
+            assertionIssueInstantTime = CieIdTimestamps.parse(assertionElement.getAttribute("IssueInstant"));
+            findChildren(assertionElement, ASSERTION_CHILDREN, assertionChildren);
+        } else {
+            assertionId = "";
+            assertionIssueInstantTime = CieIdTimestamps.INVALID;
+        }
+        assertionIssuer = readText(assertionChildren[0], ISSUER_ATTRIBUTES);
+
+        Element[] subjectChildren = new Element[SUBJECT_CHILDREN.length];
+        subject = readContainer(assertionChildren[1], NONE, SUBJECT_CHILDREN, subjectChildren);
+        nameId = readText(subjectChildren[0], NAME_ID_ATTRIBUTES);
+
+        Element[] subjectConfirmationChildren = new Element[SUBJECT_CONFIRMATION_CHILDREN.length];
+        subjectConfirmation = readContainer(subjectChildren[1], SUBJECT_CONFIRMATION_ATTRIBUTES,
+            SUBJECT_CONFIRMATION_CHILDREN, subjectConfirmationChildren);
+        subjectConfirmationData = readContainer(subjectConfirmationChildren[0], SUBJECT_CONFIRMATION_DATA_ATTRIBUTES,
+            NONE, null);
+        subjectConfirmationNotOnOrAfterTime = CieIdTimestamps.parse(subjectConfirmationData.getAttribute("NotOnOrAfter"));
+
+        Element[] conditionsChildren = new Element[CONDITIONS_CHILDREN.length];
+        conditions = readContainer(assertionChildren[2], CONDITIONS_ATTRIBUTES, CONDITIONS_CHILDREN, conditionsChildren);
+        audienceRestriction = readContainer(conditionsChildren[0], NONE, NONE, null);
+
+        Element[] authnStatementChildren = new Element[AUTHN_STATEMENT_CHILDREN.length];
+        authnStatement = readContainer(assertionChildren[3], NONE, AUTHN_STATEMENT_CHILDREN, authnStatementChildren);
+        Element[] authnContextChildren = new Element[AUTHN_CONTEXT_CHILDREN.length];
+        authnContext = readContainer(authnStatementChildren[0], NONE, AUTHN_CONTEXT_CHILDREN, authnContextChildren);
+        authnContextClassRef = readText(authnContextChildren[0], NONE);
+    }
+
+    private CieIdResponseView(String id, String issueInstant, String inResponseTo, String destination, ElementView issuer) {
+        this.id = id;
+        this.issueInstant = issueInstant;
+        this.issueInstantTime = CieIdTimestamps.parse(issueInstant);
+        this.inResponseTo = inResponseTo;
+        this.destination = destination;
+        this.issuer = issuer;
+
+        assertionElement = null;
+        assertionId = "";
+        assertionIssueInstantTime = CieIdTimestamps.INVALID;
+        assertionIssuer = MISSING;
+        subject = MISSING;
+        nameId = MISSING;
+        subjectConfirmation = MISSING;
+        subjectConfirmationData = MISSING;
+        subjectConfirmationNotOnOrAfterTime = CieIdTimestamps.INVALID;
+        conditions = MISSING;
+        audienceRestriction = MISSING;
+        authnStatement = MISSING;
+        authnContext = MISSING;
+        authnContextClassRef = MISSING;
+    }
+
+    /**
+     * Reads the view of a response whose assertion is not encrypted.
+     */
+    public static CieIdResponseView of(Element responseElement) {
+        return new CieIdResponseView(responseElement, null);
+    }
+
+    /**
+     * Reads the view of a response, taking the assertion from the given element when the
+     * one of the response is encrypted.
+     *
+     * @param assertionElement the decrypted assertion, or {@code null} to use the one of the response
+     */
+    public static CieIdResponseView of(Element responseElement, Element assertionElement) {
+        return new CieIdResponseView(responseElement, assertionElement);
+    }
+
+    /**
+     * Builds the view of the Response element and its Issuer only, read by
+     * {@link CieIdResponsePrevalidator} before the response is parsed. The assertion is missing.
+     */
+    static CieIdResponseView ofHeader(String id, String issueInstant, String inResponseTo, String destination,
+                                      ElementView issuer) {
+        return new CieIdResponseView(id, issueInstant, inResponseTo, destination, issuer);
+    }
+
+    /**
+     * Builds the view of an Issuer element.
+     *
+     * @param text the value of its first child node, {@code null} if it has none or it is an element
+     */
+    static ElementView issuerOf(String text, boolean childElements, String format) {
+        boolean hasText = StringUtil.isNotNull(text) && !childElements;
+        return new ElementView(true, childElements, text, hasText, ISSUER_ATTRIBUTES, new String[] {format});
+    }
+
+    /**
+     * The ID of the response, empty when missing.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The IssueInstant of the response, empty when missing.
+     */
+    public String getIssueInstant() {
+        return issueInstant;
+    }
+
+    /**
+     * The IssueInstant of the response in milliseconds, or {@link CieIdTimestamps#INVALID}.
+     */
+    public long getIssueInstantTime() {
+        return issueInstantTime;
+    }
+
+    /**
+     * The InResponseTo of the response, {@code null} when missing.
+     */
+    public String getInResponseTo() {
+        return inResponseTo;
+    }
+
+    /**
+     * The Destination of the response, empty when missing.
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    public ElementView getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * The (decrypted) assertion, or {@code null} if the response has none.
+     */
+    public Element getAssertionElement() {
+        return assertionElement;
+    }
+
+    /**
+     * The ID of the assertion, empty when missing.
+     */
+    public String getAssertionId() {
+        return assertionId;
+    }
+
+    /**
+     * The IssueInstant of the assertion in milliseconds, or {@link CieIdTimestamps#INVALID}.
+     */
+    public long getAssertionIssueInstantTime() {
+        return assertionIssueInstantTime;
+    }
+
+    public ElementView getAssertionIssuer() {
+        return assertionIssuer;
+    }
+
+    public ElementView getSubject() {
+        return subject;
+    }
+
+    public ElementView getNameId() {
+        return nameId;
+    }
+
+    public ElementView getSubjectConfirmation() {
+        return subjectConfirmation;
+    }
+
+    public ElementView getSubjectConfirmationData() {
+        return subjectConfirmationData;
+    }
+
+    /**
+     * The NotOnOrAfter of the SubjectConfirmationData in milliseconds, or {@link CieIdTimestamps#INVALID}.
+     */
+    public long getSubjectConfirmationNotOnOrAfterTime() {
+        return subjectConfirmationNotOnOrAfterTime;
+    }
+
+    public ElementView getConditions() {
+        return conditions;
+    }
+
+    public ElementView getAudienceRestriction() {
+        return audienceRestriction;
+    }
+
+    public ElementView getAuthnStatement() {
+        return authnStatement;
+    }
+
+    public ElementView getAuthnContext() {
+        return authnContext;
+    }
+
+    public ElementView getAuthnContextClassRef() {
+        return authnContextClassRef;
+    }
+
+    /**
+     * Reads an element whose children are looked up by local name.
+     */
+    private static ElementView readContainer(Element element, String[] attributeNames, String[] childNames, Element[] children) {
+        if (element == null)
+            return MISSING;
+        boolean childElements = findChildren(element, childNames, children);
+        return new ElementView(true, childElements, null, false, attributeNames, getAttributes(element, attributeNames));
+    }
+
+    /**
+     * Reads an element that is expected to only have a text.
+     */
+    private static ElementView readText(Element element, String[] attributeNames) {
+        if (element == null)
+            return MISSING;
+        Node first = element.getFirstChild();
+        String text = first != null ? first.getNodeValue() : null;
+        boolean childElements = findChildren(element, NONE, null);
+        boolean hasText = first != null && StringUtil.isNotNull(text) && !childElements;
+        return new ElementView(true, childElements, text, hasText, attributeNames, getAttributes(element, attributeNames));
+    }
+
+    /**
+     * Stores in {@code children} the first direct child element with each of the given local
+     * names, and tells whether the element has any child element.
+     */
+    private static boolean findChildren(Element element, String[] names, Element[] children) {
+        boolean childElements = false;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+            childElements = true;
+            String localName = child.getLocalName();
+            for (int i = 0; i < names.length; i++) {
+                if (children[i] == null && names[i].equals(localName)) {
+                    children[i] = (Element) child;
+                    break;
+                }
+            }
+        }
+        return childElements;
+    }
+
+    private static String[] getAttributes(Element element, String[] names) {
+        if (names.length == 0)
+            return NONE;
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++)
+            values[i] = getAttribute(element, names[i]);
+        return values;
+    }
+
+    private static String getAttribute(Element element, String name) {
+        Attr attribute = element.getAttributeNode(name);
+        return attribute != null ? attribute.getValue() : null;
+    }
+}
@@ -27,6 +27,7 @@ import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AuthnStatementType;
 import org.keycloak.dom.saml.v2.assertion.NameIDType;
 import org.keycloak.dom.saml.v2.protocol.ResponseType;
+import org.keycloak.events.Details;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.events.EventType;
@@ -34,15 +35,13 @@ import org.keycloak.models.KeyManager;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.protocol.saml.SamlProtocol;
 import org.keycloak.rotation.KeyLocator;
+import org.keycloak.saml.SAMLRequestParser;
 import org.keycloak.saml.common.constants.GeneralConstants;
-import org.keycloak.saml.common.constants.JBossSAMLConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
-import org.keycloak.saml.common.util.DocumentUtil;
 import org.keycloak.saml.processing.core.saml.v2.common.SAMLDocumentHolder;
 import org.keycloak.saml.processing.core.saml.v2.constants.X500SAMLProfileConstants;
 import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.keycloak.saml.validators.ConditionsValidator;
-import org.keycloak.saml.validators.DestinationValidator;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.sessions.AuthenticationSessionModel;
@@ -61,11 +60,14 @@ import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriBuilder;
 
-import javax.xml.namespace.QName;
+import java.io.IOException;
 import java.net.URI;
+import java.time.Clock;
 import java.util.Collections;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 /**
  * CIE ID-specific SAML endpoint that extends the standard SAMLEndpoint
@@ -74,16 +76,24 @@ import java.util.function.BiFunction;
 public class CieIdSAMLEndpoint extends SAMLEndpoint {
     protected static final Logger logger = Logger.getLogger(CieIdSAMLEndpoint.class);
 
+    private static final long DEFAULT_REPLAY_RETENTION = TimeUnit.MINUTES.toMillis(10);
+
     private final CieIdIdentityProviderConfig cieIdConfig;
     private final CieIdChecks cieIdChecks;
+    private final CieIdResponseLimits responseLimits;
+    private final CieIdAssertionReplayCache replayCache;
+    private final CieIdIdpKeyRings keyRings;
 
     public CieIdSAMLEndpoint(KeycloakSession session, CieIdIdentityProvider provider,
                            CieIdIdentityProviderConfig config,
                            SAMLIdentityProvider.AuthenticationCallback callback,
-                           DestinationValidator destinationValidator) {
-        super(session, provider, config, callback, destinationValidator);
+                           CieIdIdentityProviderServices services) {
+        super(session, provider, config, callback, services.getDestinationValidator());
         this.cieIdConfig = config;
-        this.cieIdChecks = new CieIdChecks(config);
+        this.cieIdChecks = new CieIdChecks(config, Clock.systemUTC(), services.getCheckStatistics());
+        this.responseLimits = services.getResponseLimits();
+        this.replayCache = services.getReplayCache();
+        this.keyRings = services.getKeyRings();
     }
 
     @GET
@@ -127,19 +137,38 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
     }
 
     /**
-     * CIE ID-specific POST binding that overrides handleLoginResponse with CIE ID validation.
+     * CIE ID-specific POST binding that prevalidates the response and overrides handleLoginResponse
+     * with CIE ID validation.
      */
     protected class CieIdPostBinding extends PostBinding {
+        private byte[] responseDocument;
+        private AuthenticationSessionModel authSession;
+
+        @Override
+        public Response handleSamlResponse(String samlResponse, String relayState, String clientId) {
+            try {
+                responseDocument = CieIdResponseDecoder.decodePostBinding(samlResponse, responseLimits);
+            } catch (IOException | RuntimeException e) {
+                return rejectUndecodableResponse(e);
+            }
+            Response error = prevalidateCieIdResponse(responseDocument, () -> getAuthenticationSession(relayState, clientId));
+            return error != null ? error : super.handleSamlResponse(samlResponse, relayState, clientId);
+        }
+
+        @Override
+        protected SAMLDocumentHolder extractResponseDocument(String response) {
+            // Parse the document already decoded for the prevalidation
+            return responseDocument != null
+                ? SAMLRequestParser.parseResponseDocument(responseDocument)
+                : super.extractResponseDocument(response);
+        }
+
         @Override
         protected Response handleLoginResponse(String samlResponse, SAMLDocumentHolder holder,
                                                ResponseType responseType, String relayState, String clientId) {
             try {
-                AuthenticationSessionModel authSession;
-                if (StringUtil.isNotBlank(clientId)) {
-                    authSession = samlIdpInitiatedSSO(clientId);
-                } else if (StringUtil.isNotBlank(relayState)) {
-                    authSession = callback.getAndVerifyAuthenticationSession(relayState);
-                } else {
+                AuthenticationSessionModel authSession = getAuthenticationSession(relayState, clientId);
+                if (authSession == null) {
                     logger.error("SAML RelayState parameter was null when it should be returned by the IDP");
                     event.event(EventType.LOGIN);
                     event.error(Errors.INVALID_SAML_RESPONSE);
@@ -151,6 +180,26 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
             }
         }
 
+        /**
+         * Resolves the authentication session once, as the prevalidation may already have done it.
+         */
+        private AuthenticationSessionModel getAuthenticationSession(String relayState, String clientId) {
+            if (authSession == null) {
+                if (StringUtil.isNotBlank(clientId)) {
+                    authSession = samlIdpInitiatedSSO(clientId);
+                } else if (StringUtil.isNotBlank(relayState)) {
+                    authSession = callback.getAndVerifyAuthenticationSession(relayState);
+                }
+            }
+            return authSession;
+        }
+
+        @Override
+        protected KeyLocator getIDPKeyLocator() {
+            KeyLocator keyRing = getIdpKeyRing();
+            return keyRing != null ? keyRing : super.getIDPKeyLocator();
+        }
+
         private boolean validateAssertionSignature(Element assertionElement, SAMLDocumentHolder holder) {
             return validateAssertionSignatureImpl(
                 assertionElement,
@@ -161,19 +210,38 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
     }
 
     /**
-     * CIE ID-specific Redirect binding that overrides handleLoginResponse with CIE ID validation.
+     * CIE ID-specific Redirect binding that prevalidates the response and overrides handleLoginResponse
+     * with CIE ID validation.
      */
     protected class CieIdRedirectBinding extends RedirectBinding {
+        private byte[] responseDocument;
+        private AuthenticationSessionModel authSession;
+
+        @Override
+        public Response handleSamlResponse(String samlResponse, String relayState, String clientId) {
+            try {
+                responseDocument = CieIdResponseDecoder.decodeRedirectBinding(samlResponse, responseLimits);
+            } catch (IOException | RuntimeException e) {
+                return rejectUndecodableResponse(e);
+            }
+            Response error = prevalidateCieIdResponse(responseDocument, () -> getAuthenticationSession(relayState, clientId));
+            return error != null ? error : super.handleSamlResponse(samlResponse, relayState, clientId);
+        }
+
+        @Override
+        protected SAMLDocumentHolder extractResponseDocument(String response) {
+            // Parse the document already decoded for the prevalidation
+            return responseDocument != null
+                ? SAMLRequestParser.parseResponseDocument(responseDocument)
+                : super.extractResponseDocument(response);
+        }
+
         @Override
         protected Response handleLoginResponse(String samlResponse, SAMLDocumentHolder holder,
                                                ResponseType responseType, String relayState, String clientId) {
             try {
-                AuthenticationSessionModel authSession;
-                if (StringUtil.isNotBlank(clientId)) {
-                    authSession = samlIdpInitiatedSSO(clientId);
-                } else if (StringUtil.isNotBlank(relayState)) {
-                    authSession = callback.getAndVerifyAuthenticationSession(relayState);
-                } else {
+                AuthenticationSessionModel authSession = getAuthenticationSession(relayState, clientId);
+                if (authSession == null) {
                     logger.error("SAML RelayState parameter was null when it should be returned by the IDP");
                     event.event(EventType.LOGIN);
                     event.error(Errors.INVALID_SAML_RESPONSE);
@@ -185,6 +253,26 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
             }
         }
 
+        /**
+         * Resolves the authentication session once, as the prevalidation may already have done it.
+         */
+        private AuthenticationSessionModel getAuthenticationSession(String relayState, String clientId) {
+            if (authSession == null) {
+                if (StringUtil.isNotBlank(clientId)) {
+                    authSession = samlIdpInitiatedSSO(clientId);
+                } else if (StringUtil.isNotBlank(relayState)) {
+                    authSession = callback.getAndVerifyAuthenticationSession(relayState);
+                }
+            }
+            return authSession;
+        }
+
+        @Override
+        protected KeyLocator getIDPKeyLocator() {
+            KeyLocator keyRing = getIdpKeyRing();
+            return keyRing != null ? keyRing : super.getIDPKeyLocator();
+        }
+
         private boolean validateAssertionSignature(Element assertionElement, SAMLDocumentHolder holder) {
             return validateAssertionSignatureImpl(
                 assertionElement,
@@ -194,6 +282,77 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
         }
     }
 
+    /**
+     * Reads the Response element of the decoded document with {@link CieIdResponsePrevalidator}
+     * and applies the CIE ID rules that only depend on it, before the document is parsed into a
+     * DOM and any signature verification or decryption.
+     *
+     * @param document the decoded response
+     * @param authSessionSupplier resolves the authentication session, or returns {@code null} if
+     *                            the response does not identify it
+     * @return the error page of a rejected response, or {@code null} to go on with the standard processing
+     */
+    protected Response prevalidateCieIdResponse(byte[] document, Supplier<AuthenticationSessionModel> authSessionSupplier) {
+        CieIdResponsePrevalidator.Result result = CieIdResponsePrevalidator.read(document, responseLimits);
+        switch (result.getOutcome()) {
+            case MALFORMED:
+                return rejectInvalidDocument();
+            case LIMIT_EXCEEDED:
+                return rejectResponseOverLimit(result.getExceededLimit());
+            case SUCCESSFUL:
+                break;
+            default:
+                return null;
+        }
+
+        AuthenticationSessionModel authSession;
+        try {
+            authSession = authSessionSupplier.get();
+        } catch (WebApplicationException e) {
+            return e.getResponse();
+        }
+        if (authSession == null)
+            return null;
+
+        String cieIdResponseValidationError = cieIdChecks.prevalidateCieIdResponse(authSession, result.getHeader());
+        if (cieIdResponseValidationError == null)
+            return null;
+
+        session.getContext().setAuthenticationSession(authSession);
+        logger.error("CIE ID Response Validation Error: " + cieIdResponseValidationError);
+        EventBuilder event = new EventBuilder(realm, session, clientConnection);
+        event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+        event.error(Errors.INVALID_SAML_RESPONSE);
+        return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST,
+            cieIdConfig.isDebugEnabled() ? cieIdResponseValidationError : "CieIdSamlCheck_GenericError");
+    }
+
+    /**
+     * Rejects a SAMLResponse parameter that cannot be decoded within the {@link CieIdResponseLimits}.
+     */
+    protected Response rejectUndecodableResponse(Exception e) {
+        if (e instanceof CieIdResponseLimits.ExceededException)
+            return rejectResponseOverLimit(((CieIdResponseLimits.ExceededException) e).getLimit());
+
+        logger.debugf("Could not decode SAML response: %s", e.getMessage());
+        return rejectInvalidDocument();
+    }
+
+    private Response rejectResponseOverLimit(String limit) {
+        logger.warnf("SAML response rejected by CIE ID provider %s: it exceeds the %s limit", cieIdConfig.getAlias(), limit);
+        event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+        event.detail(Details.REASON, limit);
+        event.error(CieIdResponseLimits.LIMIT_EXCEEDED_ERROR);
+        return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.IDENTITY_PROVIDER_INVALID_RESPONSE);
+    }
+
+    private Response rejectInvalidDocument() {
+        event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+        event.detail(Details.REASON, "invalid_saml_document");
+        event.error(Errors.INVALID_SAML_RESPONSE);
+        return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.IDENTITY_PROVIDER_INVALID_RESPONSE);
+    }
+
     /**
      * Handles the SAML login response with CIE ID-specific validation rules.
      * This is the core CIE ID-specific logic that differs from the parent SAMLEndpoint.
@@ -242,15 +401,18 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
                 return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
             }
 
-            Element assertionElement;
+            // Read what the CIE ID checks need from the response in a single pass
+            CieIdResponseView responseView;
             if (assertionIsEncrypted) {
-                assertionElement = AssertionUtil.decryptAssertion(responseType, keys.getPrivateKey());
+                Element decryptedAssertionElement = AssertionUtil.decryptAssertion(responseType, keys.getPrivateKey());
+                responseView = CieIdResponseView.of(holder.getSamlDocument().getDocumentElement(), decryptedAssertionElement);
             } else {
-                assertionElement = DocumentUtil.getElement(holder.getSamlDocument(), new QName(JBossSAMLConstants.ASSERTION.get()));
+                responseView = CieIdResponseView.of(holder.getSamlDocument().getDocumentElement());
             }
+            Element assertionElement = responseView.getAssertionElement();
 
             // CIE ID-specific: Apply CIE ID response validation rules
-            String cieIdResponseValidationError = cieIdChecks.validateCieIdResponse(authSession, holder, assertionElement);
+            String cieIdResponseValidationError = cieIdChecks.validateCieIdResponse(authSession, responseView);
 
             if (cieIdResponseValidationError != null) {
                 logger.error("CIE ID Response Validation Error: " + cieIdResponseValidationError);
@@ -345,6 +507,16 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
                 return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.EXPIRED_CODE);
             }
 
+            // Accept each assertion only once on the cluster, until its SubjectConfirmationData expires
+            if (!replayCache.add(session.singleUseObjects(), assertionIssuer + " " + assertion.getID(),
+                    getReplayExpiry(responseView, assertion))) {
+                logger.errorf("Assertion %s from %s was already used", assertion.getID(), assertionIssuer);
+                event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+                event.detail(Details.REASON, CieIdAssertionReplayCache.REPLAYED_ASSERTION_ERROR);
+                event.error(Errors.INVALID_SAML_RESPONSE);
+                return ErrorPage.error(session, authSession, Response.Status.BAD_REQUEST, Messages.INVALID_REQUESTER);
+            }
+
             AuthnStatementType authn = null;
             for (Object statement : assertion.getStatements()) {
                 if (statement instanceof AuthnStatementType) {
@@ -378,6 +550,31 @@ public class CieIdSAMLEndpoint extends SAMLEndpoint {
         }
     }
 
+    /**
+     * The parsed signing certificates of the identity provider, or {@code null} when its keys are
+     * read from its metadata descriptor URL, which Keycloak already caches.
+     */
+    private KeyLocator getIdpKeyRing() {
+        if (StringUtil.isNotBlank(cieIdConfig.getMetadataDescriptorUrl()) && cieIdConfig.isUseMetadataDescriptorUrl())
+            return null;
+        return keyRings.get(cieIdConfig);
+    }
+
+    /**
+     * When the identifier of an accepted assertion can be forgotten: after the NotOnOrAfter of
+     * its SubjectConfirmationData, or else of its Conditions, plus the allowed clock skew. An
+     * assertion with neither is remembered for {@link #DEFAULT_REPLAY_RETENTION}.
+     */
+    private long getReplayExpiry(CieIdResponseView responseView, AssertionType assertion) {
+        long notOnOrAfter = responseView.getSubjectConfirmationNotOnOrAfterTime();
+        if (notOnOrAfter == CieIdTimestamps.INVALID && assertion.getConditions() != null
+                && assertion.getConditions().getNotOnOrAfter() != null)
+            notOnOrAfter = assertion.getConditions().getNotOnOrAfter().toGregorianCalendar().getTimeInMillis();
+        if (notOnOrAfter == CieIdTimestamps.INVALID)
+            notOnOrAfter = System.currentTimeMillis() + DEFAULT_REPLAY_RETENTION;
+        return notOnOrAfter + 1000L * cieIdConfig.getAllowedClockSkew();
+    }
+
     private boolean validateAssertionSignatureImpl(Element assertionElement,
                                                    KeyLocator keyLocator,
                                                    boolean hasUnencryptedSignature) {
@@ -34,6 +34,7 @@ import org.keycloak.sessions.AuthenticationSessionModel;
  * to comply with CIE ID requirements:
  * - Adds NameQualifier and Format attributes to Issuer elements
  * - Adds SPNameQualifier to NameIDPolicy
+ * - Sets the AttributeConsumingServiceIndex chosen for the client or the request
  * - Stores request IssueInstant for response validation
  */
 public class CieIdSamlAuthenticationPreprocessor implements SamlAuthenticationPreprocessor {
@@ -87,6 +88,12 @@ public class CieIdSamlAuthenticationPreprocessor implements SamlAuthenticationPr
             authnRequest.getNameIDPolicy().setSPNameQualifier(issuerURL);
         }
 
+        // CIE ID: Request the AttributeConsumingService chosen by CieIdIdentityProvider, if any
+        String attributeConsumingServiceIndex = authSession.getClientNote(CieIdIdentityProvider.CIEID_ATTRIBUTE_CONSUMING_SERVICE_INDEX);
+        if (attributeConsumingServiceIndex != null) {
+            authnRequest.setAttributeConsumingServiceIndex(Integer.valueOf(attributeConsumingServiceIndex));
+        }
+
         // Store the request IssueInstant in the auth session for CIE ID response validation
         if (authnRequest.getIssueInstant() != null) {
             authSession.setClientNote(CieIdIdentityProvider.CIEID_REQUEST_ISSUE_INSTANT,
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+/**
+ * Parser of the ISO 8601 timestamps ({@code xs:dateTime}) found in the CIE ID responses,
+ * e.g. {@code 2024-05-01T10:15:30.123Z}.
+ *
+ * It accepts the same values as the regular expression previously used for the CIE ID
+ * check nr13, i.e. {@code [-]YYYY[Y...]-MM-DDThh:mm:ss[.s...][Z|(+|-)hh:mm]}, and also
+ * rejects the days that do not exist in their month. Timestamps without a time zone are
+ * taken as UTC, fractional seconds are truncated to milliseconds.
+ *
+ * The parser is stateless and does not allocate, so it can be shared by all threads.
+ */
+public final class CieIdTimestamps {
+
+    /**
+     * Returned by {@link #parse} for the values that are not valid timestamps.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    // Enough for any year that fits an xs:dateTime in practice, and far from overflowing
+    private static final int MAX_YEAR_DIGITS = 9;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private CieIdTimestamps() {
+    }
+
+    /**
+     * Returns the timestamp in milliseconds since the epoch, or {@link #INVALID} if the
+     * value is {@code null} or not a valid timestamp.
+     */
+    public static long parse(CharSequence value) {
+        if (value == null)
+            return INVALID;
+
+        int length = value.length();
+        int pos = 0;
+
+        boolean negative = pos < length && value.charAt(pos) == '-';
+        if (negative)
+            pos++;
+
+        // Year: at least four digits, with no leading zero when longer
+        int yearStart = pos;
+        while (pos < length && isDigit(value.charAt(pos)))
+            pos++;
+        int yearDigits = pos - yearStart;
+        if (yearDigits < 4 || yearDigits > MAX_YEAR_DIGITS || (yearDigits > 4 && value.charAt(yearStart) == '0'))
+            return INVALID;
+        long year = digits(value, yearStart, yearDigits);
+        if (negative)
+            year = -year;
+
+        if (!expect(value, pos, '-'))
+            return INVALID;
+        int month = twoDigits(value, pos + 1);
+        if (month < 1 || month > 12 || !expect(value, pos + 3, '-'))
+            return INVALID;
+        int day = twoDigits(value, pos + 4);
+        if (day < 1 || day > daysInMonth(year, month) || !expect(value, pos + 6, 'T'))
+            return INVALID;
+        int hour = twoDigits(value, pos + 7);
+        if (hour < 0 || hour > 23 || !expect(value, pos + 9, ':'))
+            return INVALID;
+        int minute = twoDigits(value, pos + 10);
+        if (minute < 0 || minute > 59 || !expect(value, pos + 12, ':'))
+            return INVALID;
+        int second = twoDigits(value, pos + 13);
+        if (second < 0 || second > 59)
+            return INVALID;
+        pos += 15;
+
+        int millis = 0;
+        if (pos < length && value.charAt(pos) == '.') {
+            int fractionStart = ++pos;
+            while (pos < length && isDigit(value.charAt(pos))) {
+                if (pos - fractionStart < 3)
+                    millis = millis * 10 + (value.charAt(pos) - '0');
+                pos++;
+            }
+            int fractionDigits = pos - fractionStart;
+            if (fractionDigits == 0)
+                return INVALID;
+            for (int i = fractionDigits; i < 3; i++)
+                millis *= 10;
+        }
+
+        int offsetMinutes = 0;
+        if (pos < length) {
+            char sign = value.charAt(pos);
+            if (sign == 'Z') {
+                pos++;
+            } else if (sign == '+' || sign == '-') {
+                int offsetHour = twoDigits(value, pos + 1);
+                if (offsetHour < 0 || offsetHour > 23 || !expect(value, pos + 3, ':'))
+                    return INVALID;
+                int offsetMinute = twoDigits(value, pos + 4);
+                if (offsetMinute < 0 || offsetMinute > 59)
+                    return INVALID;
+                offsetMinutes = offsetHour * 60 + offsetMinute;
+                if (sign == '-')
+                    offsetMinutes = -offsetMinutes;
+                pos += 6;
+            } else {
+                return INVALID;
+            }
+        }
+        if (pos != length)
+            return INVALID;
+
+        return daysFromEpoch(year, month, day) * MILLIS_PER_DAY
+            + ((hour * 60L + minute - offsetMinutes) * 60 + second) * 1000 + millis;
+    }
+
+    /**
+     * Tells whether the value is a valid timestamp.
+     */
+    public static boolean isValid(CharSequence value) {
+        return parse(value) != INVALID;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean expect(CharSequence value, int pos, char c) {
+        return pos < value.length() && value.charAt(pos) == c;
+    }
+
+    /**
+     * Returns the value of the two digits at the given position, or -1 if there are none.
+     */
+    private static int twoDigits(CharSequence value, int pos) {
+        if (pos + 1 >= value.length())
+            return -1;
+        char tens = value.charAt(pos);
+        char units = value.charAt(pos + 1);
+        if (!isDigit(tens) || !isDigit(units))
+            return -1;
+        return (tens - '0') * 10 + (units - '0');
+    }
+
+    private static long digits(CharSequence value, int start, int count) {
+        long result = 0;
+        for (int i = start; i < start + count; i++)
+            result = result * 10 + (value.charAt(i) - '0');
+        return result;
+    }
+
+    private static boolean isLeapYear(long year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(long year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Days between 1970-01-01 and the given date of the proleptic Gregorian calendar.
+     */
+    private static long daysFromEpoch(long year, int month, int day) {
+        // Counts the years from March, so that the leap day is the last day of the year
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        int monthFromMarch = month > 2 ? month - 3 : month + 9;
+        long dayOfYear = (153L * monthFromMarch + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -19,6 +19,19 @@ package org.keycloak.broker.cieid.mappers;
 
 import org.keycloak.broker.cieid.CieIdIdentityProviderFactory;
 import org.keycloak.broker.saml.mappers.UserAttributeMapper;
+import org.keycloak.dom.saml.v2.metadata.AttributeConsumingServiceType;
+import org.keycloak.dom.saml.v2.metadata.EntityDescriptorType;
+import org.keycloak.dom.saml.v2.metadata.RequestedAttributeType;
+import org.keycloak.models.IdentityProviderMapperModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public class CieIdUserAttributeMapper extends UserAttributeMapper {
 
@@ -26,6 +39,23 @@ public class CieIdUserAttributeMapper extends UserAttributeMapper {
 
     public static final String PROVIDER_ID = "cieid-user-attribute-idp-mapper";
 
+    public static final String ATTRIBUTE_CONSUMING_SERVICE_INDEXES = "attribute.consuming.service.indexes";
+
+    private final List<ProviderConfigProperty> configProperties;
+
+    public CieIdUserAttributeMapper() {
+        configProperties = new ArrayList<>(super.getConfigProperties());
+        configProperties.addAll(ProviderConfigurationBuilder.create()
+            .property()
+            .name(ATTRIBUTE_CONSUMING_SERVICE_INDEXES)
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .label("AttributeConsumingService Indexes")
+            .helpText("Comma separated list of the indexes of the AttributeConsumingServices that request this attribute in the SP metadata. "
+                + "If empty, the attribute is requested by all of them.")
+            .add()
+            .build());
+    }
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -40,4 +70,72 @@ public class CieIdUserAttributeMapper extends UserAttributeMapper {
     public String getDisplayType() {
         return "CIE ID Attribute Importer";
     }
+
+    @Override
+    public List<ProviderConfigProperty> getConfigProperties() {
+        return configProperties;
+    }
+
+    /**
+     * Same as {@link UserAttributeMapper#updateMetadata}, but only adds the requested
+     * attribute to the AttributeConsumingServices the mapper is associated with.
+     */
+    @Override
+    public void updateMetadata(IdentityProviderMapperModel mapperModel, EntityDescriptorType entityDescriptor) {
+        Set<Integer> indexes = getAttributeConsumingServiceIndexes(mapperModel);
+        if (indexes.isEmpty()) {
+            super.updateMetadata(mapperModel, entityDescriptor);
+            return;
+        }
+
+        String attributeName = mapperModel.getConfig().get(ATTRIBUTE_NAME);
+        String attributeFriendlyName = mapperModel.getConfig().get(ATTRIBUTE_FRIENDLY_NAME);
+        String attributeNameFormat = mapperModel.getConfig().get(ATTRIBUTE_NAME_FORMAT);
+
+        RequestedAttributeType requestedAttribute = new RequestedAttributeType(attributeName);
+        requestedAttribute.setIsRequired(null);
+        requestedAttribute.setNameFormat(attributeNameFormat != null
+            ? JBossSAMLURIConstants.valueOf(attributeNameFormat).get()
+            : JBossSAMLURIConstants.ATTRIBUTE_FORMAT_BASIC.get());
+        if (attributeFriendlyName != null && attributeFriendlyName.length() > 0)
+            requestedAttribute.setFriendlyName(attributeFriendlyName);
+
+        for (EntityDescriptorType.EDTChoiceType choiceType: entityDescriptor.getChoiceType()) {
+            List<EntityDescriptorType.EDTDescriptorChoiceType> descriptors = choiceType.getDescriptors();
+            if (descriptors == null)
+                continue;
+
+            for (EntityDescriptorType.EDTDescriptorChoiceType descriptor: descriptors) {
+                if (descriptor.getSpDescriptor() == null)
+                    continue;
+
+                for (AttributeConsumingServiceType attributeConsumingService: descriptor.getSpDescriptor().getAttributeConsumingService()) {
+                    if (!indexes.contains(attributeConsumingService.getIndex()))
+                        continue;
+
+                    boolean alreadyPresent = attributeConsumingService.getRequestedAttribute().stream()
+                        .anyMatch(t -> (attributeName == null || attributeName.equalsIgnoreCase(t.getName()))
+                            && (attributeFriendlyName == null || attributeFriendlyName.equalsIgnoreCase(t.getFriendlyName())));
+                    if (!alreadyPresent)
+                        attributeConsumingService.addRequestedAttribute(requestedAttribute);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the indexes the mapper is associated with, ignoring the malformed ones, or an
+     * empty set if it applies to all of them.
+     */
+    public static Set<Integer> getAttributeConsumingServiceIndexes(IdentityProviderMapperModel mapperModel) {
+        String strIndexes = mapperModel.getConfig().get(ATTRIBUTE_CONSUMING_SERVICE_INDEXES);
+        if (strIndexes == null || strIndexes.isBlank())
+            return Set.of();
+
+        return Arrays.stream(strIndexes.split(","))
+            .map(String::trim)
+            .filter(t -> t.matches("\\d{1,9}"))
+            .map(Integer::valueOf)
+            .collect(Collectors.toSet());
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.keycloak.dom.saml.v2.metadata.ExtensionsType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@code cie:} extensions of a ContactPerson, kept as plain name/value pairs
+ * and written by {@link CieIdSpMetadataWriter} without building any DOM node.
+ */
+public class CieIdContactExtensions extends ExtensionsType {
+
+    public static class Extension {
+        private final String localName;
+        private final String value;
+
+        Extension(String localName, String value) {
+            this.localName = localName;
+            this.value = value;
+        }
+
+        public String getLocalName() {
+            return localName;
+        }
+
+        /**
+         * The text content of the element, or {@code null} for an empty element
+         * such as {@code cie:Public}.
+         */
+        public String getValue() {
+            return value;
+        }
+    }
+
+    private final List<Extension> extensions = new ArrayList<>();
+
+    public void addExtension(String localName, String value) {
+        extensions.add(new Extension(localName, value));
+    }
+
+    public List<Extension> getExtensions() {
+        return Collections.unmodifiableList(extensions);
+    }
+
+    public boolean isEmpty() {
+        return extensions.isEmpty() && getAny().isEmpty();
+    }
+}
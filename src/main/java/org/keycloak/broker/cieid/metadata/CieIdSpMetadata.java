@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An immutable, fully generated (and signed, when required) SP metadata document,
+ * along with the HTTP validators computed from its content.
+ */
+public class CieIdSpMetadata {
+
+    private final byte[] content;
+    private final String etag;
+    private final Date lastModified;
+    private final boolean signed;
+    private final boolean signatureReused;
+    private final Date validUntil;
+    private volatile byte[] gzipContent;
+
+    private CieIdSpMetadata(byte[] content, boolean signed, boolean signatureReused, Date lastModified, Date validUntil) {
+        this.content = content;
+        this.signed = signed;
+        this.signatureReused = signatureReused;
+        this.etag = sha256(content);
+        this.lastModified = lastModified;
+        this.validUntil = validUntil;
+    }
+
+    /**
+     * A document built unsigned on this node.
+     *
+     * @param content the UTF-8 encoded document, which is not copied and must not be modified afterwards
+     * @param validUntil the {@code validUntil} attribute of the document, or {@code null} if it has none
+     */
+    public static CieIdSpMetadata unsigned(byte[] content, Date validUntil) {
+        return new CieIdSpMetadata(content, false, false, currentHttpDate(), validUntil);
+    }
+
+    /**
+     * A document built and signed on this node.
+     *
+     * @param content the UTF-8 encoded document, which is not copied and must not be modified afterwards
+     * @param signatureReused whether the signature was taken from the {@link CieIdSpMetadataSignatureCache}
+     * @param validUntil the {@code validUntil} attribute of the document, or {@code null} if it has none
+     */
+    public static CieIdSpMetadata signed(byte[] content, boolean signatureReused, Date validUntil) {
+        return new CieIdSpMetadata(content, true, signatureReused, currentHttpDate(), validUntil);
+    }
+
+    /**
+     * A document built by another node of the cluster, which never cost a signature on this one.
+     *
+     * @param content the UTF-8 encoded document, which is not copied and must not be modified afterwards
+     * @param signed whether the document is signed
+     * @param lastModified when the document was built
+     * @param validUntil the {@code validUntil} attribute of the document, or {@code null} if it has none
+     */
+    public static CieIdSpMetadata fromCluster(byte[] content, boolean signed, Date lastModified, Date validUntil) {
+        return new CieIdSpMetadata(content, signed, true, lastModified, validUntil);
+    }
+
+    public String getDescriptor() {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    public int getLength() {
+        return content.length;
+    }
+
+    /**
+     * Writes the UTF-8 encoded document to the given stream, without copying it.
+     */
+    public void write(OutputStream output) throws IOException {
+        output.write(content);
+    }
+
+    /**
+     * Writes the gzip compressed document to the given stream. The compressed copy is
+     * computed on first use and then kept along with the document.
+     */
+    public void writeGzip(OutputStream output) throws IOException {
+        output.write(getGzipContent());
+    }
+
+    /**
+     * The UTF-8 encoded document, which is not copied and must not be modified.
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * The gzip compressed document, computed on first use, which must not be modified.
+     */
+    byte[] getGzipContent() {
+        byte[] compressed = gzipContent;
+        if (compressed == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 4);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+                gzip.write(content);
+            } catch (IOException e) {
+                // Not expected from an in-memory stream
+                throw new UncheckedIOException(e);
+            }
+            compressed = buffer.toByteArray();
+            gzipContent = compressed;
+        }
+        return compressed;
+    }
+
+    /**
+     * The hex encoded SHA-256 digest of the document, used as a strong entity tag.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * The entity tag of the gzip encoded representation, which must differ from
+     * the one of the identity encoding.
+     */
+    public String getGzipEtag() {
+        return etag + "-gzip";
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    public Date getValidUntil() {
+        return validUntil;
+    }
+
+    /**
+     * Tells whether the document is no longer valid at the given time, in milliseconds.
+     */
+    public boolean isExpired(long time) {
+        return validUntil != null && validUntil.getTime() <= time;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    /**
+     * Whether the signature was taken from the {@link CieIdSpMetadataSignatureCache}
+     * instead of being computed when the document was built.
+     */
+    public boolean isSignatureReused() {
+        return signatureReused;
+    }
+
+    /**
+     * The current time, truncated to the one second resolution of the HTTP dates.
+     */
+    static Date currentHttpDate() {
+        return new Date(System.currentTimeMillis() / 1000 * 1000);
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
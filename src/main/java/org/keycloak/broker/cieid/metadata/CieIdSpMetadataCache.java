@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.jboss.logging.Logger;
+import org.keycloak.broker.cieid.CieIdIdentityProviderIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Per-realm cache of the generated SP metadata documents, along with the index of the
+ * CIE ID providers they are built from.
+ *
+ * Entries are grouped by realm so that a change to any CIE ID provider, mapper or key
+ * of a realm drops all the documents of that realm at once. A document built while
+ * its realm was being invalidated is never published, because it is stored in the
+ * detached group that was current when the build started.
+ *
+ * In a cluster each realm group is also tagged with the generation published by
+ * {@link CieIdSpMetadataClusterStore}, so that invalidations made on other nodes are
+ * honored too.
+ *
+ * The documents are keyed by the base URI of the request, which follows the Host header
+ * unless the hostname of Keycloak is configured: each realm keeps at most
+ * {@link #MAX_ENTRIES_PER_REALM} of them, the least recently used being dropped.
+ */
+public class CieIdSpMetadataCache {
+    protected static final Logger logger = Logger.getLogger(CieIdSpMetadataCache.class);
+
+    public static final int MAX_ENTRIES_PER_REALM = 32;
+
+    @FunctionalInterface
+    public interface Loader {
+        CieIdSpMetadata load() throws Exception;
+    }
+
+    /**
+     * Identifies a cached document.
+     */
+    public static class Key {
+        private final String realmId;
+        private final String generation;
+        private final String key;
+
+        Key(String realmId, String generation, String key) {
+            this.realmId = realmId;
+            this.generation = generation;
+            this.key = key;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        /**
+         * The generation of the realm group holding the document.
+         */
+        public String getGeneration() {
+            return generation;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static class RealmEntries {
+        final String generation;
+        final Map<String, CieIdSpMetadata> entries;
+
+        RealmEntries(String generation) {
+            this.generation = generation;
+            this.entries = Collections.synchronizedMap(new LinkedHashMap<String, CieIdSpMetadata>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CieIdSpMetadata> eldest) {
+                    return size() > MAX_ENTRIES_PER_REALM;
+                }
+            });
+        }
+    }
+
+    private static class Generation {
+        final String value;
+        final long checked;
+
+        Generation(String value, long checked) {
+            this.value = value;
+            this.checked = checked;
+        }
+    }
+
+    private final ConcurrentMap<String, RealmEntries> realms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Generation> generations = new ConcurrentHashMap<>();
+    private final CieIdSpMetadataSignatureCache signatures = new CieIdSpMetadataSignatureCache();
+    private final CieIdSpMetadataSnapshots snapshots = new CieIdSpMetadataSnapshots();
+    private final CieIdIdentityProviderIndex providers = new CieIdIdentityProviderIndex();
+
+    /**
+     * Returns the cached document for the given realm and key, building it with the
+     * loader on a cache miss.
+     */
+    public CieIdSpMetadata get(String realmId, String key, Loader loader) throws Exception {
+        return get(realmId, "", key, loader);
+    }
+
+    /**
+     * Same as {@link #get(String, String, Loader)}, but also drops the realm documents
+     * when their generation differs from the given one, i.e. when the realm was
+     * invalidated on another cluster node.
+     */
+    public CieIdSpMetadata get(String realmId, String generation, String key, Loader loader) throws Exception {
+        Map<String, CieIdSpMetadata> entries = getRealmEntries(realmId, generation).entries;
+
+        CieIdSpMetadata metadata = entries.get(key);
+        if (metadata != null && !metadata.isExpired(System.currentTimeMillis()))
+            return metadata;
+
+        // Expired documents are normally replaced by the CieIdSpMetadataRefresher before
+        // they are requested, this is only a fallback
+        CieIdSpMetadata loaded = loader.load();
+        return entries.merge(key, loaded,
+            (current, value) -> current.isExpired(System.currentTimeMillis()) ? value : current);
+    }
+
+    /**
+     * Replaces the cached document for the given realm and key.
+     */
+    public void put(String realmId, String generation, String key, CieIdSpMetadata metadata) {
+        getRealmEntries(realmId, generation).entries.put(key, metadata);
+    }
+
+    /**
+     * Returns the keys of the cached documents that are no longer valid at the given time,
+     * in milliseconds.
+     */
+    public List<Key> getExpiring(long time) {
+        List<Key> expiring = new ArrayList<>();
+        // The synchronized map locks itself while it is iterated
+        realms.forEach((realmId, realmEntries) -> realmEntries.entries.forEach((key, metadata) -> {
+            if (metadata.isExpired(time))
+                expiring.add(new Key(realmId, realmEntries.generation, key));
+        }));
+        return expiring;
+    }
+
+    /**
+     * Returns the generation of the realm read from the cluster cache by the loader, reusing
+     * the last one read if it is younger than the given age, in milliseconds.
+     */
+    public String getGeneration(String realmId, long maxAge, Supplier<String> loader) {
+        long now = System.currentTimeMillis();
+        Generation generation = generations.get(String.valueOf(realmId));
+        if (generation != null && now - generation.checked < maxAge)
+            return generation.value;
+
+        String value = loader.get();
+        generations.put(String.valueOf(realmId), new Generation(value, now));
+        return value;
+    }
+
+    /**
+     * Records the generation started by an invalidation made on this node.
+     */
+    public void putGeneration(String realmId, String generation) {
+        generations.put(String.valueOf(realmId), new Generation(generation, System.currentTimeMillis()));
+    }
+
+    private RealmEntries getRealmEntries(String realmId, String generation) {
+        return realms.compute(String.valueOf(realmId),
+            (k, current) -> current != null && current.generation.equals(generation) ? current : new RealmEntries(generation));
+    }
+
+    public void invalidate(String realmId) {
+        generations.remove(String.valueOf(realmId));
+        if (realms.remove(String.valueOf(realmId)) != null)
+            logger.debugf("Invalidated cached CIE ID SP metadata for realm %s", realmId);
+    }
+
+    /**
+     * The signatures survive realm invalidations, see {@link CieIdSpMetadataSignatureCache}.
+     */
+    public CieIdSpMetadataSignatureCache getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * The index survives realm invalidations: it is updated from the identity provider
+     * events and then tagged with the new generation, see {@link CieIdIdentityProviderIndex}.
+     */
+    public CieIdIdentityProviderIndex getProviders() {
+        return providers;
+    }
+
+    /**
+     * The snapshots survive realm invalidations, see {@link CieIdSpMetadataSnapshots}.
+     */
+    public CieIdSpMetadataSnapshots getSnapshots() {
+        return snapshots;
+    }
+
+    public void clear() {
+        realms.clear();
+        generations.clear();
+        signatures.clear();
+        snapshots.clear();
+        providers.clear();
+    }
+}
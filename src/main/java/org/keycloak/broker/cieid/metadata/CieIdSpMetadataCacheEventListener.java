@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.keycloak.broker.cieid.CieIdIdentityProviderIndex;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class CieIdSpMetadataCacheEventListener implements EventListenerProvider {
+
+    private static final String IDENTITY_PROVIDER_PATH = "identity-provider/instances/";
+
+    private final KeycloakSession session;
+    private final KeycloakSessionFactory sessionFactory;
+
+    public CieIdSpMetadataCacheEventListener(KeycloakSession session, KeycloakSessionFactory sessionFactory) {
+        this.session = session;
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        // User events never affect the SP metadata
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getError() != null || !CieIdSpMetadataCacheEventListenerFactory.affectsMetadata(event.getResourceType()))
+            return;
+
+        CieIdSpMetadataResourceProviderFactory metadataFactory = (CieIdSpMetadataResourceProviderFactory) sessionFactory
+            .getProviderFactory(RealmResourceProvider.class, CieIdSpMetadataResourceProviderFactory.ID);
+        if (metadataFactory == null)
+            return;
+
+        // Keycloak publishes no provider event for the identity provider creations, while
+        // realm level changes (e.g. partial imports) may add or remove any number of them
+        CieIdIdentityProviderIndex index = metadataFactory.getCache().getProviders();
+        if (event.getResourceType() == ResourceType.IDENTITY_PROVIDER && event.getOperationType() == OperationType.CREATE) {
+            String alias = getCreatedAlias(event.getResourcePath());
+            if (alias != null)
+                index.put(event.getRealmId(), session.identityProviders().getByAlias(alias));
+        } else if (event.getResourceType() == ResourceType.REALM) {
+            index.invalidate(event.getRealmId());
+        }
+
+        metadataFactory.invalidate(session, event.getRealmId());
+    }
+
+    /**
+     * Extracts the alias from the resource path of a created identity provider, i.e.
+     * {@code identity-provider/instances/<alias>}.
+     */
+    static String getCreatedAlias(String resourcePath) {
+        if (resourcePath == null || !resourcePath.startsWith(IDENTITY_PROVIDER_PATH))
+            return null;
+
+        String alias = resourcePath.substring(IDENTITY_PROVIDER_PATH.length());
+        return alias.isEmpty() || alias.contains("/") ? null : alias;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Global admin event listener that drops the cached SP metadata of a realm when
+ * one of its identity providers, identity provider mappers or components (keys)
+ * changes.
+ *
+ * Keycloak publishes provider events only for identity provider updates and removals,
+ * so creations, mapper changes and key rotations are tracked through admin events.
+ * Being global, the listener does not need to be enabled in the realm events configuration.
+ */
+public class CieIdSpMetadataCacheEventListenerFactory implements EventListenerProviderFactory {
+
+    public static final String PROVIDER_ID = "cieid-sp-metadata-cache";
+
+    private KeycloakSessionFactory sessionFactory;
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new CieIdSpMetadataCacheEventListener(session, sessionFactory);
+    }
+
+    @Override
+    public boolean isGlobal() {
+        return true;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // No initialization needed
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+    }
+
+    @Override
+    public void close() {
+        // No resources to close
+    }
+
+    static boolean affectsMetadata(ResourceType resourceType) {
+        return resourceType == ResourceType.IDENTITY_PROVIDER
+            || resourceType == ResourceType.IDENTITY_PROVIDER_MAPPER
+            || resourceType == ResourceType.COMPONENT
+            || resourceType == ResourceType.REALM;
+    }
+}
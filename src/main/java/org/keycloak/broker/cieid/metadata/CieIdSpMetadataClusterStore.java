@@ -0,0 +1,282 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import jakarta.transaction.TransactionManager;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.commons.CacheConfigurationException;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.context.Flag;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.transaction.LockingMode;
+import org.infinispan.transaction.TransactionMode;
+import org.infinispan.transaction.lookup.EmbeddedTransactionManagerLookup;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the generated SP metadata between the cluster nodes through a dedicated replicated
+ * Infinispan cache, {@value #CACHE_NAME}, so that the documents do not weigh on the caches
+ * of Keycloak itself.
+ *
+ * Each realm has a generation marker: invalidating a realm replaces it, so every node
+ * stops using the documents (shared and local) of the previous generation, even if it
+ * did not see the event that caused the invalidation. A missing document is built by
+ * a single node, the one holding the cluster-wide lock of its key; the nodes asking for it
+ * meanwhile wait for that lock, at most {@code clusterLockTimeout} seconds, and then use
+ * the published document. Only when the wait times out do they build their own copy.
+ *
+ * The cache is defined at first use as a replicated cache with pessimistic transactions,
+ * unless the Infinispan configuration of Keycloak already defines it.
+ */
+public class CieIdSpMetadataClusterStore {
+    protected static final Logger logger = Logger.getLogger(CieIdSpMetadataClusterStore.class);
+
+    public static final String CACHE_NAME = "cieid-sp-metadata";
+
+    private static final String KEY_PREFIX = "cieid-sp-metadata::";
+
+    private final Cache<String, Object> cache;
+    private final CieIdSpMetadataOptions options;
+
+    public CieIdSpMetadataClusterStore(KeycloakSession session, CieIdSpMetadataOptions options) {
+        this.cache = options.isClusterCache() ? getCache(session, options) : null;
+        this.options = options;
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Returns the current generation of the realm documents, creating it if needed.
+     */
+    public String getGeneration(String realmId) {
+        if (cache == null)
+            return "";
+
+        // A replicated cache is read locally, while a write takes the lock on its owner
+        Object current = cache.get(generationKey(realmId));
+        if (current != null)
+            return (String) current;
+
+        String generation = UUID.randomUUID().toString();
+        current = cache.putIfAbsent(generationKey(realmId), generation,
+            options.getClusterCacheLifespan(), TimeUnit.SECONDS);
+        return current != null ? (String) current : generation;
+    }
+
+    /**
+     * Drops the shared documents of the realm on every node.
+     *
+     * @return the new generation of the realm documents
+     */
+    public String invalidate(String realmId) {
+        if (cache == null)
+            return "";
+
+        String generation = UUID.randomUUID().toString();
+        cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES)
+            .put(generationKey(realmId), generation, options.getClusterCacheLifespan(), TimeUnit.SECONDS);
+        logger.debugf("Started a new CIE ID SP metadata generation for realm %s", realmId);
+        return generation;
+    }
+
+    /**
+     * Returns the shared document for the given realm generation and key, building
+     * and publishing it with the loader when no node has done it yet.
+     */
+    public CieIdSpMetadata get(String realmId, String generation, String key, CieIdSpMetadataCache.Loader loader) throws Exception {
+        if (cache == null)
+            return loader.load();
+
+        String documentKey = documentKey(realmId, generation, key);
+
+        long time = System.currentTimeMillis();
+        CieIdSpMetadata metadata = read(documentKey, time);
+        if (metadata != null)
+            return metadata;
+
+        metadata = build(documentKey, time, true, loader);
+        if (metadata != null)
+            return metadata;
+
+        // The node holding the lock is too slow, or gone: do not hold the request any longer
+        logger.debugf("Timed out waiting for another node to build the CIE ID SP metadata of realm %s, building it locally", realmId);
+        return loader.load();
+    }
+
+    /**
+     * Replaces the shared document for the given realm generation and key when it is no longer
+     * valid at the given time, in milliseconds. Only one node rebuilds it: the others get the
+     * shared copy, or {@code null} while the rebuild is in progress elsewhere.
+     */
+    public CieIdSpMetadata refresh(String realmId, String generation, String key, long time, CieIdSpMetadataCache.Loader loader) throws Exception {
+        if (cache == null)
+            return loader.load();
+
+        String documentKey = documentKey(realmId, generation, key);
+
+        CieIdSpMetadata metadata = read(documentKey, time);
+        if (metadata != null)
+            return metadata;
+
+        return build(documentKey, time, false, loader);
+    }
+
+    /**
+     * Shares the snapshot of the document, keeping it for the given retention period, in seconds.
+     */
+    public void putSnapshot(String realmId, CieIdSpMetadata metadata, long retention) {
+        if (cache != null)
+            cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES)
+                .put(snapshotKey(realmId, metadata.getEtag()), encode(metadata), retention, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the shared snapshot with the given content hash, or {@code null} if there is none.
+     */
+    public CieIdSpMetadata getSnapshot(String realmId, String hash) {
+        return cache != null ? decode(cache.get(snapshotKey(realmId, hash))) : null;
+    }
+
+    /**
+     * Builds and publishes the document while holding the lock of its key, unless the previous
+     * holder published one still valid at the given time.
+     *
+     * @return the document, or {@code null} if the lock could not be acquired
+     */
+    private CieIdSpMetadata build(String documentKey, long time, boolean wait, CieIdSpMetadataCache.Loader loader) throws Exception {
+        AdvancedCache<String, Object> locking = wait
+            ? cache.getAdvancedCache().withFlags(Flag.FAIL_SILENTLY)
+            : cache.getAdvancedCache().withFlags(Flag.FAIL_SILENTLY, Flag.ZERO_LOCK_ACQUISITION_TIMEOUT);
+
+        // The lock is released when the transaction ends, or when its holder leaves the cluster
+        TransactionManager transactionManager = cache.getAdvancedCache().getTransactionManager();
+        transactionManager.begin();
+        try {
+            if (!locking.lock(documentKey)) {
+                transactionManager.rollback();
+                return null;
+            }
+
+            CieIdSpMetadata metadata = read(documentKey, time);
+            if (metadata == null) {
+                metadata = loader.load();
+                cache.getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES)
+                    .put(documentKey, encode(metadata), options.getClusterCacheLifespan(), TimeUnit.SECONDS);
+            }
+
+            transactionManager.commit();
+            return metadata;
+        } catch (Exception | Error e) {
+            transactionManager.rollback();
+            throw e;
+        }
+    }
+
+    private CieIdSpMetadata read(String documentKey, long time) {
+        CieIdSpMetadata metadata = decode(cache.get(documentKey));
+        return metadata != null && !metadata.isExpired(time) ? metadata : null;
+    }
+
+    /**
+     * The documents are stored as byte arrays, which the Keycloak marshaller handles as they are:
+     * the flags, the last modification and expiry times, then the descriptor itself.
+     */
+    private static byte[] encode(CieIdSpMetadata metadata) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(metadata.getLength() + 17);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeBoolean(metadata.isSigned());
+            output.writeLong(metadata.getLastModified().getTime());
+            output.writeLong(metadata.getValidUntil() != null ? metadata.getValidUntil().getTime() : -1);
+            metadata.write(output);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static CieIdSpMetadata decode(Object value) {
+        if (!(value instanceof byte[] bytes) || bytes.length < 17)
+            return null;
+
+        // Documents built by another node never cost a signature on this one
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        boolean signed = buffer.get() != 0;
+        long lastModified = buffer.getLong();
+        long validUntil = buffer.getLong();
+        return CieIdSpMetadata.fromCluster(Arrays.copyOfRange(bytes, buffer.position(), bytes.length),
+            signed, new Date(lastModified), validUntil >= 0 ? new Date(validUntil) : null);
+    }
+
+    private static Cache<String, Object> getCache(KeycloakSession session, CieIdSpMetadataOptions options) {
+        EmbeddedCacheManager cacheManager = session.getProvider(InfinispanConnectionProvider.class)
+            .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager();
+        if (cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+            try {
+                cacheManager.defineConfiguration(CACHE_NAME, getConfiguration(cacheManager, options));
+            } catch (CacheConfigurationException e) {
+                // Defined concurrently by another request
+                logger.debugf("The %s cache is already defined", CACHE_NAME);
+            }
+        }
+        return cacheManager.getCache(CACHE_NAME);
+    }
+
+    static Configuration getConfiguration(EmbeddedCacheManager cacheManager, CieIdSpMetadataOptions options) {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        builder.clustering()
+            .cacheMode(cacheManager.getCacheManagerConfiguration().isClustered() ? CacheMode.REPL_SYNC : CacheMode.LOCAL);
+        builder.transaction()
+            .transactionMode(TransactionMode.TRANSACTIONAL)
+            .lockingMode(LockingMode.PESSIMISTIC)
+            .transactionManagerLookup(new EmbeddedTransactionManagerLookup());
+        builder.locking()
+            .lockAcquisitionTimeout(options.getClusterLockTimeout(), TimeUnit.SECONDS);
+        if (cacheManager.getCacheManagerConfiguration().isClustered()) {
+            // A remote lock request must not time out before the lock acquisition does
+            builder.clustering().remoteTimeout(options.getClusterLockTimeout() + 15L, TimeUnit.SECONDS);
+        }
+        return builder.build();
+    }
+
+    private static String documentKey(String realmId, String generation, String key) {
+        return KEY_PREFIX + realmId + "::" + generation + "::" + CieIdSpMetadata.sha256(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String snapshotKey(String realmId, String hash) {
+        return KEY_PREFIX + realmId + "::v::" + hash;
+    }
+
+    private static String generationKey(String realmId) {
+        return KEY_PREFIX + realmId + "::generation";
+    }
+}
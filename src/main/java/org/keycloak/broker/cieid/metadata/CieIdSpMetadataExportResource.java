@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.keycloak.broker.cieid.metadata;
+
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.AdminPermissions;
+import org.keycloak.services.resources.admin.fgap.RealmsPermissionEvaluator;
+
+import java.net.URI;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Exports the SP metadata of all the realms the caller can view as a single
+ * {@code EntitiesDescriptor}, to be registered in bulk with the CIE ID federation.
+ * The aggregate is not signed and has no validity: only the entity descriptors it contains are.
+ */
+public class CieIdSpMetadataExportResource {
+
+    private final KeycloakSession session;
+    private final AdminPermissionEvaluator auth;
+    private final CieIdSpMetadataExporter exporter;
+
+    public CieIdSpMetadataExportResource(KeycloakSession session, AdminPermissionEvaluator auth, CieIdSpMetadataExporter exporter) {
+        this.session = session;
+        this.auth = auth;
+        this.exporter = exporter;
+    }
+
+    /**
+     * @param realmName when set, restricts the export to the given realm
+     */
+    @GET
+    @Produces("text/xml; charset=utf-8")
+    public Response export(@QueryParam("realm") String realmName) {
+        RealmsPermissionEvaluator realms = AdminPermissions.realms(session, auth.adminAuth());
+
+        List<RealmModel> candidates = session.realms().getRealmsStream()
+            .filter(realm -> realmName == null || realmName.equals(realm.getName()))
+            .filter(realms::canView)
+            .collect(Collectors.toList());
+        if (candidates.isEmpty()) {
+            if (realmName != null)
+                throw new NotFoundException("Realm not found");
+            throw new ForbiddenException();
+        }
+
+        URI requestBaseUri = session.getContext().getUri().getBaseUri();
+        List<CieIdSpMetadataExporter.RealmBaseUri> realmBaseUris = candidates.stream()
+            .map(realm -> new CieIdSpMetadataExporter.RealmBaseUri(realm.getId(),
+                CieIdSpMetadataExporter.getBaseUri(realm, requestBaseUri)))
+            .collect(Collectors.toList());
+
+        List<CieIdSpMetadata> documents;
+        try {
+            documents = exporter.export(realmBaseUris);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        StreamingOutput output = stream -> CieIdSpMetadataExporter.writeEntitiesDescriptor(documents, stream);
+        return Response.ok(output)
+            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"cieid-sp-metadata.xml\"")
+            .build();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Generates the SP metadata of many realms in parallel and aggregates them in a single
+ * {@code EntitiesDescriptor}.
+ *
+ * Each realm is processed in its own session and transaction, on a pool of
+ * {@code exportParallelism} threads shared by all the exports and the pre-warm; the
+ * documents go through the same caches as the metadata endpoint, so realms whose
+ * metadata is already cached (locally or in the cluster) cost nothing.
+ *
+ * The exporter is owned by the {@link CieIdSpMetadataResourceProviderFactory}, which
+ * closes it with the server.
+ */
+public class CieIdSpMetadataExporter {
+    protected static final Logger logger = Logger.getLogger(CieIdSpMetadataExporter.class);
+
+    private static final String XML_DECLARATION = "<?xml";
+    private static final String FRONTEND_URL_ATTRIBUTE = "frontendUrl";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final CieIdSpMetadataCache cache;
+    private final CieIdSpMetadataOptions options;
+    private final ThreadPoolExecutor executor;
+
+    public CieIdSpMetadataExporter(KeycloakSessionFactory sessionFactory, CieIdSpMetadataCache cache, CieIdSpMetadataOptions options) {
+        this.sessionFactory = sessionFactory;
+        this.cache = cache;
+        this.options = options;
+
+        // The threads are only kept while there is something to export
+        int threads = Math.max(1, options.getExportParallelism());
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "cieid-sp-metadata-export-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Exports the metadata of the given realms. Realms without an enabled CIE ID provider,
+     * or whose metadata cannot be generated, are left out.
+     *
+     * @param realmBaseUris the base URI to use for each realm id, in the order of the output
+     */
+    public List<CieIdSpMetadata> export(List<RealmBaseUri> realmBaseUris) throws InterruptedException {
+        if (realmBaseUris.isEmpty())
+            return List.of();
+
+        List<Future<CieIdSpMetadata>> futures = new ArrayList<>();
+        try {
+            for (RealmBaseUri realmBaseUri : realmBaseUris)
+                futures.add(executor.submit(() -> exportRealm(realmBaseUri)));
+
+            List<CieIdSpMetadata> exported = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    CieIdSpMetadata metadata = futures.get(i).get();
+                    if (metadata != null)
+                        exported.add(metadata);
+                } catch (ExecutionException e) {
+                    logger.warnf(e.getCause(), "Failed to export the CIE ID SP metadata of realm %s", realmBaseUris.get(i).getRealmId());
+                }
+            }
+            return exported;
+        } catch (InterruptedException e) {
+            // Do not leave the remaining realms to the pool, which is shared
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        }
+    }
+
+    /**
+     * Builds and caches the metadata of every realm with a CIE ID provider, so that the
+     * first requests after a restart are served from the cache. Realms without a frontend
+     * URL are skipped when no default base URI is given.
+     *
+     * @return the number of realms whose metadata was built
+     */
+    public int prewarm(URI defaultBaseUri) throws InterruptedException {
+        List<RealmBaseUri> realmBaseUris = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+            session.realms().getRealmsStream()
+                .map(realm -> {
+                    URI baseUri = getBaseUri(realm, defaultBaseUri);
+                    if (baseUri == null)
+                        logger.debugf("Skipping the CIE ID SP metadata pre-warm of realm %s, which has no frontend URL", realm.getName());
+                    return baseUri != null ? new RealmBaseUri(realm.getId(), baseUri) : null;
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+
+        return export(realmBaseUris).size();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The metadata endpoints of a realm are published on its frontend URL, when configured.
+     */
+    public static URI getBaseUri(RealmModel realm, URI defaultBaseUri) {
+        String frontendUrl = realm.getAttribute(FRONTEND_URL_ATTRIBUTE);
+        if (frontendUrl == null || frontendUrl.isBlank())
+            return defaultBaseUri;
+
+        return URI.create(frontendUrl.endsWith("/") ? frontendUrl : frontendUrl + "/");
+    }
+
+    private CieIdSpMetadata exportRealm(RealmBaseUri realmBaseUri) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmBaseUri.getRealmId());
+            if (realm == null)
+                return null;
+
+            session.getContext().setRealm(realm);
+            CieIdSpMetadataResourceProvider provider = new CieIdSpMetadataResourceProvider(session, cache, options);
+            if (!provider.hasCieIdProviders(realm))
+                return null;
+
+            try {
+                return provider.getMetadata(realm, realmBaseUri.getBaseUri());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Writes the documents as the children of an {@code EntitiesDescriptor}. Each document
+     * is copied byte by byte, so that its signature stays valid.
+     */
+    public static void writeEntitiesDescriptor(List<CieIdSpMetadata> documents, OutputStream output) throws IOException {
+        output.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<md:EntitiesDescriptor xmlns:md=\""
+            + JBossSAMLURIConstants.METADATA_NSURI.get() + "\">\n").getBytes(StandardCharsets.UTF_8));
+
+        for (CieIdSpMetadata document : documents) {
+            String descriptor = document.getDescriptor();
+            if (descriptor.startsWith(XML_DECLARATION))
+                descriptor = descriptor.substring(descriptor.indexOf("?>") + 2).stripLeading();
+
+            output.write(descriptor.getBytes(StandardCharsets.UTF_8));
+            output.write('\n');
+        }
+
+        output.write("</md:EntitiesDescriptor>\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static class RealmBaseUri {
+        private final String realmId;
+        private final URI baseUri;
+
+        public RealmBaseUri(String realmId, URI baseUri) {
+            this.realmId = realmId;
+            this.baseUri = baseUri;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public URI getBaseUri() {
+            return baseUri;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.keycloak.Config.Scope;
+
+import java.net.URI;
+
+/**
+ * Server-level options of the SP metadata endpoint, read from the
+ * {@code spi-realm-restapi-extension--cieid-sp-metadata--*} configuration keys.
+ */
+public class CieIdSpMetadataOptions {
+
+    public static final int DEFAULT_CACHE_MAX_AGE = 300;
+    public static final int DEFAULT_CLUSTER_CACHE_LIFESPAN = 86400;
+    public static final int DEFAULT_CLUSTER_LOCK_TIMEOUT = 10;
+    public static final int DEFAULT_CLUSTER_GENERATION_CHECK_INTERVAL = 0;
+    public static final int DEFAULT_SNAPSHOT_RETENTION = 0;
+    public static final int DEFAULT_REFRESH_MARGIN = 3600;
+    public static final int DEFAULT_REFRESH_INTERVAL = 60;
+    public static final int DEFAULT_EXPORT_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private int cacheMaxAge = DEFAULT_CACHE_MAX_AGE;
+    private boolean compression = true;
+    private boolean clusterCache;
+    private int clusterCacheLifespan = DEFAULT_CLUSTER_CACHE_LIFESPAN;
+    private int clusterLockTimeout = DEFAULT_CLUSTER_LOCK_TIMEOUT;
+    private int clusterGenerationCheckInterval = DEFAULT_CLUSTER_GENERATION_CHECK_INTERVAL;
+    private int exportParallelism = DEFAULT_EXPORT_PARALLELISM;
+    private int validity;
+    private int cacheDuration;
+    private int refreshMargin = DEFAULT_REFRESH_MARGIN;
+    private int refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private int snapshotRetention = DEFAULT_SNAPSHOT_RETENTION;
+    private String publishDirectory;
+    private boolean prewarm;
+    private String prewarmBaseUrl;
+
+    public static CieIdSpMetadataOptions fromScope(Scope config) {
+        CieIdSpMetadataOptions options = new CieIdSpMetadataOptions();
+        options.cacheMaxAge = config.getInt("cacheMaxAge", DEFAULT_CACHE_MAX_AGE);
+        options.compression = config.getBoolean("compression", true);
+        options.clusterCache = config.getBoolean("clusterCache", false);
+        options.clusterCacheLifespan = config.getInt("clusterCacheLifespan", DEFAULT_CLUSTER_CACHE_LIFESPAN);
+        options.clusterLockTimeout = config.getInt("clusterLockTimeout", DEFAULT_CLUSTER_LOCK_TIMEOUT);
+        options.clusterGenerationCheckInterval = config.getInt("clusterGenerationCheckInterval", DEFAULT_CLUSTER_GENERATION_CHECK_INTERVAL);
+        options.exportParallelism = config.getInt("exportParallelism", DEFAULT_EXPORT_PARALLELISM);
+        options.prewarm = config.getBoolean("prewarm", false);
+        options.validity = config.getInt("validity", 0);
+        options.cacheDuration = config.getInt("cacheDuration", 0);
+        options.refreshMargin = config.getInt("refreshMargin", DEFAULT_REFRESH_MARGIN);
+        options.refreshInterval = config.getInt("refreshInterval", DEFAULT_REFRESH_INTERVAL);
+        options.snapshotRetention = config.getInt("snapshotRetention", DEFAULT_SNAPSHOT_RETENTION);
+        options.publishDirectory = config.get("publishDirectory");
+        options.prewarmBaseUrl = config.get("prewarmBaseUrl");
+        return options;
+    }
+
+    /**
+     * Value of the {@code Cache-Control: max-age} directive sent with the metadata, in seconds.
+     */
+    public int getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    public void setCacheMaxAge(int cacheMaxAge) {
+        this.cacheMaxAge = cacheMaxAge;
+    }
+
+    /**
+     * Whether a precompressed gzip copy of the metadata is served to the clients that accept it.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Whether the generated documents are shared between the cluster nodes, through the
+     * dedicated replicated cache of {@link CieIdSpMetadataClusterStore}.
+     */
+    public boolean isClusterCache() {
+        return clusterCache;
+    }
+
+    public void setClusterCache(boolean clusterCache) {
+        this.clusterCache = clusterCache;
+    }
+
+    /**
+     * How long a shared document is kept in the cluster cache, in seconds.
+     */
+    public int getClusterCacheLifespan() {
+        return clusterCacheLifespan;
+    }
+
+    public void setClusterCacheLifespan(int clusterCacheLifespan) {
+        this.clusterCacheLifespan = clusterCacheLifespan;
+    }
+
+    /**
+     * How long a node waits for another one building the same shared document before building
+     * its own copy, in seconds. Only used when the cluster cache is defined at first use.
+     */
+    public int getClusterLockTimeout() {
+        return clusterLockTimeout;
+    }
+
+    public void setClusterLockTimeout(int clusterLockTimeout) {
+        this.clusterLockTimeout = clusterLockTimeout;
+    }
+
+    /**
+     * How long a node reuses the realm generation read from the cluster cache before reading
+     * it again, in seconds, i.e. how late it may notice an invalidation made on another node.
+     * {@code 0}, the default, reads it on every request: a higher value saves a read of the
+     * replicated cache per request, at the cost of serving stale metadata for that long.
+     */
+    public int getClusterGenerationCheckInterval() {
+        return clusterGenerationCheckInterval;
+    }
+
+    public void setClusterGenerationCheckInterval(int clusterGenerationCheckInterval) {
+        this.clusterGenerationCheckInterval = clusterGenerationCheckInterval;
+    }
+
+    /**
+     * Maximum number of realms whose metadata is generated concurrently by the bulk export.
+     */
+    public int getExportParallelism() {
+        return exportParallelism;
+    }
+
+    public void setExportParallelism(int exportParallelism) {
+        this.exportParallelism = exportParallelism;
+    }
+
+    /**
+     * Whether the metadata of every realm with a CIE ID provider is built in the background
+     * when the server starts.
+     */
+    public boolean isPrewarm() {
+        return prewarm;
+    }
+
+    public void setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+
+    /**
+     * Public base URL of the server used to pre-warm and publish the realms without a frontend
+     * URL, since no request is available in the background to derive it from.
+     */
+    public String getPrewarmBaseUrl() {
+        return prewarmBaseUrl;
+    }
+
+    public void setPrewarmBaseUrl(String prewarmBaseUrl) {
+        this.prewarmBaseUrl = prewarmBaseUrl;
+    }
+
+    /**
+     * The pre-warm base URL as a base URI, ending with a slash, or {@code null} if not configured.
+     */
+    public URI getPrewarmBaseUri() {
+        if (prewarmBaseUrl == null || prewarmBaseUrl.isBlank())
+            return null;
+
+        return URI.create(prewarmBaseUrl.endsWith("/") ? prewarmBaseUrl : prewarmBaseUrl + "/");
+    }
+
+    /**
+     * Validity of the generated documents, emitted as the {@code validUntil} attribute, in
+     * seconds. Zero means that the documents never expire.
+     */
+    public int getValidity() {
+        return validity;
+    }
+
+    public void setValidity(int validity) {
+        this.validity = validity;
+    }
+
+    /**
+     * Value of the {@code cacheDuration} attribute of the generated documents, in seconds.
+     * Zero means that the attribute is omitted.
+     */
+    public int getCacheDuration() {
+        return cacheDuration;
+    }
+
+    public void setCacheDuration(int cacheDuration) {
+        this.cacheDuration = cacheDuration;
+    }
+
+    /**
+     * How long before their expiration the documents are regenerated, in seconds. It never
+     * exceeds a quarter of the validity, so that a document is not regenerated as soon as it is built.
+     */
+    public int getRefreshMargin() {
+        return Math.min(refreshMargin, validity / 4);
+    }
+
+    public void setRefreshMargin(int refreshMargin) {
+        this.refreshMargin = refreshMargin;
+    }
+
+    /**
+     * How often the cached documents are checked for expiration, in seconds.
+     */
+    public int getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    public void setRefreshInterval(int refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * How long a published document stays available at its immutable URL after it was last
+     * served as the current one, in seconds. Zero, the default, disables the snapshots.
+     */
+    public int getSnapshotRetention() {
+        return snapshotRetention;
+    }
+
+    public void setSnapshotRetention(int snapshotRetention) {
+        this.snapshotRetention = snapshotRetention;
+    }
+
+    /**
+     * Directory where the metadata of each realm is published as a static file, or {@code null}
+     * to disable the publication.
+     */
+    public String getPublishDirectory() {
+        return publishDirectory;
+    }
+
+    public void setPublishDirectory(String publishDirectory) {
+        this.publishDirectory = publishDirectory;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.keycloak.broker.cieid.metadata;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes the current SP metadata of each realm to a directory, so that a reverse proxy can
+ * serve it as a static file without involving Keycloak.
+ *
+ * The document of a realm is written to {@code <directory>/<realm>/cieid-sp-metadata.xml},
+ * along with a gzip compressed copy when compression is enabled, and only when its content
+ * changed. Files are written to a temporary file first and then renamed, so readers never
+ * see a partial document. The files published under the previous name of a renamed realm
+ * are deleted, and so are, at startup, those of the realms that no longer exist.
+ */
+public class CieIdSpMetadataPublisher {
+    protected static final Logger logger = Logger.getLogger(CieIdSpMetadataPublisher.class);
+
+    public static final String FILE_NAME = CieIdSpMetadataResourceProviderFactory.ID + ".xml";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final CieIdSpMetadataCache cache;
+    private final CieIdSpMetadataOptions options;
+    private final Path directory;
+    private final ConcurrentMap<String, Published> published = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "cieid-sp-metadata-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Published {
+        final String realmName;
+        final String etag;
+
+        Published(String realmName, String etag) {
+            this.realmName = realmName;
+            this.etag = etag;
+        }
+    }
+
+    public CieIdSpMetadataPublisher(KeycloakSessionFactory sessionFactory, CieIdSpMetadataCache cache, CieIdSpMetadataOptions options) {
+        this.sessionFactory = sessionFactory;
+        this.cache = cache;
+        this.options = options;
+        this.directory = Paths.get(options.getPublishDirectory());
+    }
+
+    /**
+     * Publishes the metadata of all the realms in the background.
+     */
+    public void publishAllAsync() {
+        executor.execute(() -> {
+            List<String> realmIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session ->
+                session.realms().getRealmsStream().map(RealmModel::getId).collect(Collectors.toList()));
+            realmIds.forEach(this::publish);
+            deleteUnpublished();
+        });
+    }
+
+    /**
+     * Publishes the metadata of the realm in the background.
+     */
+    public void publishAsync(String realmId) {
+        executor.execute(() -> publish(realmId));
+    }
+
+    /**
+     * Deletes the published metadata of a removed realm in the background.
+     */
+    public void removeAsync(String realmId, String realmName) {
+        executor.execute(() -> {
+            Published previous = published.remove(realmId);
+            delete(previous != null ? previous.realmName : realmName);
+        });
+    }
+
+    private void publish(String realmId) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null)
+                    return;
+
+                URI baseUri = CieIdSpMetadataExporter.getBaseUri(realm, options.getPrewarmBaseUri());
+                if (baseUri == null) {
+                    logger.debugf("Not publishing the CIE ID SP metadata of realm %s, which has no frontend URL", realm.getName());
+                    return;
+                }
+
+                Path realmDirectory = getRealmDirectory(directory, realm.getName());
+                if (realmDirectory == null) {
+                    logger.warnf("Not publishing the CIE ID SP metadata of realm %s, whose name is not a valid directory name", realm.getId());
+                    return;
+                }
+
+                session.getContext().setRealm(realm);
+                CieIdSpMetadataResourceProvider provider = new CieIdSpMetadataResourceProvider(session, cache, options);
+                if (!provider.hasCieIdProviders(realm)) {
+                    // Let the requests reach Keycloak, which knows how to answer them
+                    Published previous = published.remove(realmId);
+                    if (previous != null)
+                        delete(previous.realmName);
+                    return;
+                }
+
+                CieIdSpMetadata metadata;
+                try {
+                    metadata = provider.getMetadata(realm, baseUri);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                Published previous = published.get(realmId);
+                boolean renamed = previous != null && !previous.realmName.equals(realm.getName());
+                if (previous != null && !renamed && metadata.getEtag().equals(previous.etag))
+                    return;
+
+                write(realmDirectory, metadata, options.isCompression());
+                published.put(realmId, new Published(realm.getName(), metadata.getEtag()));
+                logger.debugf("Published the CIE ID SP metadata of realm %s", realm.getName());
+
+                // The proxy must not keep serving the document under the previous name
+                if (renamed)
+                    delete(previous.realmName);
+            });
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Failed to publish the CIE ID SP metadata of realm %s", realmId);
+        }
+    }
+
+    /**
+     * Deletes the files of the realms renamed or removed while this node was not running,
+     * i.e. the ones in the directory that were not published by {@link #publishAllAsync()}.
+     */
+    private void deleteUnpublished() {
+        if (!Files.isDirectory(directory))
+            return;
+
+        Set<String> realmNames = published.values().stream().map(p -> p.realmName).collect(Collectors.toSet());
+        try (Stream<Path> realmDirectories = Files.list(directory)) {
+            realmDirectories
+                .filter(realmDirectory -> Files.isRegularFile(realmDirectory.resolve(FILE_NAME)))
+                .map(realmDirectory -> realmDirectory.getFileName().toString())
+                .filter(realmName -> !realmNames.contains(realmName))
+                .forEach(this::delete);
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to list the published CIE ID SP metadata in %s", directory);
+        }
+    }
+
+    private void delete(String realmName) {
+        Path realmDirectory = getRealmDirectory(directory, realmName);
+        if (realmDirectory == null)
+            return;
+
+        try {
+            Files.deleteIfExists(realmDirectory.resolve(FILE_NAME + ".gz"));
+            Files.deleteIfExists(realmDirectory.resolve(FILE_NAME));
+            Files.deleteIfExists(realmDirectory);
+            logger.debugf("Deleted the published CIE ID SP metadata of realm %s", realmName);
+        } catch (DirectoryNotEmptyException e) {
+            // Other files are kept along with their directory
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete the published CIE ID SP metadata of realm %s", realmName);
+        }
+    }
+
+    /**
+     * Returns the directory of the realm with the given name, or {@code null} if the name is
+     * not a plain directory name, which would lead out of the publish directory.
+     */
+    static Path getRealmDirectory(Path directory, String realmName) {
+        if (realmName == null || realmName.isEmpty() || realmName.equals(".") || realmName.equals("..")
+            || realmName.indexOf('/') >= 0 || realmName.indexOf('\\') >= 0 || realmName.indexOf('\0') >= 0)
+            return null;
+
+        try {
+            Path realmDirectory = directory.resolve(realmName);
+            return directory.equals(realmDirectory.getParent()) ? realmDirectory : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Atomically replaces the metadata files in the given directory.
+     */
+    static void write(Path realmDirectory, CieIdSpMetadata metadata, boolean compression) {
+        try {
+            Files.createDirectories(realmDirectory);
+            // The compressed copy goes first, so that it is never older than the plain one
+            if (compression)
+                write(realmDirectory.resolve(FILE_NAME + ".gz"), metadata, metadata::writeGzip);
+            write(realmDirectory.resolve(FILE_NAME), metadata, metadata::write);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Content {
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    private static void write(Path target, CieIdSpMetadata metadata, Content content) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                content.writeTo(output);
+            }
+
+            // Temporary files are only readable by their owner, while the proxy usually runs as another user
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-r--r--"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system
+            }
+            Files.setLastModifiedTime(temp, FileTime.fromMillis(metadata.getLastModified().getTime()));
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
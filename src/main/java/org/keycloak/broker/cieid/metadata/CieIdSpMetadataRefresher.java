@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.keycloak.broker.cieid.metadata;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodic task that regenerates (and re-signs) the cached SP metadata documents shortly
+ * before their {@code validUntil}, so that request threads always find a valid document.
+ *
+ * The task is triggered by the Keycloak timer, but the documents are built on a dedicated
+ * thread so that the other scheduled tasks are not delayed; a run is skipped while the
+ * previous one is still in progress.
+ */
+public class CieIdSpMetadataRefresher implements Runnable {
+    protected static final Logger logger = Logger.getLogger(CieIdSpMetadataRefresher.class);
+
+    public static final String TASK_NAME = "cieid-sp-metadata-refresh";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final CieIdSpMetadataCache cache;
+    private final CieIdSpMetadataOptions options;
+    private final CieIdSpMetadataPublisher publisher;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, TASK_NAME);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param publisher the publisher of the refreshed documents, or {@code null} if they are not published
+     */
+    public CieIdSpMetadataRefresher(KeycloakSessionFactory sessionFactory, CieIdSpMetadataCache cache, CieIdSpMetadataOptions options,
+        CieIdSpMetadataPublisher publisher) {
+        this.sessionFactory = sessionFactory;
+        this.cache = cache;
+        this.options = options;
+        this.publisher = publisher;
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true))
+            return;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    refreshExpiring();
+                } finally {
+                    running.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Regenerates the cached documents that expire within the refresh margin.
+     */
+    public void refreshExpiring() {
+        long time = System.currentTimeMillis() + options.getRefreshMargin() * 1000L;
+        for (CieIdSpMetadataCache.Key key : cache.getExpiring(time)) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(key.getRealmId());
+                    if (realm == null) {
+                        cache.invalidate(key.getRealmId());
+                        return;
+                    }
+
+                    session.getContext().setRealm(realm);
+                    try {
+                        new CieIdSpMetadataResourceProvider(session, cache, options).refresh(realm, key.getKey());
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                if (publisher != null)
+                    publisher.publishAsync(key.getRealmId());
+            } catch (RuntimeException e) {
+                logger.warnf(e, "Failed to refresh the CIE ID SP metadata of realm %s", key.getRealmId());
+            }
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
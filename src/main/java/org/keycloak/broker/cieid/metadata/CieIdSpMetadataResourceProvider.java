@@ -25,7 +25,6 @@ import org.keycloak.dom.saml.v2.metadata.ContactType;
 import org.keycloak.dom.saml.v2.metadata.ContactTypeType;
 import org.keycloak.dom.saml.v2.metadata.EndpointType;
 import org.keycloak.dom.saml.v2.metadata.EntityDescriptorType;
-import org.keycloak.dom.saml.v2.metadata.ExtensionsType;
 import org.keycloak.dom.saml.v2.metadata.IndexedEndpointType;
 import org.keycloak.dom.saml.v2.metadata.KeyDescriptorType;
 import org.keycloak.dom.saml.v2.metadata.KeyTypes;
@@ -36,48 +35,72 @@ import org.keycloak.dom.saml.v2.metadata.SPSSODescriptorType;
 import org.keycloak.models.KeyManager;
 import org.keycloak.models.KeyManager.ActiveRsaKey;
 import org.keycloak.models.IdentityProviderModel;
-import org.keycloak.models.IdentityProviderQuery;
 import org.keycloak.models.IdentityProviderStorageProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.saml.SPMetadataDescriptor;
+import org.keycloak.saml.SignatureAlgorithm;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.util.DocumentUtil;
 import org.keycloak.saml.common.util.StaxUtil;
 import org.keycloak.saml.common.util.StringUtil;
-import org.keycloak.saml.common.exceptions.ConfigurationException;
-import org.keycloak.saml.processing.core.saml.v2.writers.SAMLMetadataWriter;
+import org.keycloak.saml.common.util.TransformerUtil;
 import org.keycloak.saml.processing.api.saml.v2.sig.SAML2Signature;
 import org.keycloak.protocol.saml.SamlService;
 import org.keycloak.protocol.saml.mappers.SamlMetadataDescriptorUpdater;
 import org.keycloak.services.resource.RealmResourceProvider;
 
-import java.io.StringWriter;
+import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HexFormat;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.TimeZone;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriBuilder;
 import jakarta.ws.rs.core.UriInfo;
 
 import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.keycloak.broker.cieid.CieIdIdentityProvider;
 import org.keycloak.broker.cieid.CieIdIdentityProviderConfig;
-import org.keycloak.broker.cieid.CieIdIdentityProviderFactory;
+import org.keycloak.broker.cieid.CieIdIdentityProviderIndex;
 import org.keycloak.broker.provider.IdentityProviderMapper;
 
 public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
@@ -86,10 +109,33 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
     public static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
     public static final String CIEID_METADATA_EXTENSIONS_NS = "https://www.cartaidentita.interno.gov.it/saml-extensions";
 
+    /**
+     * Reports whether the signature of the served document was computed by this request
+     * ({@code miss}) or reused from a previous one ({@code hit}).
+     */
+    public static final String SIGNATURE_CACHE_HEADER = "X-CieId-Signature-Cache";
+
+    /**
+     * Path of the immutable, content addressed versions of the metadata.
+     */
+    public static final String SNAPSHOT_PATH = "v";
+
+    private static final String ALIAS_KEY_PREFIX = "alias:";
+
+    // One year, the conventional maximum for immutable resources
+    private static final int IMMUTABLE_MAX_AGE = 31536000;
+
+    // Looking the factory up scans the class path, while the JDK one is stateless and can be shared
+    private static final DatatypeFactory DATATYPE_FACTORY = newDatatypeFactory();
+
     private KeycloakSession session;
+    private final CieIdSpMetadataCache cache;
+    private final CieIdSpMetadataOptions options;
 
-    public CieIdSpMetadataResourceProvider(KeycloakSession session) {
+    public CieIdSpMetadataResourceProvider(KeycloakSession session, CieIdSpMetadataCache cache, CieIdSpMetadataOptions options) {
         this.session = session;
+        this.cache = cache;
+        this.options = options;
     }
 
     @Override
@@ -100,235 +146,657 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
     @GET
     @Produces("text/xml; charset=utf-8")
     public Response get() {
+        RealmModel realm = session.getContext().getRealm();
+        UriInfo uriInfo = session.getContext().getUri();
+
+        // The generated document only depends on the realm configuration and on the base URI
+        return serve(realm, String.valueOf(uriInfo.getBaseUri()));
+    }
+
+    /**
+     * Returns the metadata of a single CIE ID provider, looked up by alias without
+     * scanning the other identity providers of the realm.
+     */
+    @GET
+    @Path("{alias}")
+    @Produces("text/xml; charset=utf-8")
+    public Response get(@PathParam("alias") String alias) {
+        RealmModel realm = session.getContext().getRealm();
+        UriInfo uriInfo = session.getContext().getUri();
+
+        return serve(realm, ALIAS_KEY_PREFIX + alias + "|" + uriInfo.getBaseUri());
+    }
+
+    @FunctionalInterface
+    private interface MetadataBuilder {
+        CieIdSpMetadata build(String generation) throws Exception;
+    }
+
+    /**
+     * Returns the aggregate metadata of the given realm for the given base URI, going
+     * through the local and cluster caches. The realm does not need to be the one of the
+     * current request, which makes this method usable from background tasks as well.
+     */
+    public CieIdSpMetadata getMetadata(RealmModel realm, URI baseUri) throws Exception {
+        return lookup(realm, String.valueOf(baseUri), new boolean[1]);
+    }
+
+    /**
+     * Tells whether the given realm has at least one enabled CIE ID provider.
+     */
+    public boolean hasCieIdProviders(RealmModel realm) {
+        String generation = getGeneration(new CieIdSpMetadataClusterStore(session, options), realm.getId());
+        return !getCieIdProviders(realm, generation).isEmpty();
+    }
+
+    /**
+     * Regenerates the cached document with the given key before it expires, unless another
+     * cluster node already did.
+     */
+    public void refresh(RealmModel realm, String key) throws Exception {
+        CieIdSpMetadataClusterStore clusterStore = new CieIdSpMetadataClusterStore(session, options);
+        String generation = getGeneration(clusterStore, realm.getId());
+        String documents = getDocumentsGeneration(realm, generation);
+        MetadataBuilder metadataBuilder = getMetadataBuilder(realm, key);
+
+        long time = System.currentTimeMillis() + options.getRefreshMargin() * 1000L;
+        CieIdSpMetadata metadata = clusterStore.refresh(realm.getId(), documents, key, time,
+            () -> metadataBuilder.build(generation));
+        if (metadata != null)
+            cache.put(realm.getId(), documents, key, metadata);
+    }
+
+    /**
+     * Returns the builder of the document with the given cache key, which is either the base
+     * URI (all the providers of the realm) or the alias prefix, the alias and the base URI.
+     */
+    private MetadataBuilder getMetadataBuilder(RealmModel realm, String key) {
+        if (key.startsWith(ALIAS_KEY_PREFIX)) {
+            // URIs cannot contain a pipe, while aliases can
+            int separator = key.lastIndexOf('|');
+            String alias = key.substring(ALIAS_KEY_PREFIX.length(), separator);
+            URI baseUri = URI.create(key.substring(separator + 1));
+
+            return generation -> {
+                IdentityProviderModel model = session.identityProviders().getByAlias(alias);
+                if (!isEnabledCieIdProvider(model))
+                    throw new NotFoundException("CIE ID provider not found");
+
+                return buildMetadata(realm, baseUri, List.of(model));
+            };
+        }
+
+        URI baseUri = URI.create(key);
+        return generation -> buildMetadata(realm, baseUri, getCieIdProviders(realm, generation));
+    }
+
+    /**
+     * The generation is read from the cluster cache at most once per check interval, so that
+     * serving a cached document does not involve the cluster cache at all most of the time.
+     */
+    private String getGeneration(CieIdSpMetadataClusterStore clusterStore, String realmId) {
+        return cache.getGeneration(realmId, options.getClusterGenerationCheckInterval() * 1000L,
+            () -> clusterStore.getGeneration(realmId));
+    }
+
+    /**
+     * Key rotations do not raise any event: the documents, which list the realm keys and may be
+     * signed with the active one, are tagged with the keys as well, so that a rotation replaces them.
+     */
+    private String getDocumentsGeneration(RealmModel realm, String generation) {
+        String keys = session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)
+            .filter(Objects::nonNull)
+            .map(key -> key.getKid() + ':' + key.getStatus())
+            .collect(Collectors.joining(","));
+        return generation + '|' + CieIdSpMetadata.sha256(keys.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private CieIdSpMetadata lookup(RealmModel realm, String key, boolean[] built) throws Exception {
+        MetadataBuilder metadataBuilder = getMetadataBuilder(realm, key);
+
+        // In a cluster, a single node builds (and signs) the document and shares it with the others
+        CieIdSpMetadataClusterStore clusterStore = new CieIdSpMetadataClusterStore(session, options);
+        String generation = getGeneration(clusterStore, realm.getId());
+        String documents = getDocumentsGeneration(realm, generation);
+
+        return cache.get(realm.getId(), documents, key, () -> {
+            built[0] = true;
+            return clusterStore.get(realm.getId(), documents, key, () -> metadataBuilder.build(generation));
+        });
+    }
+
+    private Response serve(RealmModel realm, String key) {
         try
         {
-            // Retrieve all enabled CIE ID Identity Providers for this realms
-            RealmModel realm = session.getContext().getRealm();
-            IdentityProviderStorageProvider identityProviderStorage = session.identityProviders();
-            List<IdentityProviderModel> lstCieIdIdentityProviders = identityProviderStorage.getAllStream(IdentityProviderQuery.userAuthentication())
-                .filter(t -> t.getProviderId().equals(CieIdIdentityProviderFactory.PROVIDER_ID) &&
-                    t.isEnabled())
-                .sorted((o1,o2)-> o1.getAlias().compareTo(o2.getAlias()))
-                .collect(Collectors.toList());
-
-            if (lstCieIdIdentityProviders.size() == 0)
-                throw new Exception("No CIE ID providers found!");
-
-            // Create an instance of the first CIE ID Identity Provider in alphabetical order
-            CieIdIdentityProviderFactory providerFactory = new CieIdIdentityProviderFactory();
-            CieIdIdentityProvider firstCieIdProvider = providerFactory.create(session, lstCieIdIdentityProviders.get(0));
-            CieIdIdentityProviderConfig config = firstCieIdProvider.getConfig();
-
-            // Retrieve the context URI
-            UriInfo uriInfo = session.getContext().getUri();
-
-            //
-            URI authnBinding = JBossSAMLURIConstants.SAML_HTTP_REDIRECT_BINDING.getUri();
-
-            if (config.isPostBindingAuthnRequest()) {
-                authnBinding = JBossSAMLURIConstants.SAML_HTTP_POST_BINDING.getUri();
-            }
+            boolean[] built = { false };
+            CieIdSpMetadata metadata = lookup(realm, key, built);
+
+            CacheControl cacheControl = new CacheControl();
+            cacheControl.setMaxAge(options.getCacheMaxAge());
+
+            Response.ResponseBuilder builder = respond(metadata, cacheControl);
+            if (metadata.isSigned())
+                builder.header(SIGNATURE_CACHE_HEADER, built[0] && !metadata.isSignatureReused() ? "miss" : "hit");
 
-            URI endpoint = uriInfo.getBaseUriBuilder()
+            // Point to the immutable copy of the current version
+            if (options.getSnapshotRetention() > 0) {
+                publishSnapshot(realm, metadata);
+                builder.link(session.getContext().getUri().getBaseUriBuilder()
                     .path("realms").path(realm.getName())
-                    .path("broker")
-                    .path(config.getAlias())
-                    .path("endpoint")
-                    .build();
+                    .path(CieIdSpMetadataResourceProviderFactory.ID)
+                    .path(SNAPSHOT_PATH).path(metadata.getEtag())
+                    .build(), "canonical");
+            }
 
-            boolean wantAuthnRequestsSigned = config.isWantAuthnRequestsSigned();
-            boolean wantAssertionsSigned = config.isWantAssertionsSigned();
-            boolean wantAssertionsEncrypted = config.isWantAssertionsEncrypted();
-            String configEntityId = config.getEntityId();
-            String entityId = getEntityId(configEntityId, uriInfo, realm);
-            String nameIDPolicyFormat = config.getNameIDPolicyFormat();
-            int attributeConsumingServiceIndex = config.getAttributeConsumingServiceIndex() != null ? config.getAttributeConsumingServiceIndex(): 1;
-            String attributeConsumingServiceName = config.getAttributeConsumingServiceName();
-
-            List<KeyDescriptorType> signingKeys = new LinkedList<>();
-            List<KeyDescriptorType> encryptionKeys = new LinkedList<>();
-
-            session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)
-                    .filter(Objects::nonNull)
-                    .filter(key -> key.getCertificate() != null)
-                    .sorted(SamlService::compareKeys)
-                    .forEach(key -> {
-                        try {
-                            Element element = SPMetadataDescriptor
-                                    .buildKeyInfoElement(key.getKid(), PemUtils.encodeCertificate(key.getCertificate()));
-                            signingKeys.add(SPMetadataDescriptor.buildKeyDescriptorType(element, KeyTypes.SIGNING));
-
-                            if (key.getStatus() == KeyStatus.ACTIVE) {
-                                encryptionKeys.add(SPMetadataDescriptor.buildKeyDescriptorType(element, KeyTypes.ENCRYPTION));
-                            }
-                        } catch (ParserConfigurationException e) {
-                            logger.warn("Failed to export SAML SP Metadata!", e);
-                            throw new RuntimeException(e);
-                        }
-                    });
+            return builder.build();
+        } catch (WebApplicationException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("Failed to export SAML SP Metadata!", e);
+            throw new RuntimeException(e);
+        }
+    }
 
-            // Prepare the metadata descriptor model
-            StringWriter sw = new StringWriter();
-            XMLStreamWriter writer = StaxUtil.getXMLStreamWriter(sw);
-            SAMLMetadataWriter metadataWriter = new SAMLMetadataWriter(writer);
+    /**
+     * Returns a published version of the metadata, addressed by the SHA-256 digest of its content.
+     * The document at this URL never changes, so it can be cached indefinitely.
+     */
+    @GET
+    @Path(SNAPSHOT_PATH + "/{hash}")
+    @Produces("text/xml; charset=utf-8")
+    public Response getSnapshot(@PathParam("hash") String hash) {
+        RealmModel realm = session.getContext().getRealm();
+        if (options.getSnapshotRetention() <= 0)
+            throw new NotFoundException("Metadata version not found");
+
+        long retention = options.getSnapshotRetention() * 1000L;
+        CieIdSpMetadataSnapshots snapshots = cache.getSnapshots();
+        CieIdSpMetadata metadata = snapshots.get(realm.getId(), hash, retention);
+        if (metadata == null) {
+            metadata = new CieIdSpMetadataClusterStore(session, options).getSnapshot(realm.getId(), hash);
+            if (metadata == null)
+                throw new NotFoundException("Metadata version not found");
+
+            snapshots.put(realm.getId(), metadata);
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(IMMUTABLE_MAX_AGE);
+        cacheControl.getCacheExtension().put("immutable", null);
+        return respond(metadata, cacheControl).build();
+    }
 
-            EntityDescriptorType entityDescriptor = SPMetadataDescriptor.buildSPDescriptor(
-                authnBinding, authnBinding, endpoint, endpoint,
-                wantAuthnRequestsSigned, wantAssertionsSigned, wantAssertionsEncrypted,
-                entityId, nameIDPolicyFormat, signingKeys, encryptionKeys);
+    private void publishSnapshot(RealmModel realm, CieIdSpMetadata metadata) {
+        if (cache.getSnapshots().touch(realm.getId(), metadata, options.getSnapshotRetention() * 1000L))
+            new CieIdSpMetadataClusterStore(session, options).putSnapshot(realm.getId(), metadata, options.getSnapshotRetention());
+    }
+
+    /**
+     * Prepares the response carrying the document, honoring the conditional request headers
+     * and the accepted encodings.
+     */
+    private Response.ResponseBuilder respond(CieIdSpMetadata metadata, CacheControl cacheControl) {
+        HttpHeaders headers = session.getContext().getRequestHeaders();
+        boolean gzip = options.isCompression() && acceptsGzip(headers);
+
+        EntityTag etag = new EntityTag(gzip ? metadata.getGzipEtag() : metadata.getEtag());
+
+        Response.ResponseBuilder builder;
+        if (isNotModified(headers, metadata))
+            builder = Response.notModified();
+        else if (gzip)
+            builder = Response.ok(metadata.getGzipContent(), MediaType.APPLICATION_XML_TYPE)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        else
+            builder = Response.ok(metadata.getContent(), MediaType.APPLICATION_XML_TYPE);
 
-            // Create the AttributeConsumingService
-            AttributeConsumingServiceType attributeConsumingService = new AttributeConsumingServiceType(attributeConsumingServiceIndex);
-            attributeConsumingService.setIsDefault(true);
+        if (options.isCompression())
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
 
-            if (attributeConsumingServiceName != null)
-            {
-                LocalizedNameType attributeConsumingServiceNameElement = new LocalizedNameType("");
-                attributeConsumingServiceNameElement.setValue(attributeConsumingServiceName);
-                attributeConsumingService.addServiceName(attributeConsumingServiceNameElement);
+        return builder.tag(etag)
+            .lastModified(metadata.getLastModified())
+            .cacheControl(cacheControl);
+    }
+
+    /**
+     * Returns the enabled CIE ID providers of the realm, sorted by alias. The realm identity
+     * providers are only scanned when they are not indexed yet for the given generation.
+     */
+    private List<IdentityProviderModel> getCieIdProviders(RealmModel realm, String generation) {
+        return cache.getProviders().getProviders(session, realm.getId(), generation).stream()
+            .filter(CieIdSpMetadataResourceProvider::isEnabledCieIdProvider)
+            .collect(Collectors.toList());
+    }
+
+    private static boolean isEnabledCieIdProvider(IdentityProviderModel model) {
+        return model != null && model.isEnabled() && CieIdIdentityProviderIndex.isCieIdProvider(model);
+    }
+
+    /**
+     * Evaluates the request preconditions (RFC 9110, section 13.2.2): If-None-Match takes
+     * precedence, If-Modified-Since is only considered when the former is absent.
+     */
+    static boolean isNotModified(HttpHeaders headers, CieIdSpMetadata metadata) {
+        if (headers == null)
+            return false;
+
+        String ifNoneMatch = headers.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*"))
+                    return true;
+
+                // Weak comparison: W/"x" matches "x"
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if (tag.equals("\"" + metadata.getEtag() + "\"") || tag.equals("\"" + metadata.getGzipEtag() + "\""))
+                    return true;
             }
-    
-            // Look for the SP descriptor and add the attribute consuming service
-            for (EntityDescriptorType.EDTChoiceType choiceType: entityDescriptor.getChoiceType()) {
-                List<EntityDescriptorType.EDTDescriptorChoiceType> descriptors = choiceType.getDescriptors();
-
-                if (descriptors != null) {
-                    for (EntityDescriptorType.EDTDescriptorChoiceType descriptor: descriptors) {
-                        if (descriptor.getSpDescriptor() != null) {
-                            descriptor.getSpDescriptor().addAttributeConsumerService(attributeConsumingService);
-                        }
+            return false;
+        }
+
+        String ifModifiedSince = headers.getHeaderString(HttpHeaders.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+                return metadata.getLastModified().getTime() <= since;
+            } catch (DateTimeParseException e) {
+                // Invalid dates must be ignored
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Tells whether the client accepts a gzip encoded response, honoring the
+     * quality values of the Accept-Encoding header (RFC 9110, section 12.5.3).
+     */
+    static boolean acceptsGzip(HttpHeaders headers) {
+        String acceptEncoding = headers != null ? headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING) : null;
+        if (acceptEncoding == null)
+            return false;
+
+        Boolean gzip = null;
+        boolean wildcard = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            boolean acceptable = true;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        acceptable = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        acceptable = false;
                     }
                 }
             }
-            
-            // Add the attribute mappers
-            identityProviderStorage.getMappersByAliasStream(config.getAlias())
-                .forEach(mapper -> {
-                    IdentityProviderMapper target = (IdentityProviderMapper) session.getKeycloakSessionFactory().getProviderFactory(IdentityProviderMapper.class, mapper.getIdentityProviderMapper());
-                    if (target instanceof SamlMetadataDescriptorUpdater)
-                    {
-                        SamlMetadataDescriptorUpdater metadataAttrProvider = (SamlMetadataDescriptorUpdater)target;
-                        metadataAttrProvider.updateMetadata(mapper, entityDescriptor);
+
+            if (coding.equals("gzip") || coding.equals("x-gzip"))
+                gzip = acceptable;
+            else if (coding.equals("*"))
+                wildcard = acceptable;
+        }
+
+        return gzip != null ? gzip : wildcard;
+    }
+
+    private CieIdSpMetadata buildMetadata(RealmModel realm, URI baseUri,
+        List<IdentityProviderModel> lstCieIdIdentityProviders) throws Exception {
+        IdentityProviderStorageProvider identityProviderStorage = session.identityProviders();
+
+        if (lstCieIdIdentityProviders.size() == 0)
+            throw new Exception("No CIE ID providers found!");
+
+        // The configuration of the first CIE ID Identity Provider in alphabetical order
+        CieIdIdentityProviderConfig config = new CieIdIdentityProviderConfig(lstCieIdIdentityProviders.get(0));
+
+        //
+        URI authnBinding = JBossSAMLURIConstants.SAML_HTTP_REDIRECT_BINDING.getUri();
+
+        if (config.isPostBindingAuthnRequest()) {
+            authnBinding = JBossSAMLURIConstants.SAML_HTTP_POST_BINDING.getUri();
+        }
+
+        URI endpoint = UriBuilder.fromUri(baseUri)
+                .path("realms").path(realm.getName())
+                .path("broker")
+                .path(config.getAlias())
+                .path("endpoint")
+                .build();
+
+        boolean wantAuthnRequestsSigned = config.isWantAuthnRequestsSigned();
+        boolean wantAssertionsSigned = config.isWantAssertionsSigned();
+        boolean wantAssertionsEncrypted = config.isWantAssertionsEncrypted();
+        String configEntityId = config.getEntityId();
+        String entityId = getEntityId(configEntityId, baseUri, realm);
+        String nameIDPolicyFormat = config.getNameIDPolicyFormat();
+        int attributeConsumingServiceIndex = config.getDefaultAttributeConsumingServiceIndex();
+        String attributeConsumingServiceName = config.getAttributeConsumingServiceName();
+        Map<Integer, String> additionalAttributeConsumingServices = config.getAdditionalAttributeConsumingServiceNames();
+
+        List<KeyDescriptorType> signingKeys = new LinkedList<>();
+        List<KeyDescriptorType> encryptionKeys = new LinkedList<>();
+
+        session.keys().getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)
+                .filter(Objects::nonNull)
+                .filter(key -> key.getCertificate() != null)
+                .sorted(SamlService::compareKeys)
+                .forEach(key -> {
+                    try {
+                        Element element = SPMetadataDescriptor
+                                .buildKeyInfoElement(key.getKid(), PemUtils.encodeCertificate(key.getCertificate()));
+                        signingKeys.add(SPMetadataDescriptor.buildKeyDescriptorType(element, KeyTypes.SIGNING));
+
+                        if (key.getStatus() == KeyStatus.ACTIVE) {
+                            encryptionKeys.add(SPMetadataDescriptor.buildKeyDescriptorType(element, KeyTypes.ENCRYPTION));
+                        }
+                    } catch (ParserConfigurationException e) {
+                        logger.warn("Failed to export SAML SP Metadata!", e);
+                        throw new RuntimeException(e);
                     }
                 });
-				
-			// Additional EntityDescriptor customizations
-            String strOrganizationNames = config.getOrganizationNames();
-            String[] organizationNames = strOrganizationNames != null ? strOrganizationNames.split(","): null;
-
-            String strOrganizationDisplayNames = config.getOrganizationDisplayNames();
-            String[] organizationDisplayNames = strOrganizationDisplayNames != null ? strOrganizationDisplayNames.split(","): null;
-
-            String strOrganizationUrls = config.getOrganizationUrls();
-            String[] organizationUrls = strOrganizationUrls != null ? strOrganizationUrls.split(","): null;
-
-            boolean isSpPrivate = config.isSpPrivate();
-            String ipaCode = config.getIpaCode();
-            String ipaCategory = config.getIpaCategory();
-            String administrativeContactCompany = config.getAdministrativeContactCompany();
-            String administrativeContactVatNumber = config.getAdministrativeContactVatNumber();
-            String administrativeContactFiscalCode = config.getAdministrativeContactFiscalCode();
-            String administrativeContactEmail = config.getAdministrativeContactEmail();
-            String administrativeContactPhone = config.getAdministrativeContactPhone();
-            String strAdministrativeContactNace2Codes = config.getAdministrativeContactNace2Codes();
-            String[] administrativeContactNace2Codes = strAdministrativeContactNace2Codes != null ? strAdministrativeContactNace2Codes.split(","): null;
-            String administrativeContactMunicipality = config.getAdministrativeContactMunicipality();
-            String administrativeContactProvince = config.getAdministrativeContactProvince();
-            String administrativeContactCountry = config.getAdministrativeContactCountry();
-            String technicalContactCompany = config.getTechnicalContactCompany();
-            String technicalContactVatNumber = config.getTechnicalContactVatNumber();
-            String technicalContactFiscalCode = config.getTechnicalContactFiscalCode();
-            String technicalContactEmail = config.getTechnicalContactEmail(); 
-            String technicalContactPhone = config.getTechnicalContactPhone();
-            String strTechnicalContactNace2Codes = config.getTechnicalContactNace2Codes();
-            String[] technicalContactNace2Codes = strTechnicalContactNace2Codes!= null ? strTechnicalContactNace2Codes.split(","): null;
-            String technicalContactMunicipality = config.getTechnicalContactMunicipality();
-            String technicalContactProvince = config.getTechnicalContactProvince();
-            String technicalContactCountry = config.getTechnicalContactCountry();
-
-			// Additional EntityDescriptor customizations
-            customizeEntityDescriptor(entityDescriptor,
-              organizationNames, organizationDisplayNames, organizationUrls,
-              isSpPrivate, ipaCode, ipaCategory,
-              administrativeContactCompany, administrativeContactVatNumber, administrativeContactFiscalCode,
-              administrativeContactEmail, administrativeContactPhone, administrativeContactNace2Codes,
-              administrativeContactMunicipality, administrativeContactProvince, administrativeContactCountry,
-              technicalContactCompany, technicalContactVatNumber, technicalContactFiscalCode, 
-              technicalContactEmail, technicalContactPhone, technicalContactNace2Codes,
-              technicalContactMunicipality, technicalContactProvince, technicalContactCountry);
-
-            // Additional SPSSODescriptor customizations
-            List<URI> assertionEndpoints = lstCieIdIdentityProviders.stream()
-                    .map(t -> uriInfo.getBaseUriBuilder()
-                        .path("realms").path(realm.getName())
-                        .path("broker")
-                        .path(t.getAlias())
-                        .path("endpoint")
-                    .build()).collect(Collectors.toList());
-
-            List<URI> logoutEndpoints = lstCieIdIdentityProviders.stream()
-                .map(t -> uriInfo.getBaseUriBuilder()
+
+        // Prepare the metadata descriptor model
+        EntityDescriptorType entityDescriptor = SPMetadataDescriptor.buildSPDescriptor(
+            authnBinding, authnBinding, endpoint, endpoint,
+            wantAuthnRequestsSigned, wantAssertionsSigned, wantAssertionsEncrypted,
+            entityId, nameIDPolicyFormat, signingKeys, encryptionKeys);
+
+        // Create the default AttributeConsumingService, followed by the additional ones
+        List<AttributeConsumingServiceType> attributeConsumingServices = new ArrayList<>();
+        attributeConsumingServices.add(buildAttributeConsumingService(attributeConsumingServiceIndex, attributeConsumingServiceName, true));
+        additionalAttributeConsumingServices.forEach((index, name) ->
+            attributeConsumingServices.add(buildAttributeConsumingService(index, name, false)));
+
+        // Look for the SP descriptor and add the attribute consuming services
+        for (EntityDescriptorType.EDTChoiceType choiceType: entityDescriptor.getChoiceType()) {
+            List<EntityDescriptorType.EDTDescriptorChoiceType> descriptors = choiceType.getDescriptors();
+
+            if (descriptors != null) {
+                for (EntityDescriptorType.EDTDescriptorChoiceType descriptor: descriptors) {
+                    if (descriptor.getSpDescriptor() != null) {
+                        attributeConsumingServices.forEach(descriptor.getSpDescriptor()::addAttributeConsumerService);
+                    }
+                }
+            }
+        }
+        
+        // Add the attribute mappers
+        identityProviderStorage.getMappersByAliasStream(config.getAlias())
+            .forEach(mapper -> {
+                IdentityProviderMapper target = (IdentityProviderMapper) session.getKeycloakSessionFactory().getProviderFactory(IdentityProviderMapper.class, mapper.getIdentityProviderMapper());
+                if (target instanceof SamlMetadataDescriptorUpdater)
+                {
+                    SamlMetadataDescriptorUpdater metadataAttrProvider = (SamlMetadataDescriptorUpdater)target;
+                    metadataAttrProvider.updateMetadata(mapper, entityDescriptor);
+                }
+            });
+			
+		// Additional EntityDescriptor customizations
+        String strOrganizationNames = config.getOrganizationNames();
+        String[] organizationNames = strOrganizationNames != null ? strOrganizationNames.split(","): null;
+
+        String strOrganizationDisplayNames = config.getOrganizationDisplayNames();
+        String[] organizationDisplayNames = strOrganizationDisplayNames != null ? strOrganizationDisplayNames.split(","): null;
+
+        String strOrganizationUrls = config.getOrganizationUrls();
+        String[] organizationUrls = strOrganizationUrls != null ? strOrganizationUrls.split(","): null;
+
+        boolean isSpPrivate = config.isSpPrivate();
+        String ipaCode = config.getIpaCode();
+        String ipaCategory = config.getIpaCategory();
+        String administrativeContactCompany = config.getAdministrativeContactCompany();
+        String administrativeContactVatNumber = config.getAdministrativeContactVatNumber();
+        String administrativeContactFiscalCode = config.getAdministrativeContactFiscalCode();
+        String administrativeContactEmail = config.getAdministrativeContactEmail();
+        String administrativeContactPhone = config.getAdministrativeContactPhone();
+        String strAdministrativeContactNace2Codes = config.getAdministrativeContactNace2Codes();
+        String[] administrativeContactNace2Codes = strAdministrativeContactNace2Codes != null ? strAdministrativeContactNace2Codes.split(","): null;
+        String administrativeContactMunicipality = config.getAdministrativeContactMunicipality();
+        String administrativeContactProvince = config.getAdministrativeContactProvince();
+        String administrativeContactCountry = config.getAdministrativeContactCountry();
+        String technicalContactCompany = config.getTechnicalContactCompany();
+        String technicalContactVatNumber = config.getTechnicalContactVatNumber();
+        String technicalContactFiscalCode = config.getTechnicalContactFiscalCode();
+        String technicalContactEmail = config.getTechnicalContactEmail(); 
+        String technicalContactPhone = config.getTechnicalContactPhone();
+        String strTechnicalContactNace2Codes = config.getTechnicalContactNace2Codes();
+        String[] technicalContactNace2Codes = strTechnicalContactNace2Codes!= null ? strTechnicalContactNace2Codes.split(","): null;
+        String technicalContactMunicipality = config.getTechnicalContactMunicipality();
+        String technicalContactProvince = config.getTechnicalContactProvince();
+        String technicalContactCountry = config.getTechnicalContactCountry();
+
+		// Additional EntityDescriptor customizations
+        customizeEntityDescriptor(entityDescriptor,
+          organizationNames, organizationDisplayNames, organizationUrls,
+          isSpPrivate, ipaCode, ipaCategory,
+          administrativeContactCompany, administrativeContactVatNumber, administrativeContactFiscalCode,
+          administrativeContactEmail, administrativeContactPhone, administrativeContactNace2Codes,
+          administrativeContactMunicipality, administrativeContactProvince, administrativeContactCountry,
+          technicalContactCompany, technicalContactVatNumber, technicalContactFiscalCode, 
+          technicalContactEmail, technicalContactPhone, technicalContactNace2Codes,
+          technicalContactMunicipality, technicalContactProvince, technicalContactCountry);
+
+        // Validity attributes
+        Date validUntil = null;
+        if (options.getValidity() > 0) {
+            // Rounded down to the refresh margin, so that the documents built in the same
+            // window (e.g. by different nodes) are identical and can share the signature
+            long granularity = Math.max(options.getRefreshMargin(), 1) * 1000L;
+            validUntil = new Date((System.currentTimeMillis() + options.getValidity() * 1000L) / granularity * granularity);
+
+            GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            calendar.setTime(validUntil);
+            entityDescriptor.setValidUntil(DATATYPE_FACTORY.newXMLGregorianCalendar(calendar));
+        }
+        if (options.getCacheDuration() > 0)
+            entityDescriptor.setCacheDuration(DATATYPE_FACTORY.newDuration("PT" + options.getCacheDuration() + "S"));
+
+        // Additional SPSSODescriptor customizations
+        List<URI> assertionEndpoints = lstCieIdIdentityProviders.stream()
+                .map(t -> UriBuilder.fromUri(baseUri)
                     .path("realms").path(realm.getName())
                     .path("broker")
                     .path(t.getAlias())
                     .path("endpoint")
-                    .build()).collect(Collectors.toList());
-
-            for (EntityDescriptorType.EDTChoiceType choiceType: entityDescriptor.getChoiceType()) {
-                List<EntityDescriptorType.EDTDescriptorChoiceType> descriptors = choiceType.getDescriptors();
-    
-                if (descriptors != null) {
-                    for (EntityDescriptorType.EDTDescriptorChoiceType descriptor: descriptors) {
-                        SPSSODescriptorType spDescriptor = descriptor.getSpDescriptor();
-                        
-                        if (spDescriptor != null) {
-                            customizeSpDescriptor(spDescriptor,
-                                authnBinding, authnBinding,
-                                assertionEndpoints, logoutEndpoints);
-                        }
+                .build()).collect(Collectors.toList());
+
+        List<URI> logoutEndpoints = lstCieIdIdentityProviders.stream()
+            .map(t -> UriBuilder.fromUri(baseUri)
+                .path("realms").path(realm.getName())
+                .path("broker")
+                .path(t.getAlias())
+                .path("endpoint")
+                .build()).collect(Collectors.toList());
+
+        for (EntityDescriptorType.EDTChoiceType choiceType: entityDescriptor.getChoiceType()) {
+            List<EntityDescriptorType.EDTDescriptorChoiceType> descriptors = choiceType.getDescriptors();
+
+            if (descriptors != null) {
+                for (EntityDescriptorType.EDTDescriptorChoiceType descriptor: descriptors) {
+                    SPSSODescriptorType spDescriptor = descriptor.getSpDescriptor();
+                    
+                    if (spDescriptor != null) {
+                        customizeSpDescriptor(spDescriptor,
+                            authnBinding, authnBinding,
+                            assertionEndpoints, logoutEndpoints);
                     }
                 }
             }
+        }
 
-            // Write the metadata and export it to a string
-            metadataWriter.writeEntityDescriptor(entityDescriptor);
+        // Metadata signing
+        if (config.isSignSpMetadata()) {
+            KeyManager.ActiveRsaKey activeKey = new ActiveRsaKey(session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256));
+            String keyName = config.getXmlSigKeyInfoKeyNameTransformer().getKeyName(activeKey.getKid(), activeKey.getCertificate());
+            SignatureAlgorithm signatureAlgorithm = getSignatureAlgorithm(config);
 
-            String descriptor = sw.toString();
+            // Build the DOM straight from the model: it is signed in place and serialized only once
+            Document document = writeDocument(entityDescriptor);
+            String contentHash = stabilizeId(document);
 
-            // Metadata signing
-            if (config.isSignSpMetadata()) {
-                KeyManager.ActiveRsaKey activeKey = new ActiveRsaKey(session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256));
-                String keyName = config.getXmlSigKeyInfoKeyNameTransformer().getKeyName(activeKey.getKid(), activeKey.getCertificate());
-                KeyPair keyPair = new KeyPair(activeKey.getPublicKey(), activeKey.getPrivateKey());
+            CieIdSpMetadataSignatureCache.SignedDescriptor signed = cache.getSignatures().sign(contentHash,
+                activeKey.getKid(), signatureAlgorithm.name(), keyName,
+                () -> signDocument(document, new KeyPair(activeKey.getPublicKey(), activeKey.getPrivateKey()),
+                    activeKey.getCertificate(), keyName, signatureAlgorithm));
 
-                Document metadataDocument = DocumentUtil.getDocument(descriptor);
-                SAML2Signature signatureHelper = new SAML2Signature();
-                signatureHelper.setSignatureMethod(firstCieIdProvider.getSignatureAlgorithm().getXmlSignatureMethod());
-                signatureHelper.setDigestMethod(firstCieIdProvider.getSignatureAlgorithm().getXmlSignatureDigestMethod());
-                signatureHelper.setX509Certificate(activeKey.getCertificate());
+            return CieIdSpMetadata.signed(signed.getContent(), signed.isCached(), validUntil);
+        }
 
-                Node nextSibling = metadataDocument.getDocumentElement().getFirstChild();
-                signatureHelper.setNextSibling(nextSibling);
+        // Unsigned metadata is streamed by the writer without building any DOM
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLStreamWriter writer = StaxUtil.getXMLStreamWriter(out);
+        new CieIdSpMetadataWriter(writer).writeEntityDescriptor(entityDescriptor);
+        StaxUtil.flush(writer);
 
-                signatureHelper.signSAMLDocument(metadataDocument, keyName, keyPair, CanonicalizationMethod.EXCLUSIVE);
+        return CieIdSpMetadata.unsigned(
+            stabilizeId(out.toString(StandardCharsets.UTF_8), entityDescriptor.getID()).getBytes(StandardCharsets.UTF_8),
+            validUntil);
+    }
 
-                descriptor = DocumentUtil.getDocumentAsString(metadataDocument);
-            }
+    /**
+     * Writes the metadata model to a new DOM document, without any intermediate serialization.
+     */
+    static Document writeDocument(EntityDescriptorType entityDescriptor) throws Exception {
+        Document document = DocumentUtil.createDocument();
+        XMLStreamWriter writer = StaxUtil.getXMLStreamWriter(new DOMResult(document));
+        new CieIdSpMetadataWriter(writer).writeEntityDescriptor(entityDescriptor);
+        StaxUtil.flush(writer);
+        return document;
+    }
 
-            return Response.ok(descriptor, MediaType.APPLICATION_XML_TYPE).build();
-        } catch (Exception e) {
-            logger.warn("Failed to export SAML SP Metadata!", e);
-            throw new RuntimeException(e);
+    /**
+     * Replaces the random ID generated by {@link SPMetadataDescriptor} with one derived from
+     * the document content, so that identical configurations produce identical documents
+     * (and therefore the same ETag and a reusable signature).
+     */
+    static String stabilizeId(String descriptor, String randomId) {
+        String idAttribute = "ID=\"" + randomId + "\"";
+        String template = descriptor.replace(idAttribute, "ID=\"\"");
+        String stableId = "ID_" + UUID.nameUUIDFromBytes(template.getBytes(StandardCharsets.UTF_8));
+        return descriptor.replace(idAttribute, "ID=\"" + stableId + "\"");
+    }
+
+    /**
+     * DOM variant of {@link #stabilizeId(String, String)}: the digest is computed by walking
+     * the tree, without serializing it.
+     *
+     * @return the hex encoded SHA-256 digest of the document, with an empty ID
+     */
+    static String stabilizeId(Document document) throws Exception {
+        Element root = document.getDocumentElement();
+        root.setAttribute("ID", "");
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digestNode(root, digest);
+        byte[] hash = digest.digest();
+
+        root.setAttribute("ID", "ID_" + UUID.nameUUIDFromBytes(hash));
+        return HexFormat.of().formatHex(hash);
+    }
+
+    private static void digestNode(Node node, MessageDigest digest) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                digest.update((byte) '<');
+                digestString(node.getNamespaceURI(), digest);
+                digestString(node.getNodeName(), digest);
+
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Node attribute = attributes.item(i);
+                    digest.update((byte) '@');
+                    digestString(attribute.getNamespaceURI(), digest);
+                    digestString(attribute.getNodeName(), digest);
+                    digestString(attribute.getNodeValue(), digest);
+                }
+
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+                    digestNode(child, digest);
+
+                digest.update((byte) '>');
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                digest.update((byte) '#');
+                digestString(node.getNodeValue(), digest);
+                break;
+            default:
+                // Comments and processing instructions are not produced by the metadata writer
+                break;
         }
     }
 
-    private String getEntityId(String configEntityId, UriInfo uriInfo, RealmModel realm) {
+    /**
+     * The signature algorithm of a provider, defaulting to RSA_SHA256 like {@code SAMLIdentityProvider}.
+     */
+    private static DatatypeFactory newDatatypeFactory() {
+        try {
+            return DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static SignatureAlgorithm getSignatureAlgorithm(CieIdIdentityProviderConfig config) {
+        String signatureAlgorithm = config.getSignatureAlgorithm();
+        return signatureAlgorithm == null ? SignatureAlgorithm.RSA_SHA256 : SignatureAlgorithm.valueOf(signatureAlgorithm);
+    }
+
+    private static void digestString(String value, MessageDigest digest) {
+        if (value != null)
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        // Separator, so that adjacent values cannot be confused
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Signs the document in place and serializes it.
+     */
+    static byte[] signDocument(Document document, KeyPair keyPair, X509Certificate certificate, String keyName,
+        SignatureAlgorithm signatureAlgorithm) throws Exception {
+        SAML2Signature signatureHelper = new SAML2Signature();
+        signatureHelper.setSignatureMethod(signatureAlgorithm.getXmlSignatureMethod());
+        signatureHelper.setDigestMethod(signatureAlgorithm.getXmlSignatureDigestMethod());
+        signatureHelper.setX509Certificate(certificate);
+
+        Node nextSibling = document.getDocumentElement().getFirstChild();
+        signatureHelper.setNextSibling(nextSibling);
+
+        signatureHelper.signSAMLDocument(document, keyName, keyPair, CanonicalizationMethod.EXCLUSIVE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransformerUtil.getTransformer().transform(new DOMSource(document), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    private String getEntityId(String configEntityId, URI baseUri, RealmModel realm) {
         if (configEntityId == null || configEntityId.isEmpty())
-            return UriBuilder.fromUri(uriInfo.getBaseUri()).path("realms").path(realm.getName()).build().toString();
+            return UriBuilder.fromUri(baseUri).path("realms").path(realm.getName()).build().toString();
         else
             return configEntityId;
     }
 
+    private static AttributeConsumingServiceType buildAttributeConsumingService(int index, String name, boolean isDefault) {
+        AttributeConsumingServiceType attributeConsumingService = new AttributeConsumingServiceType(index);
+        attributeConsumingService.setIsDefault(isDefault);
+
+        if (name != null)
+        {
+            LocalizedNameType attributeConsumingServiceNameElement = new LocalizedNameType("");
+            attributeConsumingServiceNameElement.setValue(name);
+            attributeConsumingService.addServiceName(attributeConsumingServiceNameElement);
+        }
+
+        return attributeConsumingService;
+    }
+
     private static void customizeEntityDescriptor(EntityDescriptorType entityDescriptor,
 		String[] organizationNames, String[] organizationDisplayNames, String[] organizationUrls,
         boolean isSpPrivate, String ipaCode, String ipaCategory,
@@ -337,8 +805,7 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
         String administrativeContactMunicipality, String administrativeContactProvince, String administrativeContactCountry,
         String technicalContactCompany, String technicalContactVatNumber, String technicalContactFiscalCode,
         String technicalContactEmail, String technicalContactPhone, String[] technicalContactNace2Codes,
-        String technicalContactMunicipality, String technicalContactProvince, String technicalContactCountry) 
-        throws ConfigurationException
+        String technicalContactMunicipality, String technicalContactProvince, String technicalContactCountry)
     {
         // Organization
         if (organizationNames != null && organizationNames.length > 0 ||
@@ -397,36 +864,26 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
                 if (!StringUtil.isNullOrEmpty(administrativeContactPhone)) administrativeContactPerson.addTelephone(administrativeContactPhone);
 
                 // Extensions
-                if (administrativeContactPerson.getExtensions() == null)
-                administrativeContactPerson.setExtensions(new ExtensionsType());
-
-                Document doc = DocumentUtil.createDocument();
+                CieIdContactExtensions administrativeExtensions = new CieIdContactExtensions();
+                administrativeContactPerson.setExtensions(administrativeExtensions);
 
                 if (!isSpPrivate)
                 {
                     // Public SP Extensions
 						
                     // Public qualifier
-                    Element spTypeElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Public");
-                    spTypeElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    administrativeContactPerson.getExtensions().addExtension(spTypeElement);
+                    administrativeExtensions.addExtension("Public", null);
 
                     // IPA Code
                     if (!StringUtil.isNullOrEmpty(ipaCode))
                     {
-                        Element ipaCodeElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:IPACode");
-                        ipaCodeElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                        ipaCodeElement.setTextContent(ipaCode);
-                        administrativeContactPerson.getExtensions().addExtension(ipaCodeElement);
+                        administrativeExtensions.addExtension("IPACode", ipaCode);
                     }
 
                     // IPA Category
                     if (!StringUtil.isNullOrEmpty(ipaCategory))
                     {
-                        Element ipaCategoryElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:IPACategory");
-                        ipaCategoryElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                        ipaCategoryElement.setTextContent(ipaCategory);
-                        administrativeContactPerson.getExtensions().addExtension(ipaCategoryElement);
+                        administrativeExtensions.addExtension("IPACategory", ipaCategory);
                     }
                 }
                 else
@@ -434,27 +891,19 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
                     // Private SP Extensions
 					
                     // Private qualifier
-                    Element spTypeElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Private");
-                    spTypeElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    administrativeContactPerson.getExtensions().addExtension(spTypeElement);
+                    administrativeExtensions.addExtension("Private", null);
                 }
 
                 // VAT Number
                 if (!StringUtil.isNullOrEmpty(administrativeContactVatNumber))
                 {
-                    Element vatNumberElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:VATNumber");
-                    vatNumberElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    vatNumberElement.setTextContent(administrativeContactVatNumber);
-                    administrativeContactPerson.getExtensions().addExtension(vatNumberElement);
+                    administrativeExtensions.addExtension("VATNumber", administrativeContactVatNumber);
                 }
 
                 // Fiscal Code	
                 if (!StringUtil.isNullOrEmpty(administrativeContactFiscalCode))
                 {
-                    Element fiscalCodeElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:FiscalCode");
-                    fiscalCodeElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    fiscalCodeElement.setTextContent(administrativeContactFiscalCode);
-                    administrativeContactPerson.getExtensions().addExtension(fiscalCodeElement);
+                    administrativeExtensions.addExtension("FiscalCode", administrativeContactFiscalCode);
                 }
 
                 // NACE2 Codes
@@ -462,38 +911,26 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
                 {
                     for (String naceCode : administrativeContactNace2Codes)
                     {
-                        Element naceCodeElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:NACE2Code");
-                        naceCodeElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                        naceCodeElement.setTextContent(naceCode);
-                        administrativeContactPerson.getExtensions().addExtension(naceCodeElement);
+                        administrativeExtensions.addExtension("NACE2Code", naceCode);
                     }
                 }
 
                 // Municipality
                 if (!StringUtil.isNullOrEmpty(administrativeContactMunicipality))
                 {
-                    Element municipalityElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Municipality");
-                    municipalityElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    municipalityElement.setTextContent(administrativeContactMunicipality);
-                    administrativeContactPerson.getExtensions().addExtension(municipalityElement);
+                    administrativeExtensions.addExtension("Municipality", administrativeContactMunicipality);
                 }
 
                 // Province	
                 if (!StringUtil.isNullOrEmpty(administrativeContactProvince))
                 {
-                    Element provinceElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Province");
-                    provinceElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    provinceElement.setTextContent(administrativeContactProvince);
-                    administrativeContactPerson.getExtensions().addExtension(provinceElement);
+                    administrativeExtensions.addExtension("Province", administrativeContactProvince);
                 }
 
                 // Country
                 if (!StringUtil.isNullOrEmpty(administrativeContactCountry))
                 {
-                    Element countryElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Country");
-                    countryElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    countryElement.setTextContent(administrativeContactCountry);
-                    administrativeContactPerson.getExtensions().addExtension(countryElement);
+                    administrativeExtensions.addExtension("Country", administrativeContactCountry);
                 }
 
                 entityDescriptor.addContactPerson(administrativeContactPerson);
@@ -510,27 +947,19 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
                 if (!StringUtil.isNullOrEmpty(technicalContactPhone)) technicalContactPerson.addTelephone(technicalContactPhone);
 
                 // Extensions
-                if (technicalContactPerson.getExtensions() == null)
-                technicalContactPerson.setExtensions(new ExtensionsType());
-
-                Document doc = DocumentUtil.createDocument();
+                CieIdContactExtensions technicalExtensions = new CieIdContactExtensions();
+                technicalContactPerson.setExtensions(technicalExtensions);
 
                 // VAT Number
                 if (!StringUtil.isNullOrEmpty(technicalContactVatNumber))
                 {
-                    Element vatNumberElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:VATNumber");
-                    vatNumberElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    vatNumberElement.setTextContent(technicalContactVatNumber);
-                    technicalContactPerson.getExtensions().addExtension(vatNumberElement);
+                    technicalExtensions.addExtension("VATNumber", technicalContactVatNumber);
                 }
 
                 // Fiscal Code	
                 if (!StringUtil.isNullOrEmpty(technicalContactFiscalCode))
                 {
-                    Element fiscalCodeElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:FiscalCode");
-                    fiscalCodeElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    fiscalCodeElement.setTextContent(technicalContactFiscalCode);
-                    technicalContactPerson.getExtensions().addExtension(fiscalCodeElement);
+                    technicalExtensions.addExtension("FiscalCode", technicalContactFiscalCode);
                 }
 
                 // NACE2 Codes
@@ -538,38 +967,26 @@ public class CieIdSpMetadataResourceProvider implements RealmResourceProvider {
                 {
                     for (String naceCode : technicalContactNace2Codes)
                     {
-                        Element naceCodeElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:NACE2Code");
-                        naceCodeElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                        naceCodeElement.setTextContent(naceCode);
-                        technicalContactPerson.getExtensions().addExtension(naceCodeElement);
+                        technicalExtensions.addExtension("NACE2Code", naceCode);
                     }
                 }
 
                 // Municipality
                 if (!StringUtil.isNullOrEmpty(technicalContactMunicipality))
                 {
-                    Element municipalityElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Municipality");
-                    municipalityElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    municipalityElement.setTextContent(technicalContactMunicipality);
-                    technicalContactPerson.getExtensions().addExtension(municipalityElement);
+                    technicalExtensions.addExtension("Municipality", technicalContactMunicipality);
                 }
 
                 // Province	
                 if (!StringUtil.isNullOrEmpty(technicalContactProvince))
                 {
-                    Element provinceElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Province");
-                    provinceElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    provinceElement.setTextContent(technicalContactProvince);
-                    technicalContactPerson.getExtensions().addExtension(provinceElement);
+                    technicalExtensions.addExtension("Province", technicalContactProvince);
                 }
 
                 // Country
                 if (!StringUtil.isNullOrEmpty(technicalContactCountry))
                 {
-                    Element countryElement = doc.createElementNS(CIEID_METADATA_EXTENSIONS_NS, "cie:Country");
-                    countryElement.setAttributeNS(XMLNS_NS, "xmlns:cie", CIEID_METADATA_EXTENSIONS_NS);
-                    countryElement.setTextContent(technicalContactCountry);
-                    technicalContactPerson.getExtensions().addExtension(countryElement);
+                    technicalExtensions.addExtension("Country", technicalContactCountry);
                 }
 
                 entityDescriptor.addContactPerson(technicalContactPerson);
@@ -14,16 +14,33 @@
 
 package org.keycloak.broker.cieid.metadata;
 
+import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
+import org.keycloak.broker.cieid.CieIdIdentityProviderIndex;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderEvent;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.timer.TimerProvider;
+
+import java.net.URI;
 
 public class CieIdSpMetadataResourceProviderFactory implements RealmResourceProviderFactory {
+    protected static final Logger logger = Logger.getLogger(CieIdSpMetadataResourceProviderFactory.class);
 
     public static final String ID = "cieid-sp-metadata";
 
+    private final CieIdSpMetadataCache cache = new CieIdSpMetadataCache();
+    private CieIdSpMetadataOptions options = new CieIdSpMetadataOptions();
+    private CieIdSpMetadataRefresher refresher;
+    private CieIdSpMetadataPublisher publisher;
+    private CieIdSpMetadataExporter exporter;
+
     @Override
     public String getId() {
         return ID;
@@ -31,19 +48,136 @@ public class CieIdSpMetadataResourceProviderFactory implements RealmResourceProv
 
     @Override
     public RealmResourceProvider create(KeycloakSession session) {
-        return new CieIdSpMetadataResourceProvider(session);
+        return new CieIdSpMetadataResourceProvider(session, cache, options);
     }
 
     @Override
     public void init(Scope config) {
+        options = CieIdSpMetadataOptions.fromScope(config);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        exporter = new CieIdSpMetadataExporter(factory, cache, options);
+        factory.register(this::onProviderEvent);
     }
 
     @Override
     public void close() {
+        if (refresher != null)
+            refresher.close();
+        if (publisher != null)
+            publisher.close();
+        if (exporter != null)
+            exporter.close();
+        cache.clear();
+    }
+
+    public CieIdSpMetadataCache getCache() {
+        return cache;
+    }
+
+    public CieIdSpMetadataOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * The exporter is shared by the bulk exports and the pre-warm, so that they all run on the
+     * same bounded pool.
+     */
+    public CieIdSpMetadataExporter getExporter() {
+        return exporter;
+    }
+
+    /**
+     * Drops the metadata of the realm from the local cache and, in a cluster, from every node.
+     */
+    public void invalidate(KeycloakSession session, String realmId) {
+        cache.invalidate(realmId);
+        String generation = new CieIdSpMetadataClusterStore(session, options).invalidate(realmId);
+
+        cache.putGeneration(realmId, generation);
+
+        // The identity provider changes made on this node are already in the index
+        cache.getProviders().setVersion(realmId, generation);
+
+        // The new configuration is only visible once the transaction is committed
+        if (publisher != null) {
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    publisher.publishAsync(realmId);
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    // Nothing changed
+                }
+            });
+        }
+    }
+
+    private void onProviderEvent(ProviderEvent event) {
+        if (event instanceof PostMigrationEvent) {
+            KeycloakSessionFactory sessionFactory = ((PostMigrationEvent) event).getFactory();
+            if (options.getPublishDirectory() != null) {
+                publisher = new CieIdSpMetadataPublisher(sessionFactory, cache, options);
+                publisher.publishAllAsync();
+            }
+            if (options.getValidity() > 0)
+                scheduleRefresh(sessionFactory);
+            if (options.isPrewarm())
+                prewarm();
+        } else if (event instanceof RealmModel.IdentityProviderUpdatedEvent) {
+            RealmModel.IdentityProviderUpdatedEvent updated = (RealmModel.IdentityProviderUpdatedEvent) event;
+            if (CieIdIdentityProviderIndex.isCieIdProvider(updated.getUpdatedIdentityProvider())) {
+                cache.getProviders().put(updated.getRealm().getId(), updated.getUpdatedIdentityProvider());
+                invalidate(updated.getKeycloakSession(), updated.getRealm().getId());
+            }
+        } else if (event instanceof RealmModel.IdentityProviderRemovedEvent) {
+            RealmModel.IdentityProviderRemovedEvent removed = (RealmModel.IdentityProviderRemovedEvent) event;
+            if (CieIdIdentityProviderIndex.isCieIdProvider(removed.getRemovedIdentityProvider())) {
+                cache.getProviders().remove(removed.getRealm().getId(), removed.getRemovedIdentityProvider());
+                invalidate(removed.getKeycloakSession(), removed.getRealm().getId());
+            }
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            RealmModel.RealmRemovedEvent removed = (RealmModel.RealmRemovedEvent) event;
+            cache.invalidate(removed.getRealm().getId());
+            cache.getProviders().invalidate(removed.getRealm().getId());
+            new CieIdSpMetadataClusterStore(removed.getKeycloakSession(), options).invalidate(removed.getRealm().getId());
+            if (publisher != null)
+                publisher.removeAsync(removed.getRealm().getId(), removed.getRealm().getName());
+        }
+    }
+
+    /**
+     * Regenerates the documents before they expire, so that no request has to.
+     */
+    private void scheduleRefresh(KeycloakSessionFactory sessionFactory) {
+        refresher = new CieIdSpMetadataRefresher(sessionFactory, cache, options, publisher);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.getProvider(TimerProvider.class)
+            .schedule(refresher, options.getRefreshInterval() * 1000L, CieIdSpMetadataRefresher.TASK_NAME));
     }
 
+    /**
+     * Builds the metadata of all the realms in the background once the database is ready,
+     * without delaying the server startup.
+     */
+    private void prewarm() {
+        URI defaultBaseUri = options.getPrewarmBaseUri();
+
+        Thread thread = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try {
+                int realms = exporter.prewarm(defaultBaseUri);
+                logger.infof("Pre-warmed the CIE ID SP metadata of %d realms in %d ms", realms, System.currentTimeMillis() - start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.warn("Failed to pre-warm the CIE ID SP metadata", e);
+            }
+        }, "cieid-sp-metadata-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
 }
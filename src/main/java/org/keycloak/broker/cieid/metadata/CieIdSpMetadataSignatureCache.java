@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoizes the signed SP metadata documents.
+ *
+ * RSA PKCS#1 v1.5 signatures are deterministic, so signing the same unsigned document
+ * with the same key, algorithm and key name always yields the same output: entries are
+ * keyed by those inputs and a new signature is only computed when one of them changes,
+ * e.g. after a key rotation. Invalidating the realm metadata cache does not drop the
+ * signatures, so an unrelated configuration change does not cost an RSA operation.
+ */
+public class CieIdSpMetadataSignatureCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    @FunctionalInterface
+    public interface Signer {
+        byte[] sign() throws Exception;
+    }
+
+    private final Map<String, byte[]> signatures;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CieIdSpMetadataSignatureCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public CieIdSpMetadataSignatureCache(int maxEntries) {
+        this.signatures = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Returns the signed version of a document, invoking the signer only if the same
+     * content has not been signed yet with the same key and algorithm.
+     *
+     * @param contentHash the digest of the unsigned document
+     * @return the signed document; {@link SignedDescriptor#isCached()} tells whether the signature was reused
+     */
+    public SignedDescriptor sign(String contentHash, String kid, String algorithm, String keyName, Signer signer) throws Exception {
+        String key = contentHash + '|' + kid + '|' + algorithm + '|' + keyName;
+
+        byte[] signed = signatures.get(key);
+        if (signed != null) {
+            hits.increment();
+            return new SignedDescriptor(signed, true);
+        }
+
+        misses.increment();
+        signed = signer.sign();
+        signatures.put(key, signed);
+        return new SignedDescriptor(signed, false);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public void clear() {
+        signatures.clear();
+    }
+
+    public static class SignedDescriptor {
+        private final byte[] content;
+        private final boolean cached;
+
+        SignedDescriptor(byte[] content, boolean cached) {
+            this.content = content;
+            this.cached = cached;
+        }
+
+        /**
+         * The UTF-8 encoded signed document, which must not be modified.
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        public boolean isCached() {
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.keycloak.broker.cieid.metadata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local store of the published SP metadata documents, addressed by realm and content hash.
+ *
+ * A snapshot never changes, so it can be cached indefinitely by the clients; it stays
+ * available for the retention period after it was last served as the current document.
+ * Snapshots survive the realm invalidations, which is what keeps the old versions around.
+ */
+public class CieIdSpMetadataSnapshots {
+
+    private static class Snapshot {
+        final CieIdSpMetadata metadata;
+        volatile long lastServed;
+        volatile long lastShared;
+
+        Snapshot(CieIdSpMetadata metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    /**
+     * Records that the given document is the current one, returning whether it should be
+     * (re)published to the other cluster nodes, i.e. when it was not shared within half of
+     * the retention period.
+     *
+     * @param retention the retention period, in milliseconds
+     */
+    public boolean touch(String realmId, CieIdSpMetadata metadata, long retention) {
+        long now = System.currentTimeMillis();
+        Snapshot snapshot = snapshots.computeIfAbsent(key(realmId, metadata.getEtag()), k -> {
+            purge(now, retention);
+            return new Snapshot(metadata);
+        });
+        snapshot.lastServed = now;
+
+        if (now - snapshot.lastShared < retention / 2)
+            return false;
+
+        snapshot.lastShared = now;
+        return true;
+    }
+
+    /**
+     * Stores a snapshot received from another cluster node.
+     */
+    public void put(String realmId, CieIdSpMetadata metadata) {
+        Snapshot snapshot = new Snapshot(metadata);
+        snapshot.lastServed = System.currentTimeMillis();
+        snapshots.putIfAbsent(key(realmId, metadata.getEtag()), snapshot);
+    }
+
+    /**
+     * Returns the snapshot with the given content hash, or {@code null} if it is unknown
+     * or its retention period is over.
+     *
+     * @param retention the retention period, in milliseconds
+     */
+    public CieIdSpMetadata get(String realmId, String hash, long retention) {
+        Snapshot snapshot = snapshots.get(key(realmId, hash));
+        if (snapshot == null || System.currentTimeMillis() - snapshot.lastServed > retention)
+            return null;
+
+        return snapshot.metadata;
+    }
+
+    private void purge(long now, long retention) {
+        snapshots.values().removeIf(snapshot -> now - snapshot.lastServed > retention);
+    }
+
+    public void clear() {
+        snapshots.clear();
+    }
+
+    private static String key(String realmId, String hash) {
+        return realmId + "/" + hash;
+    }
+}
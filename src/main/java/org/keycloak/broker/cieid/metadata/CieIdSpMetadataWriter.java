@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.keycloak.dom.saml.v2.metadata.ExtensionsType;
+import org.keycloak.saml.common.constants.JBossSAMLConstants;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.keycloak.saml.common.util.StaxUtil;
+import org.keycloak.saml.processing.core.saml.v2.writers.SAMLMetadataWriter;
+
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Element;
+
+/**
+ * Metadata writer that emits the {@code cie:} ContactPerson extensions straight to the
+ * underlying {@link XMLStreamWriter}.
+ */
+public class CieIdSpMetadataWriter extends SAMLMetadataWriter {
+
+    public static final String CIEID_PREFIX = "cie";
+
+    public CieIdSpMetadataWriter(XMLStreamWriter writer) {
+        super(writer);
+    }
+
+    @Override
+    public void write(ExtensionsType extensions) throws ProcessingException {
+        if (!(extensions instanceof CieIdContactExtensions)) {
+            super.write(extensions);
+            return;
+        }
+
+        CieIdContactExtensions cieIdExtensions = (CieIdContactExtensions) extensions;
+
+        // md:Extensions requires at least one child element
+        if (cieIdExtensions.isEmpty())
+            return;
+
+        StaxUtil.writeStartElement(writer, "md", JBossSAMLConstants.EXTENSIONS__METADATA.get(),
+            JBossSAMLURIConstants.METADATA_NSURI.get());
+
+        for (CieIdContactExtensions.Extension extension : cieIdExtensions.getExtensions()) {
+            StaxUtil.writeStartElement(writer, CIEID_PREFIX, extension.getLocalName(),
+                CieIdSpMetadataResourceProvider.CIEID_METADATA_EXTENSIONS_NS);
+            StaxUtil.writeNameSpace(writer, CIEID_PREFIX, CieIdSpMetadataResourceProvider.CIEID_METADATA_EXTENSIONS_NS);
+            if (extension.getValue() != null)
+                StaxUtil.writeCharacters(writer, extension.getValue());
+            StaxUtil.writeEndElement(writer);
+        }
+
+        for (Element element : cieIdExtensions.getDomElements())
+            StaxUtil.writeDOMElement(writer, element);
+
+        StaxUtil.writeEndElement(writer);
+    }
+}
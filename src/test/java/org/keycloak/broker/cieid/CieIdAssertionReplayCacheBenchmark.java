@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link CieIdAssertionReplayCache#add} with new identifiers expiring
+ * a few seconds later, so that the buckets are dropped while the identifiers are recorded.
+ *
+ * Run it after {@code mvn test-compile} with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> org.keycloak.broker.cieid.CieIdAssertionReplayCacheBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CieIdAssertionReplayCacheBenchmark {
+
+    private static final long RETENTION = TimeUnit.SECONDS.toMillis(30);
+
+    private final CieIdAssertionReplayCache cache = new CieIdAssertionReplayCache();
+
+    @Benchmark
+    public boolean add() {
+        return cache.add("https://idserver.servizicie.interno.gov.it/idp/profile/SAML2/POST/SSO _" + UUID.randomUUID(),
+            System.currentTimeMillis() + RETENTION);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(CieIdAssertionReplayCacheBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+class CieIdAssertionReplayCacheTest {
+
+    private static final long START = Instant.parse("2024-05-01T10:00:00Z").toEpochMilli();
+
+    /**
+     * A clock moved forward by the test.
+     */
+    private static class MutableClock extends Clock {
+        private volatile long millis = START;
+
+        void advance(long duration) {
+            millis += duration;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    void add_shouldRejectTheSameIdUntilItExpires() {
+        MutableClock clock = new MutableClock();
+        CieIdAssertionReplayCache cache = new CieIdAssertionReplayCache(clock);
+        long expiry = START + TimeUnit.MINUTES.toMillis(5);
+
+        Assertions.assertTrue(cache.add("idp _a", expiry));
+        Assertions.assertFalse(cache.add("idp _a", expiry));
+        Assertions.assertTrue(cache.add("idp _b", expiry));
+        Assertions.assertTrue(cache.add("other _a", expiry));
+
+        clock.advance(TimeUnit.MINUTES.toMillis(5) - 1);
+        Assertions.assertFalse(cache.add("idp _a", expiry));
+        Assertions.assertEquals(3, cache.size());
+
+        // Expired identifiers can be used again, and are dropped a bucket later
+        clock.advance(1);
+        Assertions.assertFalse(cache.contains("idp _b"));
+        Assertions.assertTrue(cache.add("idp _a", expiry + TimeUnit.MINUTES.toMillis(5)));
+        clock.advance(CieIdAssertionReplayCache.BUCKET_MILLIS);
+        Assertions.assertTrue(cache.add("idp _c", expiry + TimeUnit.MINUTES.toMillis(5)));
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertTrue(cache.contains("idp _a"));
+        Assertions.assertFalse(cache.add("idp _a", expiry + TimeUnit.MINUTES.toMillis(5)));
+    }
+
+    @Test
+    void add_concurrently_shouldAcceptEachIdOnce() throws Exception {
+        CieIdAssertionReplayCache cache = new CieIdAssertionReplayCache();
+        long expiry = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+        int threads = 8;
+        int ids = 10_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> accepted = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                accepted.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (int i = 0; i < ids; i++) {
+                        if (cache.add("idp _" + i, expiry))
+                            count++;
+                    }
+                    return count;
+                }));
+            }
+            start.countDown();
+
+            int total = 0;
+            for (Future<Integer> future : accepted)
+                total += future.get(1, TimeUnit.MINUTES);
+            Assertions.assertEquals(ids, total);
+            Assertions.assertEquals(ids, cache.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
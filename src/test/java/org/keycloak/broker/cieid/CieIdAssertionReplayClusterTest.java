@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.marshalling.Marshalling;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.sessions.infinispan.InfinispanSingleUseObjectProvider;
+import org.keycloak.models.sessions.infinispan.entities.SingleUseObjectValueEntity;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the replay check of two nodes sharing a replicated single-use object cache, each node
+ * being an embedded Infinispan cache manager clustered over the loopback interface.
+ */
+class CieIdAssertionReplayClusterTest {
+
+    private static final String CACHE_NAME = "actionTokens";
+
+    private final List<DefaultCacheManager> cacheManagers = new ArrayList<>();
+
+    @BeforeEach
+    void startCluster() {
+        for (int i = 0; i < 2; i++) {
+            GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+            global.transport()
+                .clusterName("cieid-replay-test")
+                .nodeName("node-" + i)
+                .addProperty("configurationFile", "cluster/jgroups-loopback.xml");
+            Marshalling.configure(global);
+
+            DefaultCacheManager cacheManager = new DefaultCacheManager(global.build());
+            cacheManager.defineConfiguration(CACHE_NAME, new ConfigurationBuilder()
+                .clustering().cacheMode(CacheMode.REPL_SYNC)
+                .build());
+            cacheManagers.add(cacheManager);
+        }
+        for (DefaultCacheManager cacheManager : cacheManagers)
+            cacheManager.getCache(CACHE_NAME);
+    }
+
+    @AfterEach
+    void stopCluster() {
+        for (DefaultCacheManager cacheManager : cacheManagers)
+            cacheManager.stop();
+    }
+
+    private SingleUseObjectProvider singleUseObjects(int node) {
+        Cache<String, SingleUseObjectValueEntity> cache = cacheManagers.get(node).getCache(CACHE_NAME);
+        return new InfinispanSingleUseObjectProvider(Mockito.mock(KeycloakSession.class), cache, false, null);
+    }
+
+    @Test
+    void add_shouldRejectAnAssertionReplayedOnAnotherNode() {
+        Assertions.assertEquals(2, cacheManagers.get(0).getMembers().size());
+
+        CieIdAssertionReplayCache node0 = new CieIdAssertionReplayCache();
+        CieIdAssertionReplayCache node1 = new CieIdAssertionReplayCache();
+        long expiry = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+
+        Assertions.assertTrue(node0.add(singleUseObjects(0), "idp _a", expiry));
+        // Replayed on the same node, the near-cache answers
+        SingleUseObjectProvider remote = Mockito.spy(singleUseObjects(0));
+        Assertions.assertFalse(node0.add(remote, "idp _a", expiry));
+        Mockito.verifyNoInteractions(remote);
+        // Replayed on the other node, the replicated cache answers
+        Assertions.assertFalse(node1.add(singleUseObjects(1), "idp _a", expiry));
+
+        Assertions.assertTrue(node1.add(singleUseObjects(1), "idp _b", expiry));
+        Assertions.assertFalse(node0.add(singleUseObjects(0), "idp _b", expiry));
+        Assertions.assertTrue(singleUseObjects(0).contains(CieIdAssertionReplayCache.KEY_PREFIX + "idp _b"));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.dom.saml.v2.protocol.AuthnContextComparisonType;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.saml.SamlProtocol;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.mockito.Mockito;
+import org.w3c.dom.Document;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+class CieIdChecksTest {
+
+    private static final String IDP_ENTITY_ID = "https://idserver.servizicie.interno.gov.it/idp/profile/SAML2/POST/SSO";
+    private static final String REQUEST_ID = "ID_request";
+    private static final String REQUEST_ISSUE_INSTANT = "2024-05-01T10:00:00.000Z";
+
+    @Test
+    void verifyCieIdResponse_shouldCheckTheTimestamps() throws Exception {
+        CieIdChecks checks = new CieIdChecks(new CieIdIdentityProviderConfig(),
+            Clock.fixed(Instant.parse("2024-05-01T10:01:00Z"), ZoneOffset.UTC), new CieIdCheckStatistics());
+
+        Assertions.assertEquals("CieIdSamlCheck_nr13", verify(checks,
+            "2024-05-01T10:00:01", "2024-05-01", "2024-05-01T10:05:00Z", REQUEST_ISSUE_INSTANT));
+        Assertions.assertEquals("CieIdSamlCheck_nr14", verify(checks,
+            "2024-05-01T10:00:01Z", "2024-05-01T10:00:01Z", "2024-05-01T10:05:00Z", "invalid"));
+        Assertions.assertEquals("CieIdSamlCheck_nr14", verify(checks,
+            "2024-05-01T10:00:01Z", "", "2024-05-01T10:05:00Z", REQUEST_ISSUE_INSTANT));
+        Assertions.assertEquals("CieIdSamlCheck_nr14", verify(checks,
+            "2024-05-01T10:00:01Z", "2024-05-01T11:59:59+02:00", "2024-05-01T10:05:00Z", REQUEST_ISSUE_INSTANT));
+        Assertions.assertEquals("CieIdSamlCheck_nr15", verify(checks,
+            "2024-05-01T10:00:01Z", "2024-05-01T10:03:00.001Z", "2024-05-01T10:05:00Z", REQUEST_ISSUE_INSTANT));
+        Assertions.assertEquals("CieIdSamlCheck_nr39", verify(checks,
+            "2024-05-01T09:59:59Z", "2024-05-01T10:00:01Z", "2024-05-01T10:05:00Z", REQUEST_ISSUE_INSTANT));
+        Assertions.assertEquals("CieIdSamlCheck_nr40", verify(checks,
+            "2024-05-01T10:03:01Z", "2024-05-01T10:00:01Z", "2024-05-01T10:05:00Z", REQUEST_ISSUE_INSTANT));
+        Assertions.assertEquals("CieIdSamlCheck_nr66", verify(checks,
+            "2024-05-01T10:00:01Z", "2024-05-01T10:00:01Z", "2024-05-01T10:00:59.999Z", REQUEST_ISSUE_INSTANT));
+        // The checks following nr66 fail on the Assertion Issuer, which is not in the response
+        Assertions.assertEquals("CieIdSamlCheck_nr68", verify(checks,
+            "2024-05-01T10:00:01Z", "2024-05-01T10:03:00Z", "2024-05-01T10:01:00Z", REQUEST_ISSUE_INSTANT));
+    }
+
+    @Test
+    void verifyCieIdResponse_withCompleteResponse_shouldPass() throws Exception {
+        CieIdIdentityProviderConfig config = new CieIdIdentityProviderConfig();
+        config.setAuthnContextClassRefs("[\"https://www.spid.gov.it/SpidL2\"]");
+        config.setAuthnContextComparisonType(AuthnContextComparisonType.MINIMUM);
+        CieIdChecks checks = new CieIdChecks(config, Clock.fixed(Instant.parse("2024-05-01T10:01:00Z"), ZoneOffset.UTC),
+            new CieIdCheckStatistics());
+
+        Document document = DocumentUtil.getDocument(
+            "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+            + " ID=\"ID_response\" InResponseTo=\"" + REQUEST_ID + "\" Destination=\"https://sp.localtest.me/endpoint\""
+            + " IssueInstant=\"2024-05-01T10:00:01Z\">"
+            + "<saml:Issuer Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:entity\">" + IDP_ENTITY_ID + "</saml:Issuer>"
+            + "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>"
+            + "<saml:Assertion ID=\"ID_assertion\" IssueInstant=\"2024-05-01T10:00:01Z\">"
+            + "<saml:Issuer>" + IDP_ENTITY_ID + "</saml:Issuer>"
+            + "<saml:Subject>"
+            + "<saml:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\" NameQualifier=\"" + IDP_ENTITY_ID + "\">nameId</saml:NameID>"
+            + "<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">"
+            + "<saml:SubjectConfirmationData Recipient=\"https://sp.localtest.me/endpoint\" InResponseTo=\"" + REQUEST_ID + "\""
+            + " NotOnOrAfter=\"2024-05-01T10:05:00Z\"/>"
+            + "</saml:SubjectConfirmation>"
+            + "</saml:Subject>"
+            + "<saml:Conditions NotBefore=\"2024-05-01T10:00:00Z\" NotOnOrAfter=\"2024-05-01T10:05:00Z\">"
+            + "<saml:AudienceRestriction><saml:Audience>https://sp.localtest.me</saml:Audience></saml:AudienceRestriction>"
+            + "</saml:Conditions>"
+            + "<saml:AuthnStatement AuthnInstant=\"2024-05-01T10:00:01Z\">"
+            + "<saml:AuthnContext><saml:AuthnContextClassRef>https://www.spid.gov.it/SpidL3</saml:AuthnContextClassRef></saml:AuthnContext>"
+            + "</saml:AuthnStatement>"
+            + "</saml:Assertion>"
+            + "</samlp:Response>");
+
+        CieIdResponseView view = CieIdResponseView.of(document.getDocumentElement());
+        Assertions.assertEquals("ID_assertion", view.getAssertionElement().getAttribute("ID"));
+        Assertions.assertEquals("nameId", view.getNameId().getText());
+        Assertions.assertEquals("https://www.spid.gov.it/SpidL3", view.getAuthnContextClassRef().getText());
+        Assertions.assertFalse(view.getAssertionIssuer().hasAttribute("Format"));
+        Assertions.assertNull(checks.verifyCieIdResponse(view, REQUEST_ID, REQUEST_ISSUE_INSTANT, IDP_ENTITY_ID));
+
+        config.setAuthnContextComparisonType(AuthnContextComparisonType.EXACT);
+        Assertions.assertEquals("CieIdSamlCheck_nr96", checks.verifyCieIdResponse(view, REQUEST_ID, REQUEST_ISSUE_INSTANT, IDP_ENTITY_ID));
+    }
+
+    @Test
+    void verifyCieIdResponse_withRealm_shouldSkipDisabledRulesAndRecordStatistics() throws Exception {
+        CieIdCheckStatistics statistics = new CieIdCheckStatistics();
+        CieIdChecks checks = new CieIdChecks(new CieIdIdentityProviderConfig(),
+            Clock.fixed(Instant.parse("2024-05-01T10:01:00Z"), ZoneOffset.UTC), statistics);
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        Mockito.when(realm.getId()).thenReturn("realm");
+        CieIdResponseView response = view("2024-05-01T10:00:01Z", "2024-05-01T10:00:01Z", "2024-05-01T10:05:00Z");
+
+        // The response also fails the cheaper nr68, nr74 and nr89, but nr14 comes first in the table
+        Assertions.assertEquals("CieIdSamlCheck_nr14", checks.verifyCieIdResponse(realm, response, REQUEST_ID, "invalid", IDP_ENTITY_ID));
+
+        Mockito.when(realm.getAttribute(CieIdCheckStatistics.DISABLED_RULES_ATTRIBUTE)).thenReturn("nr14, nr68");
+        Assertions.assertEquals("CieIdSamlCheck_nr74", checks.verifyCieIdResponse(realm, response, REQUEST_ID, "invalid", IDP_ENTITY_ID));
+
+        Assertions.assertEquals(2, statistics.get("realm", CieIdCheckRules.getRule("nr08")).getEvaluations());
+        Assertions.assertEquals(1, statistics.get("realm", CieIdCheckRules.getRule("nr14")).getEvaluations());
+        Assertions.assertEquals(1, statistics.get("realm", CieIdCheckRules.getRule("nr14")).getRejections());
+        Assertions.assertEquals(1, statistics.get("realm", CieIdCheckRules.getRule("nr68")).getRejections());
+        Assertions.assertEquals(1, statistics.get("realm", CieIdCheckRules.getRule("nr74")).getRejections());
+        // The rules coming after a failed one in the table are not run
+        Assertions.assertEquals(0, statistics.get("realm", CieIdCheckRules.getRule("nr89")).getEvaluations());
+        Assertions.assertEquals(0, statistics.get("realm", CieIdCheckRules.getRule("nr94-96")).getEvaluations());
+    }
+
+    @Test
+    void prevalidateCieIdResponse_shouldCheckTheResponseElementBeforeParsing() throws Exception {
+        String status = "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>";
+        String issuer = "<saml:Issuer Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:entity\">" + IDP_ENTITY_ID + "</saml:Issuer>";
+        String assertion = "<saml:Assertion ID=\"ID_assertion\"><saml:Issuer>" + IDP_ENTITY_ID + "</saml:Issuer></saml:Assertion>";
+
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.NOT_A_RESPONSE, prevalidate(
+            "<samlp:LogoutResponse xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"ID_response\"/>").getOutcome());
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.MALFORMED, prevalidate(response(issuer + status + assertion)
+            .replace("</samlp:Response>", "")).getOutcome());
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.MALFORMED, prevalidate(response(status + issuer + assertion)).getOutcome());
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.MALFORMED, prevalidate(response(issuer + status + assertion + status)).getOutcome());
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.UNSUCCESSFUL, prevalidate(response(issuer + assertion)).getOutcome());
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.UNSUCCESSFUL, prevalidate(response(issuer
+            + "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Responder\"/></samlp:Status>")).getOutcome());
+
+        // The header matches the view read from the DOM
+        String xml = response(issuer + status + assertion + assertion);
+        CieIdResponsePrevalidator.Result result = prevalidate(xml);
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.SUCCESSFUL, result.getOutcome());
+        CieIdResponseView header = result.getHeader();
+        CieIdResponseView view = CieIdResponseView.of(DocumentUtil.getDocument(xml).getDocumentElement());
+        Assertions.assertEquals(view.getId(), header.getId());
+        Assertions.assertEquals(view.getIssueInstantTime(), header.getIssueInstantTime());
+        Assertions.assertEquals(view.getInResponseTo(), header.getInResponseTo());
+        Assertions.assertEquals(view.getDestination(), header.getDestination());
+        Assertions.assertEquals(view.getIssuer().getText(), header.getIssuer().getText());
+        Assertions.assertEquals(view.getIssuer().getAttribute("Format"), header.getIssuer().getAttribute("Format"));
+        Assertions.assertFalse(header.getAssertionIssuer().isPresent());
+
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        Mockito.when(realm.getId()).thenReturn("realm");
+        AuthenticationSessionModel authSession = Mockito.mock(AuthenticationSessionModel.class);
+        Mockito.when(authSession.getRealm()).thenReturn(realm);
+        Mockito.when(authSession.getClientNote(CieIdIdentityProvider.CIEID_REQUEST_ISSUE_INSTANT)).thenReturn(REQUEST_ISSUE_INSTANT);
+        CieIdIdentityProviderConfig config = new CieIdIdentityProviderConfig();
+        config.setIdpEntityId(IDP_ENTITY_ID);
+        CieIdChecks checks = new CieIdChecks(config, Clock.fixed(Instant.parse("2024-05-01T10:01:00Z"), ZoneOffset.UTC),
+            new CieIdCheckStatistics());
+
+        Mockito.when(authSession.getClientNote(SamlProtocol.SAML_REQUEST_ID_BROKER)).thenReturn(REQUEST_ID);
+        Assertions.assertNull(checks.prevalidateCieIdResponse(authSession, header));
+        // The assertion rules are left to the checks of the parsed response
+        Assertions.assertNotNull(checks.verifyCieIdResponse(view, REQUEST_ID, REQUEST_ISSUE_INSTANT, IDP_ENTITY_ID));
+
+        Mockito.when(authSession.getClientNote(SamlProtocol.SAML_REQUEST_ID_BROKER)).thenReturn("ID_other");
+        Assertions.assertEquals("CieIdSamlCheck_nr18", checks.prevalidateCieIdResponse(authSession, header));
+        Assertions.assertEquals("CieIdSamlCheck_nr29", checks.prevalidateCieIdResponse(authSession, prevalidate(
+            response("<saml:Issuer>https://idp.localtest.me</saml:Issuer>" + status)).getHeader()));
+
+        Mockito.when(realm.getAttribute(CieIdCheckStatistics.DISABLED_RULES_ATTRIBUTE)).thenReturn("nr18");
+        Assertions.assertNull(checks.prevalidateCieIdResponse(authSession, header));
+    }
+
+    private static CieIdResponsePrevalidator.Result prevalidate(String xml) {
+        return CieIdResponsePrevalidator.read(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String response(String children) {
+        return "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+            + " ID=\"ID_response\" InResponseTo=\"" + REQUEST_ID + "\" Destination=\"https://sp.localtest.me/endpoint\""
+            + " IssueInstant=\"2024-05-01T10:00:01Z\">" + children + "</samlp:Response>";
+    }
+
+    private static String verify(CieIdChecks checks, String assertionIssueInstant, String responseIssueInstant,
+                                 String notOnOrAfter, String requestIssueInstant) throws Exception {
+        return checks.verifyCieIdResponse(view(assertionIssueInstant, responseIssueInstant, notOnOrAfter),
+            REQUEST_ID, requestIssueInstant, IDP_ENTITY_ID);
+    }
+
+    private static CieIdResponseView view(String assertionIssueInstant, String responseIssueInstant,
+                                          String notOnOrAfter) throws Exception {
+        Document document = DocumentUtil.getDocument(
+            "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+            + " ID=\"ID_response\" InResponseTo=\"" + REQUEST_ID + "\" Destination=\"https://sp.localtest.me/endpoint\""
+            + " IssueInstant=\"" + responseIssueInstant + "\">"
+            + "<saml:Issuer>" + IDP_ENTITY_ID + "</saml:Issuer>"
+            + "<saml:Assertion ID=\"ID_assertion\" IssueInstant=\"" + assertionIssueInstant + "\">"
+            + "<saml:Subject>"
+            + "<saml:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\" NameQualifier=\"" + IDP_ENTITY_ID + "\">nameId</saml:NameID>"
+            + "<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">"
+            + "<saml:SubjectConfirmationData Recipient=\"https://sp.localtest.me/endpoint\" InResponseTo=\"" + REQUEST_ID + "\""
+            + " NotOnOrAfter=\"" + notOnOrAfter + "\"/>"
+            + "</saml:SubjectConfirmation>"
+            + "</saml:Subject>"
+            + "</saml:Assertion>"
+            + "</samlp:Response>");
+        return CieIdResponseView.of(document.getDocumentElement());
+    }
+}
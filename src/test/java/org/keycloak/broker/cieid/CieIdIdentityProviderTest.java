@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.protocol.oidc.endpoints.AuthorizationEndpoint;
+import org.keycloak.saml.validators.DestinationValidator;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.mockito.Mockito;
+
+class CieIdIdentityProviderTest {
+
+    private static CieIdIdentityProvider provider() {
+        CieIdIdentityProviderConfig config = new CieIdIdentityProviderConfig();
+        config.setAlias("cieid");
+        config.setAttributeConsumingServiceIndex(1);
+        config.setAdditionalAttributeConsumingServices("2|Fiscal number,3|Personal data");
+        CieIdIdentityProviderServices services = new CieIdIdentityProviderServices(
+            DestinationValidator.forProtocolMap(null), new CieIdCheckStatistics(), new CieIdResponseLimits(),
+            new CieIdAssertionReplayCache(), new CieIdIdpKeyRings());
+        return new CieIdIdentityProvider(Mockito.mock(KeycloakSession.class), config, services);
+    }
+
+    private static AuthenticationSessionModel authSession(String parameter, String index, String requestable) {
+        ClientModel client = Mockito.mock(ClientModel.class);
+        Mockito.when(client.getAttribute(CieIdIdentityProvider.ATTRIBUTE_CONSUMING_SERVICE_INDEX_CLIENT_ATTRIBUTE)).thenReturn(index);
+        Mockito.when(client.getAttribute(CieIdIdentityProvider.ATTRIBUTE_CONSUMING_SERVICE_REQUESTABLE_INDEXES_CLIENT_ATTRIBUTE)).thenReturn(requestable);
+        AuthenticationSessionModel authSession = Mockito.mock(AuthenticationSessionModel.class);
+        Mockito.when(authSession.getClient()).thenReturn(client);
+        Mockito.when(authSession.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX
+            + CieIdIdentityProvider.ATTRIBUTE_CONSUMING_SERVICE_INDEX_PARAM)).thenReturn(parameter);
+        return authSession;
+    }
+
+    @Test
+    void getAttributeConsumingServiceIndex_shouldFollowTheClient() {
+        CieIdIdentityProvider provider = provider();
+
+        Assertions.assertEquals(2, provider.getAttributeConsumingServiceIndex(authSession(null, "2", null)));
+        Assertions.assertNull(provider.getAttributeConsumingServiceIndex(authSession(null, "9", null)));
+        Assertions.assertNull(provider.getAttributeConsumingServiceIndex(authSession(null, null, null)));
+    }
+
+    @Test
+    void getAttributeConsumingServiceIndex_shouldOnlyHonorTheRequestableIndexes() {
+        CieIdIdentityProvider provider = provider();
+
+        // Without the client consent, the request cannot widen the released attributes
+        Assertions.assertEquals(2, provider.getAttributeConsumingServiceIndex(authSession("3", "2", null)));
+        Assertions.assertEquals(2, provider.getAttributeConsumingServiceIndex(authSession("3", "2", "1, 2")));
+        Assertions.assertEquals(3, provider.getAttributeConsumingServiceIndex(authSession("3", "2", "2, 3")));
+        Assertions.assertEquals(1, provider.getAttributeConsumingServiceIndex(authSession(" 1 ", null, "1")));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.crypto.CryptoIntegration;
+import org.keycloak.common.enums.SslRequired;
+import org.keycloak.common.util.KeyUtils;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mockito;
+
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+class CieIdIdpKeyRingTest {
+
+    private static KeyPair currentKeyPair;
+    private static X509Certificate currentCertificate;
+    private static X509Certificate expiredCertificate;
+
+    @BeforeAll
+    static void generateCertificates() throws Exception {
+        CryptoIntegration.init(CieIdIdpKeyRingTest.class.getClassLoader());
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(1024);
+        long now = System.currentTimeMillis();
+
+        currentKeyPair = keyGen.generateKeyPair();
+        currentCertificate = CryptoIntegration.getProvider().getCertificateUtils()
+            .createServicesTestCertificate("CN=Current", new Date(now - TimeUnit.DAYS.toMillis(1)),
+                new Date(now + TimeUnit.DAYS.toMillis(365)), currentKeyPair);
+        expiredCertificate = CryptoIntegration.getProvider().getCertificateUtils()
+            .createServicesTestCertificate("CN=Expired", new Date(now - TimeUnit.DAYS.toMillis(365)),
+                new Date(now - TimeUnit.DAYS.toMillis(1)), keyGen.generateKeyPair());
+    }
+
+    private static String encode(X509Certificate certificate) throws Exception {
+        return Base64.getMimeEncoder().encodeToString(certificate.getEncoded());
+    }
+
+    @Test
+    void keyRing_shouldIndexTheValidCertificates() throws Exception {
+        CieIdIdpKeyRing keyRing = CieIdIdpKeyRing.parse(encode(currentCertificate) + "," + encode(expiredCertificate),
+            Clock.systemUTC());
+        Assertions.assertEquals(2, keyRing.size());
+
+        Assertions.assertEquals(currentKeyPair.getPublic(), keyRing.getKey(KeyUtils.createKeyId(currentKeyPair.getPublic())));
+        Assertions.assertEquals(currentKeyPair.getPublic(), keyRing.getKey("CN=Current"));
+        Assertions.assertEquals(currentKeyPair.getPublic(), keyRing.getKey(currentCertificate));
+        Assertions.assertEquals(currentKeyPair.getPublic(), keyRing.getKey(currentKeyPair.getPublic()));
+
+        KeyInfoFactory keyInfoFactory = KeyInfoFactory.getInstance();
+        KeyInfo keyInfo = keyInfoFactory.newKeyInfo(List.of(keyInfoFactory.newX509Data(List.of(currentCertificate))));
+        Assertions.assertEquals(currentKeyPair.getPublic(), keyRing.getKey(keyInfo));
+
+        // The expired certificate is ignored, like by the standard SAML endpoint
+        Assertions.assertNull(keyRing.getKey("CN=Expired"));
+        Assertions.assertNull(keyRing.getKey(expiredCertificate));
+        List<Object> keys = new ArrayList<>();
+        keyRing.forEach(keys::add);
+        Assertions.assertEquals(List.of(currentKeyPair.getPublic()), keys);
+    }
+
+    @Test
+    void keyRings_shouldParseTheCertificatesOnlyWhenTheyChange() throws Exception {
+        CieIdIdpKeyRings keyRings = new CieIdIdpKeyRings();
+        CieIdIdentityProviderConfig config = new CieIdIdentityProviderConfig();
+        config.setInternalId("cieid-internal-id");
+        config.addSigningCertificate(encode(currentCertificate));
+
+        CieIdIdpKeyRing keyRing = keyRings.get(config);
+        Assertions.assertSame(keyRing, keyRings.get(config));
+
+        config.addSigningCertificate(encode(expiredCertificate));
+        CieIdIdpKeyRing updated = keyRings.get(config);
+        Assertions.assertNotSame(keyRing, updated);
+        Assertions.assertEquals(2, updated.size());
+        Assertions.assertSame(updated, keyRings.get(config));
+
+        keyRings.remove("cieid-internal-id");
+        Assertions.assertNotSame(updated, keyRings.get(config));
+    }
+
+    @Test
+    void keyRings_withInvalidCertificate_shouldCacheTheValidOnes() throws Exception {
+        CieIdIdpKeyRings keyRings = new CieIdIdpKeyRings();
+        CieIdIdentityProviderConfig config = new CieIdIdentityProviderConfig();
+        config.setInternalId("cieid-internal-id");
+        config.setSigningCertificate("not-a-certificate," + encode(currentCertificate));
+
+        // The invalid certificate is left out and the key ring is cached anyway
+        CieIdIdpKeyRing keyRing = keyRings.get(config);
+        Assertions.assertEquals(1, keyRing.size());
+        Assertions.assertEquals(currentKeyPair.getPublic(), keyRing.getKey("CN=Current"));
+        Assertions.assertSame(keyRing, keyRings.get(config));
+
+        // It is reported when the provider is saved
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        Mockito.when(realm.getSslRequired()).thenReturn(SslRequired.NONE);
+        IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class, () -> config.validate(realm));
+        Assertions.assertTrue(e.getMessage().startsWith("Invalid signing certificate #1"), e.getMessage());
+
+        config.setSigningCertificate(encode(currentCertificate));
+        config.validate(realm);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.saml.processing.web.util.PostBindingUtil;
+import org.keycloak.saml.processing.web.util.RedirectBindingUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+class CieIdResponseDecoderTest {
+
+    private static final String RESPONSE = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+        + " ID=\"ID_response\" IssueInstant=\"2024-05-01T10:00:01Z\">"
+        + "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>"
+        + "</samlp:Response>";
+
+    @Test
+    void decode_shouldMatchKeycloakDecoding() throws Exception {
+        byte[] document = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        CieIdResponseLimits limits = new CieIdResponseLimits();
+
+        String post = PostBindingUtil.base64Encode(RESPONSE);
+        Assertions.assertArrayEquals(document, CieIdResponseDecoder.decodePostBinding(post, limits));
+        // Line breaks are ignored like in MIME
+        Assertions.assertArrayEquals(document, CieIdResponseDecoder.decodePostBinding(
+            post.substring(0, 20) + "\r\n" + post.substring(20), limits));
+
+        String redirect = RedirectBindingUtil.deflateBase64Encode(document);
+        Assertions.assertArrayEquals(document, CieIdResponseDecoder.decodeRedirectBinding(redirect, limits));
+    }
+
+    @Test
+    void decode_overLimits_shouldFail() throws Exception {
+        byte[] document = RESPONSE.getBytes(StandardCharsets.UTF_8);
+        CieIdResponseLimits limits = new CieIdResponseLimits();
+        limits.setMaxDecodedSize(document.length);
+        Assertions.assertArrayEquals(document, CieIdResponseDecoder.decodePostBinding(PostBindingUtil.base64Encode(RESPONSE), limits));
+
+        limits.setMaxDecodedSize(document.length - 1);
+        CieIdResponseLimits.ExceededException e = Assertions.assertThrows(CieIdResponseLimits.ExceededException.class,
+            () -> CieIdResponseDecoder.decodePostBinding(PostBindingUtil.base64Encode(RESPONSE), limits));
+        Assertions.assertEquals(CieIdResponseLimits.MAX_DECODED_SIZE, e.getLimit());
+        e = Assertions.assertThrows(CieIdResponseLimits.ExceededException.class,
+            () -> CieIdResponseDecoder.decodeRedirectBinding(RedirectBindingUtil.deflateBase64Encode(document), limits));
+        Assertions.assertEquals(CieIdResponseLimits.MAX_DECODED_SIZE, e.getLimit());
+
+        // A megabyte of spaces deflates to about a kilobyte
+        byte[] spaces = new byte[1024 * 1024];
+        Arrays.fill(spaces, (byte) ' ');
+        String bomb = RedirectBindingUtil.deflateBase64Encode(spaces);
+        limits.setMaxDecodedSize(2 * spaces.length);
+        e = Assertions.assertThrows(CieIdResponseLimits.ExceededException.class,
+            () -> CieIdResponseDecoder.decodeRedirectBinding(bomb, limits));
+        Assertions.assertEquals(CieIdResponseLimits.MAX_INFLATE_RATIO, e.getLimit());
+
+        Assertions.assertThrows(IOException.class,
+            () -> CieIdResponseDecoder.decodeRedirectBinding(Base64.getEncoder().encodeToString(document), limits));
+    }
+
+    @Test
+    void prevalidate_overLimits_shouldFail() {
+        CieIdResponseLimits limits = new CieIdResponseLimits();
+        String nested = "<samlp:Extensions>" + "<a>".repeat(10) + "</a>".repeat(10) + "</samlp:Extensions>";
+        byte[] document = RESPONSE.replace("<samlp:Status>", nested + "<samlp:Status>").getBytes(StandardCharsets.UTF_8);
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.SUCCESSFUL, CieIdResponsePrevalidator.read(document, limits).getOutcome());
+
+        limits.setMaxElementDepth(11);
+        CieIdResponsePrevalidator.Result result = CieIdResponsePrevalidator.read(document, limits);
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.LIMIT_EXCEEDED, result.getOutcome());
+        Assertions.assertEquals(CieIdResponseLimits.MAX_ELEMENT_DEPTH, result.getExceededLimit());
+
+        limits.setMaxElementDepth(12);
+        limits.setMaxAttributes(1);
+        result = CieIdResponsePrevalidator.read(document, limits);
+        Assertions.assertEquals(CieIdResponsePrevalidator.Outcome.LIMIT_EXCEEDED, result.getOutcome());
+        Assertions.assertEquals(CieIdResponseLimits.MAX_ATTRIBUTES, result.getExceededLimit());
+    }
+}
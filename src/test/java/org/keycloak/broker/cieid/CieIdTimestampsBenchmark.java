@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.keycloak.broker.cieid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.time.Clock;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the timestamp checks of {@link CieIdChecks} (nr13, nr14, nr15, nr39, nr40 and nr66)
+ * made with {@link CieIdTimestamps} to the way they were made before, with a regular expression
+ * compiled per response and the {@link XMLGregorianCalendar}s of a new {@link DatatypeFactory}
+ * per timestamp.
+ *
+ * Run it after {@code mvn test-compile} with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> org.keycloak.broker.cieid.CieIdTimestampsBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CieIdTimestampsBenchmark {
+
+    private static final String UTC_STRING = "^(-?(?:[1-9][0-9]*)?[0-9]{4})-(1[0-2]|0[1-9])-(3[01]|0[1-9]|[12][0-9])T(2[0-3]|[01][0-9]):([0-5][0-9]):([0-5][0-9])(\\.[0-9]+)?(Z|[+-](?:2[0-3]|[01][0-9]):[0-5][0-9])?$";
+
+    private static final long MAX_ISSUE_INSTANT_DELAY = TimeUnit.MINUTES.toMillis(3);
+
+    private final String requestIssueInstant = "2024-05-01T10:00:00.000Z";
+    private final String responseIssueInstant = "2024-05-01T10:00:01.250Z";
+    private final String assertionIssueInstant = "2024-05-01T10:00:01.125Z";
+    private final String notOnOrAfter = "2999-05-01T10:05:01.125Z";
+    private final Clock clock = Clock.systemUTC();
+
+    @Benchmark
+    public String legacy() throws Exception {
+        if (!Pattern.compile(UTC_STRING).matcher(responseIssueInstant).find())
+            return "CieIdSamlCheck_nr13";
+
+        XMLGregorianCalendar requestTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(requestIssueInstant);
+        XMLGregorianCalendar responseTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(responseIssueInstant);
+        if (responseTime.compare(requestTime) == DatatypeConstants.LESSER)
+            return "CieIdSamlCheck_nr14";
+        XMLGregorianCalendar requestFutureTime = (XMLGregorianCalendar) requestTime.clone();
+        requestFutureTime.add(DatatypeFactory.newInstance().newDuration(true, 0, 0, 0, 0, 3, 0));
+        if (responseTime.compare(requestFutureTime) == DatatypeConstants.GREATER)
+            return "CieIdSamlCheck_nr15";
+
+        requestTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(requestIssueInstant);
+        XMLGregorianCalendar assertionTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(assertionIssueInstant);
+        if (assertionTime.compare(requestTime) == DatatypeConstants.LESSER)
+            return "CieIdSamlCheck_nr39";
+        requestFutureTime = (XMLGregorianCalendar) requestTime.clone();
+        requestFutureTime.add(DatatypeFactory.newInstance().newDuration(true, 0, 0, 0, 0, 3, 0));
+        if (assertionTime.compare(requestFutureTime) == DatatypeConstants.GREATER)
+            return "CieIdSamlCheck_nr40";
+
+        XMLGregorianCalendar notOnOrAfterTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(notOnOrAfter);
+        XMLGregorianCalendar now = DatatypeFactory.newInstance().newXMLGregorianCalendar(new GregorianCalendar());
+        if (notOnOrAfterTime.compare(now) == DatatypeConstants.LESSER)
+            return "CieIdSamlCheck_nr66";
+
+        return null;
+    }
+
+    @Benchmark
+    public String current() {
+        long responseTime = CieIdTimestamps.parse(responseIssueInstant);
+        if (responseTime == CieIdTimestamps.INVALID)
+            return "CieIdSamlCheck_nr13";
+
+        long requestTime = CieIdTimestamps.parse(requestIssueInstant);
+        if (requestTime == CieIdTimestamps.INVALID || responseTime < requestTime)
+            return "CieIdSamlCheck_nr14";
+        if (responseTime > requestTime + MAX_ISSUE_INSTANT_DELAY)
+            return "CieIdSamlCheck_nr15";
+
+        long assertionTime = CieIdTimestamps.parse(assertionIssueInstant);
+        if (assertionTime == CieIdTimestamps.INVALID || assertionTime < requestTime)
+            return "CieIdSamlCheck_nr39";
+        if (assertionTime > requestTime + MAX_ISSUE_INSTANT_DELAY)
+            return "CieIdSamlCheck_nr40";
+
+        long notOnOrAfterTime = CieIdTimestamps.parse(notOnOrAfter);
+        if (notOnOrAfterTime == CieIdTimestamps.INVALID || notOnOrAfterTime < clock.millis())
+            return "CieIdSamlCheck_nr66";
+
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(CieIdTimestampsBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
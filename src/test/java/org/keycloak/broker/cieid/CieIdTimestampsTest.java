@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.datatype.DatatypeFactory;
+import java.time.Instant;
+
+class CieIdTimestampsTest {
+
+    @Test
+    void parse_shouldMatchXmlGregorianCalendar() throws Exception {
+        DatatypeFactory datatypeFactory = DatatypeFactory.newInstance();
+        String[] values = {
+            "2024-05-01T10:15:30Z",
+            "2024-05-01T10:15:30.1Z",
+            "2024-05-01T10:15:30.123456789Z",
+            "2024-02-29T23:59:59.999+02:00",
+            "2000-03-01T00:00:00-05:30",
+            "1969-12-31T23:59:59.999Z",
+            "2100-02-28T12:00:00Z",
+            "12024-05-01T10:15:30Z"
+        };
+        for (String value : values) {
+            long expected = datatypeFactory.newXMLGregorianCalendar(value).toGregorianCalendar().getTimeInMillis();
+            Assertions.assertEquals(expected, CieIdTimestamps.parse(value), value);
+        }
+    }
+
+    @Test
+    void parse_withoutTimeZone_shouldAssumeUtc() {
+        Assertions.assertEquals(Instant.parse("2024-05-01T10:15:30.120Z").toEpochMilli(),
+            CieIdTimestamps.parse("2024-05-01T10:15:30.12"));
+    }
+
+    @Test
+    void parse_withInvalidValues_shouldReturnInvalid() {
+        String[] values = {
+            null,
+            "",
+            "2024-05-01",
+            "2024-05-01 10:15:30Z",
+            "2024-5-01T10:15:30Z",
+            "2024-13-01T10:15:30Z",
+            "2023-02-29T10:15:30Z",
+            "2024-04-31T10:15:30Z",
+            "2024-05-01T24:00:00Z",
+            "2024-05-01T10:60:30Z",
+            "2024-05-01T10:15:60Z",
+            "2024-05-01T10:15:30.Z",
+            "2024-05-01T10:15:30+0200",
+            "2024-05-01T10:15:30+24:00",
+            "2024-05-01T10:15:30ZZ",
+            "02024-05-01T10:15:30Z",
+            "abcd-05-01T10:15:30Z"
+        };
+        for (String value : values) {
+            Assertions.assertEquals(CieIdTimestamps.INVALID, CieIdTimestamps.parse(value), value);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.marshalling.Marshalling;
+import org.keycloak.models.KeycloakSession;
+import org.mockito.Mockito;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the shared metadata store on two nodes, each node being an embedded Infinispan cache
+ * manager clustered over the loopback interface.
+ */
+class CieIdSpMetadataClusterStoreTest {
+
+    private final List<DefaultCacheManager> cacheManagers = new ArrayList<>();
+    private final CieIdSpMetadataOptions options = new CieIdSpMetadataOptions();
+
+    /**
+     * The lock timeout is part of the cache configuration, defined when the cache is first used.
+     */
+    private void startCluster(int lockTimeout) {
+        options.setClusterCache(true);
+        options.setClusterLockTimeout(lockTimeout);
+
+        for (int i = 0; i < 2; i++) {
+            GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+            global.transport()
+                .clusterName("cieid-sp-metadata-test")
+                .nodeName("node-" + i)
+                .addProperty("configurationFile", "cluster/jgroups-loopback.xml");
+            Marshalling.configure(global);
+
+            DefaultCacheManager cacheManager = new DefaultCacheManager(global.build());
+            cacheManager.defineConfiguration(InfinispanConnectionProvider.WORK_CACHE_NAME, new ConfigurationBuilder()
+                .clustering().cacheMode(CacheMode.REPL_SYNC)
+                .build());
+            cacheManagers.add(cacheManager);
+        }
+        // Start the shared cache on both nodes before using it
+        for (int i = 0; i < 2; i++)
+            Assertions.assertTrue(store(i).isEnabled());
+    }
+
+    @AfterEach
+    void stopCluster() {
+        for (DefaultCacheManager cacheManager : cacheManagers)
+            cacheManager.stop();
+    }
+
+    private CieIdSpMetadataClusterStore store(int node) {
+        InfinispanConnectionProvider connections = Mockito.mock(InfinispanConnectionProvider.class);
+        Mockito.when(connections.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME))
+            .thenReturn(cacheManagers.get(node).getCache(InfinispanConnectionProvider.WORK_CACHE_NAME));
+        KeycloakSession session = Mockito.mock(KeycloakSession.class);
+        Mockito.when(session.getProvider(InfinispanConnectionProvider.class)).thenReturn(connections);
+        return new CieIdSpMetadataClusterStore(session, options);
+    }
+
+    private static CieIdSpMetadata document(String content) {
+        return CieIdSpMetadata.signed(content.getBytes(StandardCharsets.UTF_8), false,
+            new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @Test
+    void get_whileAnotherNodeBuilds_shouldWaitForItsDocument() throws Exception {
+        startCluster(10);
+        Assertions.assertEquals(2, cacheManagers.get(0).getMembers().size());
+        String generation = store(0).getGeneration("realm");
+        Assertions.assertEquals(generation, store(1).getGeneration("realm"));
+
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<CieIdSpMetadata> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return store(0).get("realm", generation, "key", () -> {
+                    building.countDown();
+                    release.await();
+                    return document("<first/>");
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertTrue(building.await(10, TimeUnit.SECONDS));
+
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<CieIdSpMetadata> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return store(1).get("realm", generation, "key", () -> {
+                    loads.incrementAndGet();
+                    return document("<second/>");
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        release.countDown();
+
+        Assertions.assertEquals("<first/>", first.get(10, TimeUnit.SECONDS).getDescriptor());
+        CieIdSpMetadata shared = second.get(10, TimeUnit.SECONDS);
+        Assertions.assertEquals("<first/>", shared.getDescriptor());
+        Assertions.assertTrue(shared.isSigned());
+        Assertions.assertEquals(0, loads.get());
+    }
+
+    @Test
+    void get_whenTheLockIsNotReleasedInTime_shouldBuildLocally() throws Exception {
+        startCluster(1);
+        String generation = store(0).getGeneration("realm");
+
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<CieIdSpMetadata> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return store(0).get("realm", generation, "key", () -> {
+                    building.countDown();
+                    release.await();
+                    return document("<first/>");
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assertions.assertTrue(building.await(10, TimeUnit.SECONDS));
+
+        try {
+            Assertions.assertEquals("<second/>", store(1).get("realm", generation, "key", () -> document("<second/>")).getDescriptor());
+            // The refresh never waits
+            Assertions.assertNull(store(1).refresh("realm", generation, "key", System.currentTimeMillis(), () -> document("<third/>")));
+        } finally {
+            release.countDown();
+        }
+
+        Assertions.assertEquals("<first/>", first.get(10, TimeUnit.SECONDS).getDescriptor());
+        Assertions.assertEquals("<first/>", store(1).get("realm", generation, "key", () -> document("<third/>")).getDescriptor());
+    }
+
+    @Test
+    void invalidate_shouldStartANewGenerationOnEveryNode() {
+        startCluster(10);
+        String generation = store(0).getGeneration("realm");
+        String next = store(1).invalidate("realm");
+
+        Assertions.assertNotEquals(generation, next);
+        Assertions.assertEquals(next, store(0).getGeneration("realm"));
+    }
+}
@@ -17,19 +17,24 @@
 
  package org.keycloak.broker.cieid.metadata;
 
+ import org.infinispan.configuration.cache.ConfigurationBuilder;
+ import org.infinispan.manager.DefaultCacheManager;
  import org.junit.jupiter.api.Assertions;
  import org.junit.jupiter.api.BeforeAll;
  import org.junit.jupiter.api.BeforeEach;
  import org.junit.jupiter.api.Test;
  import org.junit.jupiter.api.extension.ExtendWith;
+ import org.junit.jupiter.api.io.TempDir;
  import org.junit.jupiter.api.function.Executable;
  import org.keycloak.broker.provider.IdentityProviderMapper;
  import org.keycloak.broker.saml.SAMLIdentityProviderConfig;
  import org.keycloak.broker.cieid.CieIdIdentityProviderConfig;
  import org.keycloak.broker.cieid.CieIdIdentityProviderFactory;
+ import org.keycloak.broker.cieid.CieIdIdentityProviderIndex;
  import org.keycloak.broker.cieid.mappers.CieIdUserAttributeMapper;
  import org.keycloak.common.crypto.CryptoIntegration;
  import org.keycloak.common.util.KeyUtils;
+ import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
  import org.keycloak.crypto.Algorithm;
  import org.keycloak.crypto.KeyUse;
  import org.keycloak.crypto.KeyWrapper;
@@ -44,8 +49,11 @@
  import org.keycloak.models.KeycloakUriInfo;
  import org.keycloak.models.RealmModel;
  import org.keycloak.protocol.saml.SamlPrincipalType;
+ import org.keycloak.rotation.HardcodedKeyLocator;
+ import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+ import org.keycloak.saml.common.util.DocumentUtil;
  import org.keycloak.saml.common.util.XmlKeyInfoKeyNameTransformer;
- import org.mockito.InjectMocks;
+ import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
  import org.mockito.Mock;
  import org.mockito.junit.jupiter.MockitoExtension;
  import org.slf4j.Logger;
@@ -54,12 +62,24 @@
  import org.xmlunit.builder.Input;
  import org.xmlunit.diff.Diff;
  import org.xmlunit.placeholder.PlaceholderDifferenceEvaluator;
+ import org.w3c.dom.Document;
+ import org.w3c.dom.Element;
+ import org.w3c.dom.Node;
+ import org.w3c.dom.NodeList;
  
+ import jakarta.ws.rs.NotFoundException;
+ import jakarta.ws.rs.core.HttpHeaders;
  import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.UriBuilder;
 
 import javax.xml.transform.Source;
+ import java.io.ByteArrayInputStream;
+ import java.io.ByteArrayOutputStream;
+ import java.io.IOException;
  import java.net.URI;
+ import java.nio.charset.StandardCharsets;
+ import java.nio.file.Files;
+ import java.nio.file.Path;
  import java.security.InvalidKeyException;
  import java.security.KeyPair;
  import java.security.KeyPairGenerator;
@@ -70,19 +90,27 @@ import javax.xml.transform.Source;
  import java.security.cert.X509Certificate;
  import java.util.Date;
  import java.util.HashMap;
+ import java.util.List;
  import java.util.Map;
  import java.util.UUID;
  import java.util.stream.Collectors;
  import java.util.stream.Stream;
  import java.util.stream.StreamSupport;
+ import java.util.zip.GZIPInputStream;
  
  import static org.junit.jupiter.api.Assertions.assertEquals;
+ import static org.junit.jupiter.api.Assertions.assertFalse;
+ import static org.junit.jupiter.api.Assertions.assertNotEquals;
  import static org.junit.jupiter.api.Assertions.assertNotNull;
+ import static org.junit.jupiter.api.Assertions.assertNotSame;
+ import static org.junit.jupiter.api.Assertions.assertNull;
  import static org.junit.jupiter.api.Assertions.assertThrows;
+ import static org.junit.jupiter.api.Assertions.assertTrue;
  import static org.junit.jupiter.api.Assertions.fail;
  import static org.mockito.Mockito.lenient;
  import static org.mockito.Mockito.mock;
- import static org.mockito.Mockito.spy;
+ import static org.mockito.Mockito.times;
+ import static org.mockito.Mockito.verify;
  import static org.mockito.Mockito.when;
 import static org.mockito.ArgumentMatchers.any;
  
@@ -100,8 +128,8 @@ import static org.mockito.ArgumentMatchers.any;
      private RealmModel realm;
      @Mock
      IdentityProviderStorageProvider identityProviderStorageProvider;
-     @InjectMocks
-     private CieIdSpMetadataResourceProvider invitationResourceProvider = spy(new CieIdSpMetadataResourceProvider(keycloakSession));
+     private final Map<String, String> attributeConsumingServiceIndexes = new HashMap<>();
+     private CieIdSpMetadataResourceProvider invitationResourceProvider;
  
      @BeforeAll
      public static void setupKeyWrapper() throws NoSuchAlgorithmException, CertificateEncodingException, SignatureException, NoSuchProviderException, InvalidKeyException {
@@ -130,19 +158,21 @@ import static org.mockito.ArgumentMatchers.any;
      public void mockKeycloak() {
          try {
              KeycloakContext keycloakContext = mock(KeycloakContext.class);
-             when(keycloakSession.getContext()).thenReturn(keycloakContext);
+             lenient().when(keycloakSession.getContext()).thenReturn(keycloakContext);
              lenient().when(keycloakSession.getKeycloakSessionFactory()).thenReturn(keycloakSessionFactory);
              KeycloakUriInfo keycloakUriInfo = mock(KeycloakUriInfo.class);
              lenient().when(keycloakUriInfo.getBaseUriBuilder()).thenAnswer(i -> UriBuilder.fromUri(new URI(SP_KEYCLOAK_BASE_URL + "/auth")));
+             lenient().when(keycloakUriInfo.getBaseUri()).thenReturn(new URI(SP_KEYCLOAK_BASE_URL + "/auth"));
              lenient().when(keycloakContext.getUri()).thenReturn(keycloakUriInfo);
-             when(keycloakContext.getRealm()).thenReturn(realm);
+             lenient().when(keycloakContext.getRealm()).thenReturn(realm);
              lenient().when(realm.getName()).thenReturn("cieid-realm");
              // Mock keys
              KeyManager keyManager = mock(KeyManager.class);
              lenient().when(keycloakSession.keys()).thenReturn(keyManager);
-             lenient().when(keyManager.getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)).thenReturn(Stream.of(keyWrapper));
+             lenient().when(keyManager.getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)).thenAnswer(i -> Stream.of(keyWrapper));
              lenient().when(keyManager.getActiveKey(realm, KeyUse.SIG, Algorithm.RS256)).thenReturn(keyWrapper);
              lenient().when(keycloakSession.identityProviders()).thenReturn(identityProviderStorageProvider);
+             invitationResourceProvider = new CieIdSpMetadataResourceProvider(keycloakSession, new CieIdSpMetadataCache(), new CieIdSpMetadataOptions());
          } catch (Exception e) {
              log.error("", e);
          }
@@ -167,7 +197,7 @@ import static org.mockito.ArgumentMatchers.any;
  
          Response response = invitationResourceProvider.get();
          assertEquals(200, response.getStatus());
-         assertMetaData(response.getEntity().toString(), "/metadata/expected_metadata_public_SP.xml");
+         assertMetaData(entityAsString(response), "/metadata/expected_metadata_public_SP.xml");
      }
  
      @Test
@@ -176,7 +206,327 @@ import static org.mockito.ArgumentMatchers.any;
  
          Response response = invitationResourceProvider.get();
          assertEquals(200, response.getStatus());
-         assertMetaData(response.getEntity().toString(), "/metadata/expected_metadata_private_SP.xml");
+         assertMetaData(entityAsString(response), "/metadata/expected_metadata_private_SP.xml");
+     }
+
+     @Test
+     void get_withSignedMetadata_shouldHaveValidSignature() throws Exception {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+
+         Response response = invitationResourceProvider.get();
+         Document document = DocumentUtil.getDocument(entityAsString(response));
+         document.getDocumentElement().setIdAttribute("ID", true);
+
+         assertTrue(XMLSignatureUtil.validate(document, new HardcodedKeyLocator(keyWrapper.getPublicKey())));
+     }
+
+     @Test
+     void writeEntitiesDescriptor_shouldKeepTheSignaturesValid() throws Exception {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         CieIdSpMetadata metadata = invitationResourceProvider.getMetadata(realm, URI.create("https://sp.localtest.me/"));
+
+         ByteArrayOutputStream output = new ByteArrayOutputStream();
+         CieIdSpMetadataExporter.writeEntitiesDescriptor(List.of(metadata), output);
+         Document document = DocumentUtil.getDocument(output.toString(StandardCharsets.UTF_8));
+
+         assertEquals("EntitiesDescriptor", document.getDocumentElement().getLocalName());
+
+         // The signature of each embedded EntityDescriptor must still validate on its own
+         Document entityDescriptor = DocumentUtil.createDocument();
+         entityDescriptor.appendChild(entityDescriptor.importNode(
+             document.getDocumentElement().getElementsByTagNameNS("*", "EntityDescriptor").item(0), true));
+         entityDescriptor.getDocumentElement().setIdAttribute("ID", true);
+         assertTrue(XMLSignatureUtil.validate(entityDescriptor, new HardcodedKeyLocator(keyWrapper.getPublicKey())));
+     }
+
+     @Test
+     void publisherWrite_shouldReplaceTheFilesAtomically(@TempDir Path directory) throws IOException {
+         CieIdSpMetadata first = CieIdSpMetadata.unsigned("<md:EntityDescriptor ID=\"ID_1\"/>".getBytes(StandardCharsets.UTF_8), null);
+         CieIdSpMetadata second = CieIdSpMetadata.unsigned("<md:EntityDescriptor ID=\"ID_2\"/>".getBytes(StandardCharsets.UTF_8), null);
+
+         CieIdSpMetadataPublisher.write(directory.resolve("cieid-realm"), first, true);
+         CieIdSpMetadataPublisher.write(directory.resolve("cieid-realm"), second, true);
+
+         Path realmDirectory = directory.resolve("cieid-realm");
+         assertEquals(second.getDescriptor(), Files.readString(realmDirectory.resolve(CieIdSpMetadataPublisher.FILE_NAME)));
+         try (GZIPInputStream input = new GZIPInputStream(Files.newInputStream(realmDirectory.resolve(CieIdSpMetadataPublisher.FILE_NAME + ".gz")))) {
+             assertEquals(second.getDescriptor(), new String(input.readAllBytes(), StandardCharsets.UTF_8));
+         }
+         // No temporary file is left behind
+         try (Stream<Path> files = Files.list(realmDirectory)) {
+             assertEquals(2, files.count());
+         }
+     }
+
+     @Test
+     void publisherRealmDirectory_shouldStayInThePublishDirectory(@TempDir Path directory) {
+         assertEquals(directory.resolve("cieid-realm"), CieIdSpMetadataPublisher.getRealmDirectory(directory, "cieid-realm"));
+         for (String name : new String[] { "", ".", "..", "../etc", "a/b", "a\\b", "a\0b" })
+             assertNull(CieIdSpMetadataPublisher.getRealmDirectory(directory, name), name);
+     }
+
+     @Test
+     void get_withAdditionalAttributeConsumingServices_shouldRequestOnlyTheAssociatedAttributes() throws Exception {
+         Map<String, String> config = mockPublicSPConfig();
+         config.put(CieIdIdentityProviderConfig.ADDITIONAL_ATTRIBUTE_CONSUMING_SERVICES, "2|Fiscal number, 3");
+         attributeConsumingServiceIndexes.put("name", "1,3");
+         attributeConsumingServiceIndexes.put("familyName", "1,3");
+         mockCIEIDProviders(config, "idp1", "idp2");
+
+         Response response = invitationResourceProvider.get();
+         Document document = DocumentUtil.getDocument(entityAsString(response));
+         NodeList services = document.getElementsByTagNameNS(JBossSAMLURIConstants.METADATA_NSURI.get(), "AttributeConsumingService");
+
+         assertEquals(3, services.getLength());
+         assertEquals(List.of("1", "true", "3"), getAttributeConsumingService(services.item(0)));
+         assertEquals(List.of("2", "false", "1"), getAttributeConsumingService(services.item(1)));
+         assertEquals(List.of("3", "false", "3"), getAttributeConsumingService(services.item(2)));
+         assertEquals("Fiscal number", services.item(1).getTextContent().trim());
+     }
+
+     private List<String> getAttributeConsumingService(Node node) {
+         Element service = (Element) node;
+         return List.of(service.getAttribute("index"), service.getAttribute("isDefault"),
+             String.valueOf(service.getElementsByTagNameNS(JBossSAMLURIConstants.METADATA_NSURI.get(), "RequestedAttribute").getLength()));
+     }
+
+     @Test
+     void get_calledTwice_shouldServeCachedMetadata() {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+
+         Response first = invitationResourceProvider.get();
+         Response second = invitationResourceProvider.get();
+
+         assertEquals(entityAsString(first), entityAsString(second));
+         verify(identityProviderStorageProvider, times(1)).getAllStream(any(IdentityProviderQuery.class));
+     }
+
+     @Test
+     void get_afterInvalidation_shouldRebuildMetadata() {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         CieIdSpMetadataCache cache = new CieIdSpMetadataCache();
+         CieIdSpMetadataResourceProvider provider = new CieIdSpMetadataResourceProvider(keycloakSession, cache, new CieIdSpMetadataOptions());
+
+         provider.get();
+         cache.invalidate(realm.getId());
+         // The CIE ID providers are now looked up through the index
+         when(identityProviderStorageProvider.getByAlias(any())).thenAnswer(i -> mockSPIDProvider(mockPublicSPConfig(), i.getArgument(0)));
+         Response response = provider.get();
+
+         assertEquals(200, response.getStatus());
+         assertMetaData(entityAsString(response), "/metadata/expected_metadata_public_SP.xml");
+         verify(identityProviderStorageProvider, times(1)).getAllStream(any(IdentityProviderQuery.class));
+     }
+
+     @Test
+     void getProviders_shouldFollowTheIdentityProviderEvents() {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         when(identityProviderStorageProvider.getByAlias(any())).thenAnswer(i -> mockSPIDProvider(mockPublicSPConfig(), i.getArgument(0)));
+         CieIdIdentityProviderIndex index = new CieIdIdentityProviderIndex();
+
+         assertEquals(List.of("idp1", "idp2"), getAliases(index.getProviders(keycloakSession, "realm", "1")));
+
+         index.put("realm", mockSPIDProvider(mockPublicSPConfig(), "idp0"));
+         index.remove("realm", mockSPIDProvider(mockPublicSPConfig(), "idp2"));
+         assertEquals(List.of("idp0", "idp1"), getAliases(index.getProviders(keycloakSession, "realm", "1")));
+
+         index.setVersion("realm", "2");
+         assertEquals(List.of("idp0", "idp1"), getAliases(index.getProviders(keycloakSession, "realm", "2")));
+         verify(identityProviderStorageProvider, times(1)).getAllStream(any(IdentityProviderQuery.class));
+
+         // A version set elsewhere, e.g. by another cluster node, causes a new scan
+         assertEquals(List.of("idp1", "idp2"), getAliases(index.getProviders(keycloakSession, "realm", "3")));
+         verify(identityProviderStorageProvider, times(2)).getAllStream(any(IdentityProviderQuery.class));
+     }
+
+     private static List<String> getAliases(List<IdentityProviderModel> providers) {
+         return providers.stream().map(IdentityProviderModel::getAlias).collect(Collectors.toList());
+     }
+
+     @Test
+     void get_afterInvalidation_shouldReuseSignature() {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         CieIdSpMetadataCache cache = new CieIdSpMetadataCache();
+         CieIdSpMetadataResourceProvider provider = new CieIdSpMetadataResourceProvider(keycloakSession, cache, new CieIdSpMetadataOptions());
+
+         Response first = provider.get();
+         Response second = provider.get();
+         cache.invalidate(realm.getId());
+         when(identityProviderStorageProvider.getByAlias(any())).thenAnswer(i -> mockSPIDProvider(mockPublicSPConfig(), i.getArgument(0)));
+         Response third = provider.get();
+
+         assertEquals("miss", first.getHeaderString(CieIdSpMetadataResourceProvider.SIGNATURE_CACHE_HEADER));
+         assertEquals("hit", second.getHeaderString(CieIdSpMetadataResourceProvider.SIGNATURE_CACHE_HEADER));
+         assertEquals("hit", third.getHeaderString(CieIdSpMetadataResourceProvider.SIGNATURE_CACHE_HEADER));
+         assertEquals(entityAsString(first), entityAsString(third));
+         assertEquals(1, cache.getSignatures().getMisses());
+     }
+
+     @Test
+     void get_afterKeyRotation_shouldSignWithTheNewKey() throws Exception {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         CieIdSpMetadataCache cache = new CieIdSpMetadataCache();
+         CieIdSpMetadataResourceProvider provider = new CieIdSpMetadataResourceProvider(keycloakSession, cache, new CieIdSpMetadataOptions());
+
+         Response first = provider.get();
+         // A rotation does not raise any event
+         KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+         KeyWrapper rotated = new KeyWrapper();
+         rotated.setAlgorithm(Algorithm.RS256);
+         rotated.setKid(KeyUtils.createKeyId(keyPair.getPublic()));
+         rotated.setPrivateKey(keyPair.getPrivate());
+         rotated.setPublicKey(keyPair.getPublic());
+         rotated.setCertificate(generateCertificate(keyPair));
+         KeyManager keyManager = keycloakSession.keys();
+         when(keyManager.getKeysStream(realm, KeyUse.SIG, Algorithm.RS256)).thenAnswer(i -> Stream.of(rotated));
+         when(keyManager.getActiveKey(realm, KeyUse.SIG, Algorithm.RS256)).thenReturn(rotated);
+         when(identityProviderStorageProvider.getByAlias(any())).thenAnswer(i -> mockSPIDProvider(mockPublicSPConfig(), i.getArgument(0)));
+         Response second = provider.get();
+
+         assertEquals("miss", second.getHeaderString(CieIdSpMetadataResourceProvider.SIGNATURE_CACHE_HEADER));
+         assertNotEquals(first.getEntityTag(), second.getEntityTag());
+         assertTrue(entityAsString(second).contains(rotated.getKid()));
+         assertEquals(2, cache.getSignatures().getMisses());
+     }
+
+     @Test
+     void get_withManyBaseUris_shouldKeepTheMostRecentlyUsed() throws Exception {
+         CieIdSpMetadataCache cache = new CieIdSpMetadataCache();
+         Date validUntil = new Date(System.currentTimeMillis() + 3600 * 1000L);
+         for (int i = 0; i <= CieIdSpMetadataCache.MAX_ENTRIES_PER_REALM; i++) {
+             cache.get("realm", "", "https://host" + i, () -> CieIdSpMetadata.unsigned(new byte[0], validUntil));
+             // The first one is kept in use
+             cache.get("realm", "", "https://host0", () -> fail("Not cached"));
+         }
+
+         List<String> keys = cache.getExpiring(Long.MAX_VALUE).stream()
+             .map(CieIdSpMetadataCache.Key::getKey).collect(Collectors.toList());
+         assertEquals(CieIdSpMetadataCache.MAX_ENTRIES_PER_REALM, keys.size());
+         assertTrue(keys.contains("https://host0"));
+         assertFalse(keys.contains("https://host1"));
+     }
+
+     @Test
+     void refresh_withValidity_shouldReplaceTheExpiringMetadata() throws Exception {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         CieIdSpMetadataCache cache = new CieIdSpMetadataCache();
+         CieIdSpMetadataOptions options = new CieIdSpMetadataOptions();
+         options.setValidity(4 * 3600);
+         options.setCacheDuration(3600);
+         CieIdSpMetadataResourceProvider provider = new CieIdSpMetadataResourceProvider(keycloakSession, cache, options);
+
+         String metadata = entityAsString(provider.get());
+         assertTrue(metadata.contains("validUntil=\""));
+         assertTrue(metadata.contains("cacheDuration=\"PT3600S\""));
+         assertTrue(cache.getExpiring(System.currentTimeMillis()).isEmpty());
+
+         List<CieIdSpMetadataCache.Key> expiring = cache.getExpiring(System.currentTimeMillis() + 5 * 3600 * 1000L);
+         assertEquals(1, expiring.size());
+         CieIdSpMetadata before = cache.get(realm.getId(), expiring.get(0).getGeneration(), expiring.get(0).getKey(), () -> fail("Not cached"));
+
+         // The refresh looks the providers up by their cached aliases
+         when(identityProviderStorageProvider.getByAlias(any())).thenAnswer(i -> mockSPIDProvider(mockPublicSPConfig(), i.getArgument(0)));
+         provider.refresh(realm, expiring.get(0).getKey());
+
+         CieIdSpMetadata after = cache.get(realm.getId(), expiring.get(0).getGeneration(), expiring.get(0).getKey(), () -> fail("Not cached"));
+         assertNotSame(before, after);
+         assertEquals(before.getValidUntil(), after.getValidUntil());
+     }
+
+     @Test
+     void get_onTwoClusterNodes_shouldBuildMetadataOnce() {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         // Both nodes share the same cache manager, standing for the replicated cache
+         DefaultCacheManager cacheManager = new DefaultCacheManager();
+         cacheManager.defineConfiguration(InfinispanConnectionProvider.WORK_CACHE_NAME, new ConfigurationBuilder().build());
+         InfinispanConnectionProvider connections = mock(InfinispanConnectionProvider.class);
+         when(connections.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME))
+             .thenReturn(cacheManager.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME));
+         when(keycloakSession.getProvider(InfinispanConnectionProvider.class)).thenReturn(connections);
+         CieIdSpMetadataOptions options = new CieIdSpMetadataOptions();
+         options.setClusterCache(true);
+         CieIdSpMetadataResourceProvider node1 = new CieIdSpMetadataResourceProvider(keycloakSession, new CieIdSpMetadataCache(), options);
+         CieIdSpMetadataResourceProvider node2 = new CieIdSpMetadataResourceProvider(keycloakSession, new CieIdSpMetadataCache(), options);
+
+         Response first = node1.get();
+         Response second = node2.get();
+
+         assertEquals("miss", first.getHeaderString(CieIdSpMetadataResourceProvider.SIGNATURE_CACHE_HEADER));
+         assertEquals("hit", second.getHeaderString(CieIdSpMetadataResourceProvider.SIGNATURE_CACHE_HEADER));
+         assertEquals(first.getEntityTag(), second.getEntityTag());
+         assertEquals(first.getLastModified(), second.getLastModified());
+         verify(identityProviderStorageProvider, times(1)).getAllStream(any(IdentityProviderQuery.class));
+
+         // An invalidation on node 1 must be seen by node 2
+         CieIdSpMetadataResourceProviderFactory factory = new CieIdSpMetadataResourceProviderFactory();
+         factory.getOptions().setClusterCache(true);
+         factory.invalidate(keycloakSession, realm.getId());
+         Response third = node2.get();
+
+         assertEquals(200, third.getStatus());
+         verify(identityProviderStorageProvider, times(2)).getAllStream(any(IdentityProviderQuery.class));
+         cacheManager.stop();
+     }
+
+     @Test
+     void getByAlias_shouldOnlyLookUpTheRequestedProvider() {
+         IdentityProviderModel idp2 = mockSPIDProvider(mockPublicSPConfig(), "idp2");
+         when(identityProviderStorageProvider.getByAlias("idp2")).thenReturn(idp2);
+
+         Response response = invitationResourceProvider.get("idp2");
+
+         assertEquals(200, response.getStatus());
+         String metadata = entityAsString(response);
+         assertTrue(metadata.contains(SP_KEYCLOAK_BASE_URL + "/auth/realms/cieid-realm/broker/idp2/endpoint"));
+         assertFalse(metadata.contains("/broker/idp1/endpoint"));
+         verify(identityProviderStorageProvider, times(0)).getAllStream(any(IdentityProviderQuery.class));
+     }
+
+     @Test
+     void getSnapshot_shouldServeThePublishedVersionAsImmutable() {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         CieIdSpMetadataCache cache = new CieIdSpMetadataCache();
+         CieIdSpMetadataOptions options = new CieIdSpMetadataOptions();
+         options.setSnapshotRetention(30 * 86400);
+         CieIdSpMetadataResourceProvider provider = new CieIdSpMetadataResourceProvider(keycloakSession, cache, options);
+
+         Response current = provider.get();
+         String hash = current.getEntityTag().getValue();
+         assertTrue(current.getHeaderString(HttpHeaders.LINK).contains(
+             "/realms/cieid-realm/cieid-sp-metadata/" + CieIdSpMetadataResourceProvider.SNAPSHOT_PATH + "/" + hash));
+
+         // The version survives the invalidation of the current document
+         cache.invalidate(realm.getId());
+         Response snapshot = provider.getSnapshot(hash);
+
+         assertEquals(200, snapshot.getStatus());
+         assertEquals(entityAsString(current), entityAsString(snapshot));
+         assertTrue(snapshot.getHeaderString(HttpHeaders.CACHE_CONTROL).contains("immutable"));
+         assertThrows(NotFoundException.class, () -> provider.getSnapshot("0000"));
+     }
+
+     @Test
+     void getByAlias_withUnknownAlias_shouldReturnNotFound() {
+         assertThrows(NotFoundException.class, () -> invitationResourceProvider.get("unknown"));
+     }
+
+     @Test
+     void get_withMatchingIfNoneMatch_shouldReturnNotModified() {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         HttpHeaders headers = mock(HttpHeaders.class);
+         when(keycloakSession.getContext().getRequestHeaders()).thenReturn(headers);
+
+         Response first = invitationResourceProvider.get();
+         assertEquals(200, first.getStatus());
+         assertNotNull(first.getEntityTag());
+         assertNotNull(first.getLastModified());
+
+         lenient().when(headers.getHeaderString(HttpHeaders.IF_NONE_MATCH)).thenReturn("\"other\", " + first.getHeaderString(HttpHeaders.ETAG));
+         Response second = invitationResourceProvider.get();
+
+         assertEquals(304, second.getStatus());
+         assertEquals(null, second.getEntity());
+         assertEquals(first.getEntityTag(), second.getEntityTag());
      }
  
      private Map<String, String> mockPublicSPConfig() {
@@ -239,21 +589,21 @@ import static org.mockito.ArgumentMatchers.any;
      }
  
      private void mockCIEIDProviders(Map<String, String> commonConfig, String... aliases) {
-         when(identityProviderStorageProvider.getAllStream(any(IdentityProviderQuery.class))).thenReturn(Stream.of(aliases).map(alias -> mockSPIDProvider(commonConfig, alias)));
+         when(identityProviderStorageProvider.getAllStream(any(IdentityProviderQuery.class))).thenAnswer(i -> Stream.of(aliases).map(alias -> mockSPIDProvider(commonConfig, alias)));
      }
  
      private IdentityProviderModel mockSPIDProvider(Map<String, String> commonConfig, String alias) {
          IdentityProviderModel idpModel = mock(IdentityProviderModel.class);
          when(idpModel.getAlias()).thenReturn(alias);
-         when(idpModel.getProviderId()).thenReturn(CieIdIdentityProviderFactory.PROVIDER_ID);
-         when(idpModel.isEnabled()).thenReturn(true);
+         lenient().when(idpModel.getProviderId()).thenReturn(CieIdIdentityProviderFactory.PROVIDER_ID);
+         lenient().when(idpModel.isEnabled()).thenReturn(true);
          Map<String, String> idpConfig = new HashMap<String, String>();
          idpConfig.putAll(commonConfig);
          idpConfig.put(SAMLIdentityProviderConfig.SINGLE_SIGN_ON_SERVICE_URL, "https://" + alias + ".localtest.me/samlsso/login");
          idpConfig.put(SAMLIdentityProviderConfig.SINGLE_LOGOUT_SERVICE_URL, "https://" + alias + ".localtest.me/samlsso/logout");
          lenient().when(idpModel.getConfig()).thenReturn(idpConfig);
-         Stream<IdentityProviderMapperModel> identityProviderMappers = mockAttributeMappers(alias);
-         lenient().when(identityProviderStorageProvider.getMappersByAliasStream(alias)).thenReturn(identityProviderMappers);
+         List<IdentityProviderMapperModel> identityProviderMappers = mockAttributeMappers(alias).collect(Collectors.toList());
+         lenient().when(identityProviderStorageProvider.getMappersByAliasStream(alias)).thenAnswer(i -> identityProviderMappers.stream());
          return idpModel;
      }
  
@@ -273,11 +623,34 @@ import static org.mockito.ArgumentMatchers.any;
          Map<String, String> config = new HashMap<>();
          config.put("attribute.name", attributeName);
          config.put("attribute.friendly.name", "");
+         config.put(CieIdUserAttributeMapper.ATTRIBUTE_CONSUMING_SERVICE_INDEXES, attributeConsumingServiceIndexes.get(attributeName));
          spidUserAttributeMapper.setConfig(config);
          lenient().when(keycloakSessionFactory.getProviderFactory(IdentityProviderMapper.class, alias + "_" + name)).thenReturn(new CieIdUserAttributeMapper());
          return spidUserAttributeMapper;
      }
  
+     @Test
+     void get_withGzipAcceptEncoding_shouldServeCompressedMetadata() throws IOException {
+         mockCIEIDProviders(mockPublicSPConfig(), "idp1", "idp2");
+         HttpHeaders headers = mock(HttpHeaders.class);
+         when(keycloakSession.getContext().getRequestHeaders()).thenReturn(headers);
+         when(headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING)).thenReturn("deflate, gzip;q=0.8");
+
+         Response response = invitationResourceProvider.get();
+
+         assertEquals(200, response.getStatus());
+         assertEquals("gzip", response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+         assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeaderString(HttpHeaders.VARY));
+
+         try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream((byte[]) response.getEntity()))) {
+             assertMetaData(new String(input.readAllBytes(), StandardCharsets.UTF_8), "/metadata/expected_metadata_public_SP.xml");
+         }
+     }
+
+     private static String entityAsString(Response response) {
+         return new String((byte[]) response.getEntity(), StandardCharsets.UTF_8);
+     }
+
      private void assertMetaData(String response, String expectedResource) {
          Source responseMetadata = Input.fromString(response).build();
          Source control = Input.fromStream(this.getClass().getResourceAsStream(expectedResource)).build();
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.keycloak.broker.cieid.metadata;
+
+import org.keycloak.common.crypto.CryptoIntegration;
+import org.keycloak.common.util.KeyUtils;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.dom.saml.v2.metadata.EntityDescriptorType;
+import org.keycloak.dom.saml.v2.metadata.KeyDescriptorType;
+import org.keycloak.dom.saml.v2.metadata.KeyTypes;
+import org.keycloak.saml.SPMetadataDescriptor;
+import org.keycloak.saml.SignatureAlgorithm;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.util.DocumentUtil;
+import org.keycloak.saml.common.util.StaxUtil;
+import org.keycloak.saml.processing.api.saml.v2.sig.SAML2Signature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Compares the previous signing path (serialize, parse, sign, serialize again) with
+ * the single pass one used by {@link CieIdSpMetadataResourceProvider}.
+ *
+ * Run it after {@code mvn test-compile} with
+ * {@code java -cp target/test-classes:target/classes:<test classpath> org.keycloak.broker.cieid.metadata.CieIdSpMetadataSigningBenchmark},
+ * which also reports the allocation rate through the JMH GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CieIdSpMetadataSigningBenchmark {
+
+    private static final int SIGNING_KEYS = 3;
+
+    private EntityDescriptorType entityDescriptor;
+    private KeyPair keyPair;
+    private X509Certificate certificate;
+    private String keyName;
+
+    @Setup
+    public void setup() throws Exception {
+        CryptoIntegration.init(CieIdSpMetadataSigningBenchmark.class.getClassLoader());
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+
+        List<KeyDescriptorType> signingKeys = new ArrayList<>();
+        List<KeyDescriptorType> encryptionKeys = new ArrayList<>();
+        for (int i = 0; i < SIGNING_KEYS; i++) {
+            keyPair = keyGen.generateKeyPair();
+            certificate = CryptoIntegration.getProvider().getCertificateUtils()
+                .createServicesTestCertificate("CN=benchmark-" + i,
+                    new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000),
+                    new Date(System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000),
+                    keyPair);
+            keyName = KeyUtils.createKeyId(keyPair.getPublic());
+
+            Element keyInfo = SPMetadataDescriptor.buildKeyInfoElement(keyName, PemUtils.encodeCertificate(certificate));
+            signingKeys.add(SPMetadataDescriptor.buildKeyDescriptorType(keyInfo, KeyTypes.SIGNING));
+            encryptionKeys.add(SPMetadataDescriptor.buildKeyDescriptorType(keyInfo, KeyTypes.ENCRYPTION));
+        }
+
+        URI binding = JBossSAMLURIConstants.SAML_HTTP_POST_BINDING.getUri();
+        URI endpoint = URI.create("https://keycloak.company.name.it/realms/cieid/broker/cieid/endpoint");
+        entityDescriptor = SPMetadataDescriptor.buildSPDescriptor(binding, binding, endpoint, endpoint,
+            true, true, false, "https://keycloak.company.name.it",
+            JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get(), signingKeys, encryptionKeys);
+    }
+
+    @Benchmark
+    public byte[] serializeParseAndSign() throws Exception {
+        StringWriter sw = new StringWriter();
+        XMLStreamWriter writer = StaxUtil.getXMLStreamWriter(sw);
+        new CieIdSpMetadataWriter(writer).writeEntityDescriptor(entityDescriptor);
+        String descriptor = CieIdSpMetadataResourceProvider.stabilizeId(sw.toString(), entityDescriptor.getID());
+
+        Document document = DocumentUtil.getDocument(descriptor);
+        SAML2Signature signatureHelper = new SAML2Signature();
+        signatureHelper.setSignatureMethod(SignatureAlgorithm.RSA_SHA256.getXmlSignatureMethod());
+        signatureHelper.setDigestMethod(SignatureAlgorithm.RSA_SHA256.getXmlSignatureDigestMethod());
+        signatureHelper.setX509Certificate(certificate);
+        signatureHelper.setNextSibling(document.getDocumentElement().getFirstChild());
+        signatureHelper.signSAMLDocument(document, keyName, keyPair, CanonicalizationMethod.EXCLUSIVE);
+
+        return DocumentUtil.getDocumentAsString(document).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] singlePass() throws Exception {
+        Document document = CieIdSpMetadataResourceProvider.writeDocument(entityDescriptor);
+        CieIdSpMetadataResourceProvider.stabilizeId(document);
+
+        return CieIdSpMetadataResourceProvider.signDocument(document, keyPair, certificate, keyName,
+            SignatureAlgorithm.RSA_SHA256);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(CieIdSpMetadataSigningBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}